@@ -0,0 +1,185 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntConsumer;
+
+/**
+ * Hands the default-package vision code to the JMH benchmarks.
+ *
+ * <p>JMH refuses benchmarks in the default package, and a named package cannot refer to classes in
+ * the default one, so the benchmarks look this class up reflectively once during setup and only
+ * call the returned {@link IntConsumer}s (taking a frame index) while measuring.
+ */
+public final class PipelineStages {
+    private static final PipelineParameters PARAMS = PipelineParameters.DEFAULTS;
+    private static final double BLUR_RADIUS = PARAMS.get(PipelineParameters.Value.BLUR_RADIUS);
+    private static final double[] HSV_HUE = PARAMS.hue;
+    private static final double[] HSV_SAT = PARAMS.saturation;
+    private static final double[] HSV_VAL = PARAMS.value;
+    private static final double[] SOLIDITY = PARAMS.solidity;
+    /** Fraction of pixels set at random in the noisy masks. */
+    private static final double NOISE =
+            Double.parseDouble(System.getProperty("roovision.noise", "0.01"));
+
+    private PipelineStages() {
+    }
+
+    /**
+     * Builds a benchmark body for one stage, with the inputs of that stage precomputed for every
+     * frame by running the full pipeline once.
+     *
+     * @param stage one of <code>blur</code>, <code>hsvThreshold</code>, <code>hsvThresholdLut</code>,
+     *              <code>findContours</code>, <code>filterContours</code>,
+     *              <code>detectContours</code> or <code>detectComponents</code> (finding and
+     *              filtering blobs with each {@link ContourFilter.Detection}, on the masks or, with
+     *              a <code>Noisy</code> suffix, on the masks with <code>roovision.noise</code> of
+     *              their pixels set at random), <code>pipeline</code>,
+     *              <code>graph</code> (the GRIP project in <code>roovision.grip</code>, run with the
+     *              same parameters as <code>pipeline</code>) or <code>result</code>.
+     * @param frames the BGR frames to process.
+     * @return a consumer that runs the stage on the frame with the given index.
+     */
+    public static IntConsumer stage(String stage, List<Mat> frames) throws IOException {
+        GripPipeline grip = new GripPipeline();
+        RooPipeline pipeline = new RooPipeline(grip);
+        List<Mat> blurred = new ArrayList<>();
+        List<Mat> masks = new ArrayList<>();
+        List<List<MatOfPoint>> contours = new ArrayList<>();
+        for (Mat frame : frames) {
+            pipeline.process(frame);
+            blurred.add(grip.blurOutput().clone());
+            masks.add(grip.hsvThresholdOutput().clone());
+            // Copied, as the pipeline releases its contours at the next frame
+            List<MatOfPoint> copies = new ArrayList<>();
+            for (MatOfPoint contour : grip.findContoursOutput()) {
+                MatOfPoint copy = new MatOfPoint();
+                contour.copyTo(copy);
+                copies.add(copy);
+            }
+            contours.add(copies);
+        }
+
+        Mat out = new Mat();
+        ArrayList<MatOfPoint> contoursOut = new ArrayList<>();
+        TargetResult result = new TargetResult();
+        switch (stage) {
+            case "blur":
+                return i -> grip.blur(frames.get(i), PARAMS.blurType, BLUR_RADIUS, out);
+            case "hsvThreshold":
+                return i -> grip.hsvThreshold(blurred.get(i), HSV_HUE, HSV_SAT, HSV_VAL, out);
+            case "hsvThresholdLut":
+                LutHsvThreshold lut = new LutHsvThreshold(8);
+                checkLutMatches(lut, blurred, masks);
+                return i -> lut.apply(blurred.get(i), HSV_HUE, HSV_SAT, HSV_VAL, out);
+            case "findContours":
+                return i -> grip.findContours(masks.get(i), PARAMS.externalOnly, contoursOut);
+            case "filterContours":
+                return i -> grip.filterContours(contours.get(i),
+                        PARAMS.get(PipelineParameters.Value.MIN_AREA),
+                        PARAMS.get(PipelineParameters.Value.MIN_PERIMETER),
+                        PARAMS.get(PipelineParameters.Value.MIN_WIDTH),
+                        PARAMS.get(PipelineParameters.Value.MAX_WIDTH),
+                        PARAMS.get(PipelineParameters.Value.MIN_HEIGHT),
+                        PARAMS.get(PipelineParameters.Value.MAX_HEIGHT), SOLIDITY,
+                        PARAMS.get(PipelineParameters.Value.MAX_VERTICES),
+                        PARAMS.get(PipelineParameters.Value.MIN_VERTICES),
+                        PARAMS.get(PipelineParameters.Value.MIN_RATIO),
+                        PARAMS.get(PipelineParameters.Value.MAX_RATIO), contoursOut);
+            case "detectContours":
+            case "detectComponents":
+            case "detectContoursNoisy":
+            case "detectComponentsNoisy":
+                List<Mat> detectMasks = stage.endsWith("Noisy") ? noisy(masks) : masks;
+                boolean components = stage.startsWith("detectComponents");
+                GripPipeline detector = new GripPipeline();
+                detector.setDetection(components
+                        ? ContourFilter.Detection.COMPONENTS : ContourFilter.Detection.CONTOURS);
+                ArrayList<MatOfPoint> found = new ArrayList<>();
+                return i -> detect(detector, components, detectMasks.get(i), found, contoursOut);
+            case "pipeline":
+                return i -> pipeline.process(frames.get(i));
+            case "graph":
+                GripProject project = GripProject.load(Paths.get(
+                        System.getProperty("roovision.grip", "pipelines/2020 Pipeline Hallway.grip")));
+                TargetPipeline graph = project.compile();
+                graph.setParameters(() -> PARAMS);
+                RooPipeline graphPipeline = new RooPipeline(graph);
+                return i -> graphPipeline.process(frames.get(i));
+            case "result":
+                return i -> {
+                    pipeline.process(frames.get(i));
+                    RooProcessor.computeTarget(pipeline, 600, result);
+                };
+            default:
+                throw new IllegalArgumentException("Unknown stage " + stage);
+        }
+    }
+
+    /**
+     * Finds and filters the blobs of a mask, as the pipeline's Find_Contours and Filter_Contours
+     * steps do.
+     */
+    private static void detect(GripPipeline grip, boolean components, Mat mask,
+                               List<MatOfPoint> found, List<MatOfPoint> output) {
+        if (components) {
+            grip.labelComponents(mask, found);
+        } else {
+            grip.findContours(mask, PARAMS.externalOnly, found);
+        }
+        grip.filterContours(found,
+                PARAMS.get(PipelineParameters.Value.MIN_AREA),
+                PARAMS.get(PipelineParameters.Value.MIN_PERIMETER),
+                PARAMS.get(PipelineParameters.Value.MIN_WIDTH),
+                PARAMS.get(PipelineParameters.Value.MAX_WIDTH),
+                PARAMS.get(PipelineParameters.Value.MIN_HEIGHT),
+                PARAMS.get(PipelineParameters.Value.MAX_HEIGHT), SOLIDITY,
+                PARAMS.get(PipelineParameters.Value.MAX_VERTICES),
+                PARAMS.get(PipelineParameters.Value.MIN_VERTICES),
+                PARAMS.get(PipelineParameters.Value.MIN_RATIO),
+                PARAMS.get(PipelineParameters.Value.MAX_RATIO), output);
+    }
+
+    /**
+     * Sets {@link #NOISE} of the pixels of each mask at random, as sensor noise and reflections
+     * that get past the threshold do, with the same noise on every run.
+     */
+    private static List<Mat> noisy(List<Mat> masks) {
+        Core.setRNGSeed(42);
+        List<Mat> noisy = new ArrayList<>();
+        Mat noise = new Mat();
+        for (Mat mask : masks) {
+            noise.create(mask.size(), CvType.CV_8UC1);
+            Core.randu(noise, 0, 256);
+            Imgproc.threshold(noise, noise, 255 * (1 - NOISE), 255, Imgproc.THRESH_BINARY);
+            Mat copy = new Mat();
+            Core.bitwise_or(mask, noise, copy);
+            noisy.add(copy);
+        }
+        noise.release();
+        return noisy;
+    }
+
+    /**
+     * Makes sure the lookup-table threshold produces exactly the masks of cvtColor and inRange.
+     */
+    private static void checkLutMatches(LutHsvThreshold lut, List<Mat> blurred, List<Mat> masks) {
+        Mat lutMask = new Mat();
+        Mat difference = new Mat();
+        for (int i = 0; i < blurred.size(); i++) {
+            lut.apply(blurred.get(i), HSV_HUE, HSV_SAT, HSV_VAL, lutMask);
+            Core.compare(lutMask, masks.get(i), difference, Core.CMP_NE);
+            int mismatches = Core.countNonZero(difference);
+            if (mismatches != 0) {
+                throw new IllegalStateException("LUT threshold differs from cvtColor/inRange in "
+                        + mismatches + " pixels of frame " + i);
+            }
+        }
+    }
+}
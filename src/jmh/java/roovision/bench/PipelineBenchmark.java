@@ -0,0 +1,117 @@
+package roovision.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntConsumer;
+
+/**
+ * Times each stage of GripPipeline.process, the whole RooPipeline and RooProcessor's result
+ * computation on recorded frames. Run with <code>./gradlew jmh</code>; the gc profiler reports
+ * the bytes allocated per frame as <code>gc.alloc.rate.norm</code>.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PipelineBenchmark {
+    @Param({"320x240", "640x480", "1280x720"})
+    public String resolution;
+
+    @Param({"blur", "hsvThreshold", "hsvThresholdLut", "findContours", "filterContours",
+            "detectContours", "detectComponents", "detectContoursNoisy", "detectComponentsNoisy",
+            "pipeline", "graph", "result"})
+    public String stage;
+
+    private IntConsumer body;
+    private int frameCount;
+    private int next;
+
+    @Setup
+    public void setup() throws ReflectiveOperationException {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        List<Mat> frames = Frames.load(resolution);
+        frameCount = frames.size();
+        body = (IntConsumer) Class.forName("PipelineStages")
+                .getMethod("stage", String.class, List.class)
+                .invoke(null, stage, frames);
+    }
+
+    @Benchmark
+    public void frame() {
+        body.accept(next);
+        next = (next + 1) % frameCount;
+    }
+
+    /**
+     * Loads the benchmark frames from the directory in the <code>roovision.frames</code> system
+     * property, scaled to the requested resolution.
+     */
+    static final class Frames {
+        private Frames() {
+        }
+
+        static List<Mat> load(String resolution) {
+            String[] dims = resolution.split("x");
+            Size size = new Size(Integer.parseInt(dims[0]), Integer.parseInt(dims[1]));
+            List<Mat> frames = new ArrayList<>();
+
+            String dir = System.getProperty("roovision.frames");
+            File[] files = dir == null ? null : new File(dir).listFiles();
+            if (files != null) {
+                Arrays.sort(files);
+                for (File file : files) {
+                    Mat image = Imgcodecs.imread(file.getPath());
+                    if (image.empty()) {
+                        continue;
+                    }
+                    Mat scaled = new Mat();
+                    Imgproc.resize(image, scaled, size, 0, 0, Imgproc.INTER_AREA);
+                    frames.add(scaled);
+                }
+            }
+            if (frames.isEmpty()) {
+                System.err.println("No frames in roovision.frames; using a synthetic frame");
+                frames.add(synthetic(size));
+            }
+            return frames;
+        }
+
+        /**
+         * Draws a noisy dark frame with a green, target-shaped outline in it.
+         */
+        static Mat synthetic(Size size) {
+            Mat frame = new Mat(size, CvType.CV_8UC3);
+            Core.randn(frame, 40, 25);
+            double w = size.width;
+            double h = size.height;
+            Imgproc.rectangle(frame, new Point(w * 0.4, h * 0.4), new Point(w * 0.6, h * 0.5),
+                    new Scalar(60, 255, 60), Math.max(2, (int) (h / 60)));
+            return frame;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * One camera's calibrated values, such as its focal length, kept in a JSON file of named numbers.
+ *
+ * <p>Reads are served from memory. Every change saves the whole file through the shared
+ * {@link PersistenceService}, so a calibration never waits for the SD card.
+ */
+public class CalibrationStore {
+    public static final String FOCAL_LENGTH = "focal_length";
+    public static final String FOCAL_LENGTH_WIDTH = "focal_length_width";
+
+    private final Path path;
+    private final PersistenceService persistence;
+    private final Map<String, Double> values = new TreeMap<>();
+
+    /**
+     * @param path the JSON file; starts empty if it does not exist.
+     * @param persistence the service that saves the file.
+     */
+    public CalibrationStore(Path path, PersistenceService persistence) {
+        this.path = path;
+        this.persistence = persistence;
+        if (Files.exists(path)) {
+            try {
+                JsonObject json = new JsonParser().parse(Files.readString(path)).getAsJsonObject();
+                for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+                    values.put(entry.getKey(), entry.getValue().getAsDouble());
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Illegal data found when trying to read calibration from " + path);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @return whether a value has been calibrated.
+     */
+    public synchronized boolean has(String key) {
+        return values.containsKey(key);
+    }
+
+    /**
+     * @return a calibrated value, or <code>defaultValue</code> if it never was.
+     */
+    public synchronized double get(String key, double defaultValue) {
+        return values.getOrDefault(key, defaultValue);
+    }
+
+    /**
+     * Changes a value and saves the file in the background.
+     */
+    public void set(String key, double value) {
+        set(new String[]{key}, new double[]{value});
+    }
+
+    /**
+     * Changes several values at once, so they are saved together.
+     */
+    public void set(String[] keys, double[] newValues) {
+        JsonObject json = new JsonObject();
+        synchronized (this) {
+            for (int i = 0; i < keys.length; i++) {
+                values.put(keys[i], newValues[i]);
+            }
+            values.forEach(json::addProperty);
+        }
+        persistence.write(path, new GsonBuilder().setPrettyPrinting().create().toJson(json));
+    }
+}
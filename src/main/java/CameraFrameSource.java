@@ -0,0 +1,45 @@
+import edu.wpi.cscore.CvSink;
+import edu.wpi.cscore.VideoMode;
+import edu.wpi.cscore.VideoSource;
+import org.opencv.core.Mat;
+
+/**
+ * Frames from a live cscore camera.
+ */
+public class CameraFrameSource implements FrameSource {
+    private final VideoSource camera;
+    private final CvSink cvSink;
+
+    public CameraFrameSource(VideoSource camera) {
+        this.camera = camera;
+        this.cvSink = new CvSink("RooProcessor CvSink " + camera.getName());
+        cvSink.setSource(camera);
+    }
+
+    /**
+     * @return the camera the frames come from.
+     */
+    public VideoSource getCamera() {
+        return camera;
+    }
+
+    @Override
+    public long grabFrame(Mat frame) {
+        return cvSink.grabFrame(frame);
+    }
+
+    @Override
+    public String getError() {
+        return cvSink.getError();
+    }
+
+    @Override
+    public VideoMode getVideoMode() {
+        return camera.getVideoMode();
+    }
+
+    @Override
+    public String getName() {
+        return camera.getName();
+    }
+}
@@ -0,0 +1,474 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Allocation-free replacement for the contour filter generated by GRIP.
+ *
+ * <p>Contour points are copied into reused primitive buffers and every geometric test is done in
+ * Java on those buffers, so no <code>MatOfPoint2f</code>, hull {@link MatOfPoint} or <code>double[]</code>
+ * is created per contour. The cheap tests (bounding box, ratio, vertex count, area) run first, and
+ * the perimeter and convex hull are only computed when their bounds can actually reject a contour.
+ *
+ * <p>The bounding box and area of every accepted contour are kept so callers do not need to
+ * recompute them with {@link Imgproc#boundingRect}.
+ *
+ * <p>With {@link Detection#COMPONENTS}, the mask is not traced into contours at all. It is
+ * labelled in one pass by <code>connectedComponentsWithStats</code>, which gives the box, pixel
+ * area and centroid of every blob, and the bounds are tested on those. A blob is traced into a
+ * contour only if it survives those tests and the vertex, perimeter or solidity bounds could
+ * still reject it. Areas are then pixel counts, slightly larger than the polygon areas of
+ * contours.
+ */
+public class ContourFilter {
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int STATS_COLUMNS = 5;
+
+    /**
+     * How blobs are found in the mask.
+     */
+    public enum Detection {
+        /** Every blob is traced with <code>findContours</code> and then filtered. */
+        CONTOURS,
+        /**
+         * Blobs are labelled with their stats and only traced when a bound needs it. There are
+         * no accepted contours, only the boxes, areas and centroids of the accepted blobs.
+         */
+        COMPONENTS;
+
+        /**
+         * Parses a detection name as written in <code>frc.json</code>, e.g. "components".
+         */
+        public static Detection parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    private double minArea;
+    private double minPerimeter;
+    private double minWidth;
+    private double maxWidth;
+    private double minHeight;
+    private double maxHeight;
+    private double minSolidity;
+    private double maxSolidity;
+    private double minVertexCount;
+    private double maxVertexCount;
+    private double minRatio;
+    private double maxRatio;
+
+    private int[] points = new int[2 * INITIAL_CAPACITY];
+    private int[] hullIndices = new int[INITIAL_CAPACITY];
+    private final MatOfInt hull = new MatOfInt();
+
+    private int acceptedCount;
+    private int[] acceptedBoxes = new int[4 * INITIAL_CAPACITY];
+    private double[] acceptedAreas = new double[INITIAL_CAPACITY];
+    private double[] acceptedCentroids = new double[2 * INITIAL_CAPACITY];
+
+    private final Mat labels = new Mat();
+    private final Mat stats = new Mat();
+    private final Mat centroids = new Mat();
+    private final Mat blobMask = new Mat();
+    private final Mat blobHierarchy = new Mat();
+    private final Scalar blobLabel = new Scalar(0);
+    private final Point blobOffset = new Point();
+    private final List<MatOfPoint> blobContours = new ArrayList<>();
+    private int componentCount;
+    private int[] componentStats = new int[STATS_COLUMNS * INITIAL_CAPACITY];
+    private double[] componentCentroids = new double[2 * INITIAL_CAPACITY];
+
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final long allocationProbeOverhead;
+    private long allocatedBytesLastFrame = -1;
+    private int bufferGrowthsLastFrame;
+    private int hullsComputedLastFrame;
+    private int perimetersComputedLastFrame;
+    private int blobsTracedLastFrame;
+
+    public ContourFilter() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean
+                && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+            threadBean = (com.sun.management.ThreadMXBean) bean;
+            threadBean.setThreadAllocatedMemoryEnabled(true);
+            // The probe itself allocates a couple of tiny arrays; measure that once so it can be
+            // subtracted from every frame's figure.
+            long id = Thread.currentThread().getId();
+            threadBean.getThreadAllocatedBytes(id);
+            long first = threadBean.getThreadAllocatedBytes(id);
+            long second = threadBean.getThreadAllocatedBytes(id);
+            allocationProbeOverhead = second - first;
+        } else {
+            threadBean = null;
+            allocationProbeOverhead = 0;
+        }
+    }
+
+    /**
+     * Sets the bounds used by {@link #filter}. The arguments mirror the generated GRIP filter.
+     *
+     * @param solidity the minimum and maximum solidity of a contour, in percent.
+     */
+    public void setBounds(double minArea, double minPerimeter, double minWidth, double maxWidth,
+                          double minHeight, double maxHeight, double[] solidity,
+                          double maxVertexCount, double minVertexCount,
+                          double minRatio, double maxRatio) {
+        this.minArea = minArea;
+        this.minPerimeter = minPerimeter;
+        this.minWidth = minWidth;
+        this.maxWidth = maxWidth;
+        this.minHeight = minHeight;
+        this.maxHeight = maxHeight;
+        this.minSolidity = solidity[0];
+        this.maxSolidity = solidity[1];
+        this.maxVertexCount = maxVertexCount;
+        this.minVertexCount = minVertexCount;
+        this.minRatio = minRatio;
+        this.maxRatio = maxRatio;
+    }
+
+    /**
+     * Filters out contours that do not meet the configured bounds.
+     *
+     * @param inputContours the input list of contours.
+     * @param output the list to clear and fill with the accepted contours.
+     */
+    public void filter(List<MatOfPoint> inputContours, List<MatOfPoint> output) {
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadBean != null ? threadBean.getThreadAllocatedBytes(threadId) : 0;
+        bufferGrowthsLastFrame = 0;
+        hullsComputedLastFrame = 0;
+        perimetersComputedLastFrame = 0;
+
+        output.clear();
+        acceptedCount = 0;
+        // Solidity is 100 * area / hullArea, which can never leave [0, 100]
+        boolean solidityMatters = minSolidity > 0 || maxSolidity < 100;
+
+        for (int i = 0; i < inputContours.size(); i++) {
+            final MatOfPoint contour = inputContours.get(i);
+            final int vertexCount = contour.rows();
+            if (vertexCount < minVertexCount || vertexCount > maxVertexCount) continue;
+            if (vertexCount == 0) continue;
+
+            loadPoints(contour, vertexCount);
+
+            int minX = Integer.MAX_VALUE;
+            int minY = Integer.MAX_VALUE;
+            int maxX = Integer.MIN_VALUE;
+            int maxY = Integer.MIN_VALUE;
+            for (int j = 0; j < 2 * vertexCount; j += 2) {
+                int x = points[j];
+                int y = points[j + 1];
+                if (x < minX) minX = x;
+                if (x > maxX) maxX = x;
+                if (y < minY) minY = y;
+                if (y > maxY) maxY = y;
+            }
+            // Same convention as Imgproc.boundingRect: both end pixels are inside the box
+            final int width = maxX - minX + 1;
+            final int height = maxY - minY + 1;
+            if (width < minWidth || width > maxWidth) continue;
+            if (height < minHeight || height > maxHeight) continue;
+            final double ratio = width / (double) height;
+            if (ratio < minRatio || ratio > maxRatio) continue;
+
+            final double area = polygonArea(null, vertexCount);
+            if (area < minArea) continue;
+            if (!passesOutline(contour, vertexCount, width, height, area,
+                    solidityMatters)) continue;
+
+            accept(minX, minY, width, height, area,
+                    minX + (width - 1) / 2d, minY + (height - 1) / 2d);
+            output.add(contour);
+        }
+
+        measureAllocation(threadId, allocatedBefore);
+    }
+
+    /**
+     * Labels the blobs of a binary mask for {@link #filterComponents}, replacing
+     * <code>findContours</code> in the {@link Detection#COMPONENTS} engine.
+     *
+     * @param mask the binary image to find blobs in.
+     */
+    public void label(Mat mask) {
+        componentCount = Imgproc.connectedComponentsWithStats(mask, labels, stats, centroids, 8,
+                CvType.CV_32S);
+        if (componentStats.length < STATS_COLUMNS * componentCount) {
+            componentStats = new int[Math.max(STATS_COLUMNS * componentCount,
+                    2 * componentStats.length)];
+            componentCentroids = new double[componentStats.length / STATS_COLUMNS * 2];
+        }
+        stats.get(0, 0, componentStats);
+        centroids.get(0, 0, componentCentroids);
+    }
+
+    /**
+     * Filters out the blobs of the last {@link #label}ed mask that do not meet the configured
+     * bounds. Boxes, areas and centroids of the accepted blobs are available as for
+     * {@link #filter}, but unlike it no list of accepted contours is filled, as most blobs are
+     * never traced.
+     *
+     * @param offsetX added to every x coordinate, like the contour offset of
+     *                <code>findContours</code>.
+     * @param offsetY added to every y coordinate.
+     * @param traced the list to add every contour traced for a vertex, perimeter or solidity test
+     *               to; the caller releases them once done with the frame.
+     */
+    public void filterComponents(int offsetX, int offsetY, List<MatOfPoint> traced) {
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadBean != null ? threadBean.getThreadAllocatedBytes(threadId) : 0;
+        bufferGrowthsLastFrame = 0;
+        hullsComputedLastFrame = 0;
+        perimetersComputedLastFrame = 0;
+        blobsTracedLastFrame = 0;
+
+        acceptedCount = 0;
+        boolean solidityMatters = minSolidity > 0 || maxSolidity < 100;
+
+        // Label 0 is the background
+        for (int label = 1; label < componentCount; label++) {
+            final int base = STATS_COLUMNS * label;
+            final int x = componentStats[base + Imgproc.CC_STAT_LEFT];
+            final int y = componentStats[base + Imgproc.CC_STAT_TOP];
+            final int width = componentStats[base + Imgproc.CC_STAT_WIDTH];
+            final int height = componentStats[base + Imgproc.CC_STAT_HEIGHT];
+            final int area = componentStats[base + Imgproc.CC_STAT_AREA];
+            if (width < minWidth || width > maxWidth) continue;
+            if (height < minHeight || height > maxHeight) continue;
+            final double ratio = width / (double) height;
+            if (ratio < minRatio || ratio > maxRatio) continue;
+            if (area < minArea) continue;
+
+            // Every vertex is a blob pixel, visited at most twice; same perimeter bound as filter
+            boolean vertexMatters = minVertexCount > 1 || maxVertexCount < 2d * area;
+            boolean perimeterMatters = 2d * Math.max(width - 1, height - 1) < minPerimeter;
+            if (vertexMatters || perimeterMatters || solidityMatters) {
+                MatOfPoint contour = trace(label, x, y, width, height, offsetX, offsetY);
+                traced.add(contour);
+                final int vertexCount = contour.rows();
+                if (vertexCount < minVertexCount || vertexCount > maxVertexCount) continue;
+                loadPoints(contour, vertexCount);
+                if (!passesOutline(contour, vertexCount, width, height,
+                        polygonArea(null, vertexCount), solidityMatters)) continue;
+            }
+
+            accept(x + offsetX, y + offsetY, width, height, area,
+                    componentCentroids[2 * label] + offsetX,
+                    componentCentroids[2 * label + 1] + offsetY);
+        }
+
+        measureAllocation(threadId, allocatedBefore);
+    }
+
+    /**
+     * Traces the outline of one labelled blob.
+     */
+    private MatOfPoint trace(int label, int x, int y, int width, int height, int offsetX,
+                             int offsetY) {
+        blobsTracedLastFrame++;
+        Mat region = labels.submat(y, y + height, x, x + width);
+        blobLabel.val[0] = label;
+        Core.compare(region, blobLabel, blobMask, Core.CMP_EQ);
+        region.release();
+        blobOffset.x = x + offsetX;
+        blobOffset.y = y + offsetY;
+        blobContours.clear();
+        Imgproc.findContours(blobMask, blobContours, blobHierarchy, Imgproc.RETR_EXTERNAL,
+                Imgproc.CHAIN_APPROX_SIMPLE, blobOffset);
+        // An 8-connected blob has exactly one outer contour
+        return blobContours.get(0);
+    }
+
+    /**
+     * Tests the perimeter and solidity bounds on a contour whose points have been loaded.
+     *
+     * @param area the polygon area of the contour, in px^2.
+     */
+    private boolean passesOutline(MatOfPoint contour, int vertexCount, int width, int height,
+                                  double area, boolean solidityMatters) {
+        // A closed curve reaching both ends of its bounding box is at least twice the longer side
+        if (2d * Math.max(width - 1, height - 1) < minPerimeter) {
+            perimetersComputedLastFrame++;
+            if (perimeter(vertexCount) < minPerimeter) return false;
+        }
+
+        if (solidityMatters) {
+            hullsComputedLastFrame++;
+            Imgproc.convexHull(contour, hull);
+            int hullCount = hull.rows();
+            if (hullIndices.length < hullCount) {
+                hullIndices = new int[Math.max(hullCount, 2 * hullIndices.length)];
+                bufferGrowthsLastFrame++;
+            }
+            hull.get(0, 0, hullIndices);
+            final double solid = 100 * area / polygonArea(hullIndices, hullCount);
+            if (solid < minSolidity || solid > maxSolidity) return false;
+        }
+        return true;
+    }
+
+    private void measureAllocation(long threadId, long allocatedBefore) {
+        if (threadBean != null) {
+            allocatedBytesLastFrame = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore
+                    - allocationProbeOverhead;
+        }
+    }
+
+    /**
+     * @return the number of contours accepted by the last call to {@link #filter}.
+     */
+    public int acceptedCount() {
+        return acceptedCount;
+    }
+
+    /**
+     * Copies the bounding box of an accepted contour into <code>out</code> as x, y, width, height.
+     *
+     * @param index the index of the contour in the last output list.
+     * @param out an array of at least four elements.
+     */
+    public void acceptedBox(int index, int[] out) {
+        System.arraycopy(acceptedBoxes, 4 * index, out, 0, 4);
+    }
+
+    /**
+     * @param index the index of the contour in the last output list.
+     * @return the area of the accepted contour, in px^2.
+     */
+    public double acceptedArea(int index) {
+        return acceptedAreas[index];
+    }
+
+    /**
+     * Copies the centroid of an accepted contour into <code>out</code> as x, y. For
+     * {@link Detection#COMPONENTS} this is the mean of the blob's pixels, otherwise the center of
+     * its bounding box.
+     *
+     * @param index the index of the contour in the last output list.
+     * @param out an array of at least two elements.
+     */
+    public void acceptedCentroid(int index, double[] out) {
+        out[0] = acceptedCentroids[2 * index];
+        out[1] = acceptedCentroids[2 * index + 1];
+    }
+
+    /**
+     * @return the bytes allocated on the Java heap by the last call to {@link #filter}, or -1 if
+     * the JVM cannot measure it.
+     */
+    public long allocatedBytesLastFrame() {
+        return allocatedBytesLastFrame;
+    }
+
+    /**
+     * @return how many times a reused buffer had to grow during the last call to {@link #filter}.
+     * This settles at zero once the buffers fit the largest contour seen.
+     */
+    public int bufferGrowthsLastFrame() {
+        return bufferGrowthsLastFrame;
+    }
+
+    /**
+     * @return how many convex hulls were computed during the last call to {@link #filter}.
+     */
+    public int hullsComputedLastFrame() {
+        return hullsComputedLastFrame;
+    }
+
+    /**
+     * @return how many perimeters were computed during the last call to {@link #filter}.
+     */
+    public int perimetersComputedLastFrame() {
+        return perimetersComputedLastFrame;
+    }
+
+    /**
+     * @return how many blobs were traced into contours during the last call to
+     * {@link #filterComponents}.
+     */
+    public int blobsTracedLastFrame() {
+        return blobsTracedLastFrame;
+    }
+
+    /**
+     * Copies the points of a CV_32SC2 contour into {@link #points}, growing it if needed.
+     */
+    private void loadPoints(MatOfPoint contour, int vertexCount) {
+        if (points.length < 2 * vertexCount) {
+            points = new int[Math.max(2 * vertexCount, 2 * points.length)];
+            bufferGrowthsLastFrame++;
+        }
+        contour.get(0, 0, points);
+    }
+
+    /**
+     * Computes the absolute shoelace area of the loaded contour, or of the subset of its points
+     * given by <code>indices</code>. Matches {@link Imgproc#contourArea} for integer points.
+     */
+    private double polygonArea(int[] indices, int count) {
+        if (count < 3) {
+            return 0;
+        }
+        long twiceArea = 0;
+        int prev = indices == null ? count - 1 : indices[count - 1];
+        for (int j = 0; j < count; j++) {
+            int cur = indices == null ? j : indices[j];
+            long x0 = points[2 * prev];
+            long y0 = points[2 * prev + 1];
+            long x1 = points[2 * cur];
+            long y1 = points[2 * cur + 1];
+            twiceArea += x0 * y1 - x1 * y0;
+            prev = cur;
+        }
+        return Math.abs(twiceArea) / 2d;
+    }
+
+    /**
+     * Computes the closed perimeter of the loaded contour, like {@link Imgproc#arcLength}.
+     */
+    private double perimeter(int count) {
+        double length = 0;
+        int px = points[2 * (count - 1)];
+        int py = points[2 * (count - 1) + 1];
+        for (int j = 0; j < 2 * count; j += 2) {
+            double dx = points[j] - px;
+            double dy = points[j + 1] - py;
+            length += Math.sqrt(dx * dx + dy * dy);
+            px = points[j];
+            py = points[j + 1];
+        }
+        return length;
+    }
+
+    private void accept(int x, int y, int width, int height, double area, double centroidX,
+                        double centroidY) {
+        if (acceptedAreas.length == acceptedCount) {
+            acceptedAreas = Arrays.copyOf(acceptedAreas, 2 * acceptedCount);
+            acceptedBoxes = Arrays.copyOf(acceptedBoxes, 8 * acceptedCount);
+            acceptedCentroids = Arrays.copyOf(acceptedCentroids, 4 * acceptedCount);
+            bufferGrowthsLastFrame++;
+        }
+        int base = 4 * acceptedCount;
+        acceptedBoxes[base] = x;
+        acceptedBoxes[base + 1] = y;
+        acceptedBoxes[base + 2] = width;
+        acceptedBoxes[base + 3] = height;
+        acceptedAreas[acceptedCount] = area;
+        acceptedCentroids[2 * acceptedCount] = centroidX;
+        acceptedCentroids[2 * acceptedCount + 1] = centroidY;
+        acceptedCount++;
+    }
+}
@@ -0,0 +1,183 @@
+import edu.wpi.cscore.CvSource;
+import edu.wpi.first.cameraserver.CameraServer;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * An extra camera stream showing what the pipeline sees, for tuning: the threshold mask, the box
+ * of every candidate contour, the chosen target and its offsets.
+ *
+ * <p>Workers only copy the mask and the boxes, a few times per second, and only while someone
+ * is watching. Drawing and scaling happen on this stream's own low-priority thread, and cscore
+ * encodes the JPEG on its server thread, so the stream costs processing almost nothing.
+ */
+public class DebugStream {
+    private static final Scalar CANDIDATE_COLOR = new Scalar(128, 128, 128);
+    private static final Scalar TARGET_COLOR = new Scalar(0, 255, 0);
+    private static final Scalar WINDOW_COLOR = new Scalar(255, 128, 0);
+    private static final Scalar BLACK = new Scalar(0, 0, 0);
+
+    private final CvSource source;
+    private final int width;
+    private final int height;
+    private final long periodNanos;
+    private volatile long nextFrameNanos;
+
+    /** Set by the worker that claims the next debug frame, cleared once it has been drawn. */
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private boolean ready;
+
+    // Copied from the claiming worker; only read by the stream thread while busy
+    private final Mat mask = new Mat();
+    private final Rect window = new Rect();
+    private int frameWidth;
+    private int frameHeight;
+    private int candidateCount;
+    private int[] candidateBoxes = new int[0];
+    private boolean valid;
+    private final int[] box = new int[4];
+    private double degreeOffset;
+    private double currentDistance;
+
+    private final Mat canvas = new Mat();
+    private final Mat scaledMask = new Mat();
+    private final Size scaledSize = new Size();
+    private final Point corner1 = new Point();
+    private final Point corner2 = new Point();
+
+    /**
+     * Starts the stream and its thread.
+     *
+     * @param name the name of the stream, as listed by the dashboard.
+     * @param width the width of the streamed image, in px.
+     * @param height the height of the streamed image, in px.
+     * @param fps how many frames per second are streamed at most.
+     */
+    public DebugStream(String name, int width, int height, double fps) {
+        this.source = CameraServer.getInstance().putVideo(name, width, height);
+        this.width = width;
+        this.height = height;
+        this.periodNanos = (long) (1e9 / fps);
+        canvas.create(height, width, CvType.CV_8UC3);
+        Thread thread = new Thread(this::run, "DebugStream " + name);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Hands a processed frame to the stream if it is time for the next debug frame and a client
+     * is connected; otherwise returns at once. Called by workers, right after the frame's target
+     * has been computed.
+     *
+     * @param pipeline the pipeline that just processed the frame.
+     * @param result the frame's result.
+     */
+    public void offer(RooPipeline pipeline, TargetResult result) {
+        long now = System.nanoTime();
+        if (now < nextFrameNanos || !source.isEnabled() || !busy.compareAndSet(false, true)) {
+            return;
+        }
+        nextFrameNanos = now + periodNanos;
+        pipeline.mask().copyTo(mask);
+        frameWidth = pipeline.frameWidth();
+        frameHeight = pipeline.frameHeight();
+        if (pipeline.windowed()) {
+            pipeline.window(window);
+        } else {
+            window.x = 0;
+            window.y = 0;
+            window.width = frameWidth;
+            window.height = frameHeight;
+        }
+        candidateCount = result.candidateCount;
+        if (candidateBoxes.length < 4 * candidateCount) {
+            candidateBoxes = new int[result.frameCandidateBoxes.length];
+        }
+        // Drawn over the mask, so in its pixels rather than lens-corrected
+        System.arraycopy(result.frameCandidateBoxes, 0, candidateBoxes, 0, 4 * candidateCount);
+        valid = result.valid;
+        System.arraycopy(result.frameBox, 0, box, 0, 4);
+        degreeOffset = result.degreeOffset;
+        currentDistance = result.currentDistance;
+        synchronized (this) {
+            ready = true;
+            notifyAll();
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                synchronized (this) {
+                    while (!ready) {
+                        wait();
+                    }
+                    ready = false;
+                }
+                try {
+                    draw();
+                    source.putFrame(canvas);
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to draw debug frame.");
+                    e.printStackTrace();
+                } finally {
+                    busy.set(false);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Draws the mask where it was found in the frame, scaled to the stream size, with the boxes
+     * and offsets on top.
+     */
+    private void draw() {
+        double sx = width / (double) frameWidth;
+        double sy = height / (double) frameHeight;
+        canvas.setTo(BLACK);
+        int x = (int) (window.x * sx);
+        int y = (int) (window.y * sy);
+        int w = Math.max(1, Math.min(width - x, (int) Math.round(window.width * sx)));
+        int h = Math.max(1, Math.min(height - y, (int) Math.round(window.height * sy)));
+        scaledSize.width = w;
+        scaledSize.height = h;
+        Imgproc.resize(mask, scaledMask, scaledSize, 0, 0, Imgproc.INTER_NEAREST);
+        Mat region = canvas.submat(y, y + h, x, x + w);
+        Imgproc.cvtColor(scaledMask, region, Imgproc.COLOR_GRAY2BGR);
+        region.release();
+        if (w < width || h < height) {
+            drawBox(window.x, window.y, window.width, window.height, sx, sy, WINDOW_COLOR);
+        }
+
+        for (int i = 0; i < candidateCount; i++) {
+            drawBox(candidateBoxes[4 * i], candidateBoxes[4 * i + 1], candidateBoxes[4 * i + 2],
+                    candidateBoxes[4 * i + 3], sx, sy, CANDIDATE_COLOR);
+        }
+        if (valid) {
+            drawBox(box[0], box[1], box[2], box[3], sx, sy, TARGET_COLOR);
+            corner1.x = 4;
+            corner1.y = height - 6;
+            Imgproc.putText(canvas, String.format("%.1f deg  %.0f in", degreeOffset, currentDistance),
+                    corner1, Core.FONT_HERSHEY_SIMPLEX, 0.4, TARGET_COLOR);
+        }
+    }
+
+    private void drawBox(int x, int y, int w, int h, double sx, double sy, Scalar color) {
+        corner1.x = x * sx;
+        corner1.y = y * sy;
+        corner2.x = (x + w) * sx;
+        corner2.y = (y + h) * sy;
+        Imgproc.rectangle(canvas, corner1, corner2, color);
+    }
+}
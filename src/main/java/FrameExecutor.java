@@ -0,0 +1,357 @@
+import edu.wpi.cscore.VideoMode;
+import edu.wpi.first.networktables.NetworkTablesJNI;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Processes one camera's frames on several cores.
+ *
+ * <p>A capture thread grabs frames into a bounded ring of preallocated Mats. Workers of the
+ * {@link ProcessorScheduler} take frames from the ring with {@link #processNext}, run them through
+ * one of this camera's pipelines and compute a {@link TargetResult}. Results are handed to the
+ * publisher in sequence order: a result that finishes after a newer frame's result has already
+ * been published is stale and dropped.
+ *
+ * <p>When every slot of the ring is waiting for a worker, the capture thread either reuses the
+ * oldest waiting frame ({@link QueuePolicy#DROP_OLDEST}) or waits for a worker to free one
+ * ({@link QueuePolicy#BLOCK}), in which case the camera's newer frames are skipped instead.
+ */
+public class FrameExecutor {
+    /**
+     * What the capture thread does when no frame slot is free.
+     */
+    public enum QueuePolicy {
+        DROP_OLDEST, BLOCK;
+
+        /**
+         * Parses a policy name as written in <code>frc.json</code>, e.g. "drop oldest".
+         */
+        public static QueuePolicy parse(String name) {
+            return valueOf(name.trim().toUpperCase().replace(' ', '_').replace('-', '_'));
+        }
+    }
+
+    /**
+     * A preallocated frame and the bookkeeping that travels with it through the ring.
+     */
+    private static final class FrameSlot {
+        final Mat frame;
+        long sequence;
+        long captureTime;
+
+        FrameSlot(VideoMode mode) {
+            frame = mode != null && mode.width > 0 && mode.height > 0
+                    ? new Mat(mode.height, mode.width, CvType.CV_8UC3) : new Mat();
+        }
+    }
+
+    /**
+     * A pipeline and the result it fills, used by one worker at a time.
+     */
+    private static final class PipelineContext {
+        final RooPipeline pipeline;
+        final TargetResult result = new TargetResult();
+
+        PipelineContext(RooPipeline pipeline) {
+            this.pipeline = pipeline;
+        }
+    }
+
+    private static final int FAILURE_REPORT_INTERVAL = 100;
+
+    private final FrameSource frameSource;
+    private final int maxWorkers;
+    private final QueuePolicy policy;
+    private final VisionMetrics metrics;
+    private final BiConsumer<RooPipeline, TargetResult> analyzer;
+    private final Consumer<TargetResult> publisher;
+
+    private final ArrayBlockingQueue<FrameSlot> freeSlots;
+    private final ArrayBlockingQueue<FrameSlot> pendingSlots;
+    private final ArrayBlockingQueue<PipelineContext> pipelines;
+    private final long frameIntervalMicros;
+    private final AtomicInteger framesInFlight = new AtomicInteger();
+    private final AtomicLong failedFrames = new AtomicLong();
+    private Runnable onFinished;
+    private FrameRecorder recorder;
+    private volatile Runnable frameListener;
+    private volatile int frameSkip;
+
+    private final Object publishLock = new Object();
+    private long lastPublishedSequence;
+
+    /**
+     * @param frameSource the camera or recording to grab frames from.
+     * @param maxWorkers how many frames of this camera may be processed at once; one pipeline is
+     *                   created for each.
+     * @param queueDepth the number of grabbed frames that may wait for a free worker.
+     * @param policy what to do when all slots are waiting for a worker.
+     * @param metrics where grab, pipeline, publish and latency times are recorded.
+     * @param pipelineFactory creates the pipelines.
+     * @param analyzer fills a result from a pipeline that just processed a frame; runs on workers.
+     * @param publisher publishes results, called from one thread at a time in sequence order.
+     */
+    public FrameExecutor(FrameSource frameSource, int maxWorkers, int queueDepth, QueuePolicy policy,
+                         VisionMetrics metrics, Supplier<RooPipeline> pipelineFactory,
+                         BiConsumer<RooPipeline, TargetResult> analyzer,
+                         Consumer<TargetResult> publisher) {
+        this.frameSource = frameSource;
+        this.maxWorkers = Math.max(1, maxWorkers);
+        this.policy = policy;
+        this.metrics = metrics;
+        this.analyzer = analyzer;
+        this.publisher = publisher;
+
+        pipelines = new ArrayBlockingQueue<>(this.maxWorkers);
+        for (int i = 0; i < this.maxWorkers; i++) {
+            RooPipeline pipeline = pipelineFactory.get();
+            pipeline.setMetrics(metrics);
+            pipelines.add(new PipelineContext(pipeline));
+        }
+
+        // One slot per worker plus the queue, and at least one more so the capture thread can
+        // always reclaim a waiting frame under DROP_OLDEST
+        int slotCount = this.maxWorkers + Math.max(1, queueDepth);
+        VideoMode mode = frameSource.getVideoMode();
+        freeSlots = new ArrayBlockingQueue<>(slotCount);
+        pendingSlots = new ArrayBlockingQueue<>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            freeSlots.add(new FrameSlot(mode));
+        }
+        int fps = mode != null ? mode.fps : 0;
+        frameIntervalMicros = fps > 0 ? 1000000L / fps : 0;
+    }
+
+    /**
+     * Sets what to run once a recording has ended and every frame of it has been published.
+     */
+    public void setOnFinished(Runnable onFinished) {
+        this.onFinished = onFinished;
+    }
+
+    /**
+     * Keeps the processed frames and their results in a recorder. Must be set before
+     * {@link #start}.
+     */
+    public void setRecorder(FrameRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * Sets what to run whenever a new frame is waiting to be processed.
+     */
+    void setFrameListener(Runnable frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    /**
+     * Makes the capture thread throw away frames instead of queueing them.
+     *
+     * @param frameSkip how many frames to skip after each queued one, 0 to queue every frame.
+     */
+    public void setFrameSkip(int frameSkip) {
+        this.frameSkip = Math.max(0, frameSkip);
+    }
+
+    /**
+     * @return how many frames of this camera may be processed at once.
+     */
+    public int maxWorkers() {
+        return maxWorkers;
+    }
+
+    /**
+     * @return whether a grabbed frame is waiting to be processed.
+     */
+    public boolean hasPendingFrame() {
+        return !pendingSlots.isEmpty();
+    }
+
+    /**
+     * Starts the capture thread.
+     */
+    public void start() {
+        Thread thread = new Thread(this::runCapture, "FrameExecutor capture " + frameSource.getName());
+        thread.setDaemon(true);
+        thread.setPriority(Thread.NORM_PRIORITY + 1);
+        thread.start();
+    }
+
+    private void runCapture() {
+        long sequence = 0;
+        long lastCaptureTime = 0;
+        int skipped = 0;
+
+        try {
+            while (!Thread.interrupted()) {
+                FrameSlot slot = acquireSlot();
+                long grabStart = System.nanoTime();
+                long captureTime = frameSource.grabFrame(slot.frame);
+                long grabEnd = System.nanoTime();
+                if (captureTime == FrameSource.END_OF_STREAM) {
+                    freeSlots.put(slot);
+                    break;
+                }
+                if (captureTime == 0) {
+                    System.err.println("Failed to grab frame from " + frameSource.getName() + ": "
+                            + frameSource.getError());
+                    metrics.framesDropped(1);
+                    freeSlots.put(slot);
+                    continue;
+                }
+                metrics.record(VisionMetrics.Stage.GRAB, grabEnd - grabStart);
+                countSkippedFrames(lastCaptureTime, captureTime);
+                lastCaptureTime = captureTime;
+                if (skipped < frameSkip) {
+                    skipped++;
+                    metrics.framesDropped(1);
+                    freeSlots.put(slot);
+                    continue;
+                }
+                skipped = 0;
+
+                slot.sequence = ++sequence;
+                slot.captureTime = captureTime;
+                framesInFlight.incrementAndGet();
+                pendingSlots.put(slot);
+                Runnable listener = frameListener;
+                if (listener != null) {
+                    listener.run();
+                }
+            }
+
+            // Let the workers finish the last frames before reporting the end of the stream
+            while (framesInFlight.get() > 0) {
+                Thread.sleep(5);
+            }
+            synchronized (publishLock) {
+                if (onFinished != null) {
+                    onFinished.run();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Takes a slot to grab into, applying the queue policy when none is free.
+     */
+    private FrameSlot acquireSlot() throws InterruptedException {
+        FrameSlot slot = freeSlots.poll();
+        if (slot != null) {
+            return slot;
+        }
+        if (policy == QueuePolicy.DROP_OLDEST) {
+            slot = pendingSlots.poll();
+            if (slot != null) {
+                framesInFlight.decrementAndGet();
+                metrics.framesDropped(1);
+                return slot;
+            }
+        }
+        return freeSlots.take();
+    }
+
+    /**
+     * Processes and publishes the oldest waiting frame on the calling thread. The scheduler
+     * never calls this from more than {@link #maxWorkers} threads at once.
+     *
+     * @return false if there was no frame waiting.
+     */
+    public boolean processNext() throws InterruptedException {
+        FrameSlot slot = pendingSlots.poll();
+        if (slot == null) {
+            return false;
+        }
+        PipelineContext context = pipelines.take();
+        boolean slotFreed = false;
+        try {
+            RooPipeline pipeline = context.pipeline;
+            TargetResult result = context.result;
+            long processStart = System.nanoTime();
+            pipeline.process(slot.frame);
+            long processEnd = System.nanoTime();
+            metrics.record(VisionMetrics.Stage.PIPELINE, processEnd - processStart);
+
+            result.sequence = slot.sequence;
+            result.captureTime = slot.captureTime;
+            result.pipelineNanos = processEnd - processStart;
+            analyzer.accept(pipeline, result);
+            if (recorder != null) {
+                recorder.record(slot.frame, result);
+            }
+            freeSlots.put(slot);
+            slotFreed = true;
+
+            publishInOrder(result);
+        } finally {
+            // Also when the frame failed, or the capture thread would run out of slots and the end
+            // of a recording would never be reported. The ring always has room for its own slot.
+            if (!slotFreed) {
+                freeSlots.offer(slot);
+            }
+            framesInFlight.decrementAndGet();
+            pipelines.put(context);
+        }
+        return true;
+    }
+
+    /**
+     * Counts a frame whose processing threw. The first failure is printed in full, later ones
+     * only every {@value #FAILURE_REPORT_INTERVAL}th time, so a bad frame source cannot flood the
+     * log.
+     */
+    void frameFailed(RuntimeException e) {
+        metrics.frameFailed();
+        long count = failedFrames.incrementAndGet();
+        if (count == 1) {
+            System.err.println("Failed to process a frame from " + frameSource.getName());
+            e.printStackTrace();
+        } else if (count % FAILURE_REPORT_INTERVAL == 0) {
+            System.err.println("Failed to process " + count + " frames from "
+                    + frameSource.getName() + ", last: " + e);
+        }
+    }
+
+    /**
+     * Publishes a result unless a newer frame's result has already been published.
+     */
+    private void publishInOrder(TargetResult result) {
+        synchronized (publishLock) {
+            if (result.sequence <= lastPublishedSequence) {
+                metrics.framesDropped(1);
+                return;
+            }
+            lastPublishedSequence = result.sequence;
+            long publishStart = System.nanoTime();
+            publisher.accept(result);
+            metrics.record(VisionMetrics.Stage.PUBLISH, System.nanoTime() - publishStart);
+            // NetworkTables and cscore share a microsecond time base
+            metrics.record(VisionMetrics.Stage.LATENCY,
+                    (NetworkTablesJNI.now() - result.captureTime) * 1000);
+            metrics.frameProcessed();
+        }
+    }
+
+    /**
+     * Counts the frames the camera delivered between two grabs that were never grabbed, based on
+     * the gap between their capture times and the camera's configured frame rate.
+     */
+    private void countSkippedFrames(long lastCaptureTime, long captureTime) {
+        if (lastCaptureTime == 0 || frameIntervalMicros <= 0) {
+            return;
+        }
+        long missed = Math.round((captureTime - lastCaptureTime) / (double) frameIntervalMicros) - 1;
+        if (missed > 0) {
+            metrics.framesDropped(missed);
+        }
+    }
+}
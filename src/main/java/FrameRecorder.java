@@ -0,0 +1,258 @@
+import edu.wpi.cscore.VideoMode;
+import edu.wpi.first.networktables.EntryListenerFlags;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfInt;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the last seconds of one camera's processed frames in memory, with their results, and
+ * saves them as JPEGs on request, to find out why a shot was missed.
+ *
+ * <p>Every Nth frame is copied into a ring of frame buffers allocated up front, right after the
+ * worker that processed it has computed its result. Recording never waits or touches the disk,
+ * and only allocates when the video mode changes size. A dump is requested by setting
+ * <code>recorder/dump</code> in the vision table, or happens by itself whenever the FMS disables
+ * the robot, i.e. after auto and at the end of the match. The recorder's own low-priority thread
+ * then takes the whole ring for itself, so frames are not recorded while it encodes them, and
+ * hands the JPEGs and a <code>results.csv</code> to the {@link PersistenceService}.
+ */
+public class FrameRecorder {
+    /** FMSControlData bits, as in the driver station's control word. */
+    private static final int FMS_ENABLED = 0x01;
+    private static final int FMS_ATTACHED = 0x10;
+    private static final String CSV_HEADER = "sequence,capture_time_us,valid,degree_offset,"
+            + "inch_offset,current_distance,x,y,width,height,candidates,cached";
+
+    /**
+     * A recorded frame and its result, owned by whoever set <code>busy</code>.
+     */
+    private static final class Slot {
+        final AtomicBoolean busy = new AtomicBoolean();
+        final Mat frame;
+        long sequence;
+        long captureTime;
+        boolean valid;
+        double degreeOffset;
+        double inchOffset;
+        double currentDistance;
+        final int[] box = new int[4];
+        int candidateCount;
+        boolean cached;
+
+        Slot(VideoMode mode) {
+            frame = mode != null && mode.width > 0 && mode.height > 0
+                    ? new Mat(mode.height, mode.width, CvType.CV_8UC3) : new Mat();
+        }
+    }
+
+    private final String name;
+    private final Slot[] slots;
+    private final int every;
+    private final long windowMicros;
+    private final Path directory;
+    private final PersistenceService persistence;
+    private final MatOfInt encodeParams;
+    private final NetworkTableEntry dumpEntry;
+    private final NetworkTableEntry dumpsEntry;
+
+    private final AtomicLong offered = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private String requestedReason;
+    private boolean fmsEnabled;
+    private int dumps;
+
+    /**
+     * Allocates the ring and starts the dump thread.
+     *
+     * @param name the camera's name, used for the dump directories.
+     * @param mode the camera's video mode; its frame rate sizes the ring (30 fps if unknown).
+     * @param seconds how many seconds of frames to keep.
+     * @param every record one frame out of this many.
+     * @param quality the JPEG quality of dumped frames, 0 to 100.
+     * @param directory where each dump gets its own directory.
+     * @param persistence the service that saves files.
+     * @param visionTable the camera's vision table.
+     */
+    public FrameRecorder(String name, VideoMode mode, double seconds, int every, int quality,
+                         Path directory, PersistenceService persistence, NetworkTable visionTable) {
+        this.name = name;
+        this.every = Math.max(1, every);
+        this.windowMicros = (long) (seconds * 1e6);
+        this.directory = directory;
+        this.persistence = persistence;
+        this.encodeParams = new MatOfInt(Imgcodecs.IMWRITE_JPEG_QUALITY, quality);
+        int fps = mode != null && mode.fps > 0 ? mode.fps : 30;
+        slots = new Slot[Math.max(1, (int) Math.ceil(seconds * fps / this.every))];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(mode);
+        }
+
+        NetworkTable table = visionTable.getSubTable("recorder");
+        dumpEntry = table.getEntry("dump");
+        dumpsEntry = table.getEntry("dumps");
+        dumpEntry.setBoolean(false);
+        dumpsEntry.setDouble(0);
+        dumpEntry.addListener(event -> {
+            if (event.value.isBoolean() && event.value.getBoolean()) {
+                requestDump("requested");
+            }
+        }, EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+        visionTable.getInstance().getTable("FMSInfo").getEntry("FMSControlData").addListener(
+                event -> {
+                    if (!event.value.isDouble()) {
+                        return;
+                    }
+                    int control = (int) event.value.getDouble();
+                    boolean enabled = (control & FMS_ENABLED) != 0;
+                    if (fmsEnabled && !enabled && (control & FMS_ATTACHED) != 0) {
+                        requestDump("disabled");
+                    }
+                    fmsEnabled = enabled;
+                }, EntryListenerFlags.kImmediate | EntryListenerFlags.kNew
+                        | EntryListenerFlags.kUpdate);
+
+        Thread thread = new Thread(this::run, "FrameRecorder " + name);
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Records a processed frame, unless it is not one of every Nth or a dump is in progress.
+     * Called by workers once the frame's result is computed; safe from several at once.
+     *
+     * @param frame the frame the pipeline processed.
+     * @param result the frame's result.
+     */
+    public void record(Mat frame, TargetResult result) {
+        if (offered.getAndIncrement() % every != 0) {
+            return;
+        }
+        Slot slot = slots[(int) (written.getAndIncrement() % slots.length)];
+        // Taken by the dump thread, or still being written by a slower worker
+        if (!slot.busy.compareAndSet(false, true)) {
+            return;
+        }
+        frame.copyTo(slot.frame);
+        slot.sequence = result.sequence;
+        slot.captureTime = result.captureTime;
+        slot.valid = result.valid;
+        slot.degreeOffset = result.degreeOffset;
+        slot.inchOffset = result.inchOffset;
+        slot.currentDistance = result.currentDistance;
+        // In the saved frame's own pixels, whereas box may have been undistorted
+        System.arraycopy(result.frameBox, 0, slot.box, 0, 4);
+        slot.candidateCount = result.candidateCount;
+        slot.cached = result.cached;
+        slot.busy.set(false);
+    }
+
+    /**
+     * Asks the dump thread to save the ring. Requests made while a dump is waiting to start are
+     * merged into it.
+     *
+     * @param reason a word for the dump's directory name.
+     */
+    public void requestDump(String reason) {
+        synchronized (this) {
+            if (requestedReason == null) {
+                requestedReason = reason;
+                notifyAll();
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                String reason;
+                synchronized (this) {
+                    while (requestedReason == null) {
+                        wait();
+                    }
+                    reason = requestedReason;
+                    requestedReason = null;
+                }
+                try {
+                    dump(reason);
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to dump recorded frames of " + name);
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void dump(String reason) {
+        // Take every slot, waiting out workers still copying into one
+        for (Slot slot : slots) {
+            while (!slot.busy.compareAndSet(false, true)) {
+                Thread.onSpinWait();
+            }
+        }
+        int saved = 0;
+        Path target = directory.resolve(name).resolve(
+                new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "_" + reason);
+        try {
+            Slot[] ordered = slots.clone();
+            Arrays.sort(ordered, Comparator.comparingLong(slot -> slot.sequence));
+            long newest = ordered[ordered.length - 1].captureTime;
+            StringBuilder csv = new StringBuilder(CSV_HEADER).append('\n');
+            MatOfByte jpeg = new MatOfByte();
+            for (Slot slot : ordered) {
+                if (slot.sequence == 0 || slot.captureTime < newest - windowMicros
+                        || !Imgcodecs.imencode(".jpg", slot.frame, jpeg, encodeParams)) {
+                    continue;
+                }
+                persistence.write(target.resolve(String.format("frame_%06d.jpg", slot.sequence)),
+                        jpeg.toArray());
+                appendCsv(csv, slot);
+                saved++;
+            }
+            jpeg.release();
+            if (saved > 0) {
+                persistence.write(target.resolve("results.csv"), csv.toString());
+            }
+        } finally {
+            for (Slot slot : slots) {
+                slot.busy.set(false);
+            }
+        }
+        dumpsEntry.setDouble(++dumps);
+        dumpEntry.setBoolean(false);
+        System.out.println("Saving " + saved + " recorded frames of " + name + " to " + target);
+    }
+
+    private static void appendCsv(StringBuilder csv, Slot slot) {
+        csv.append(slot.sequence).append(',')
+                .append(slot.captureTime).append(',')
+                .append(slot.valid ? 1 : 0).append(',');
+        if (slot.valid) {
+            csv.append(slot.degreeOffset).append(',')
+                    .append(slot.inchOffset).append(',')
+                    .append(slot.currentDistance).append(',')
+                    .append(slot.box[0]).append(',')
+                    .append(slot.box[1]).append(',')
+                    .append(slot.box[2]).append(',')
+                    .append(slot.box[3]).append(',');
+        } else {
+            csv.append(",,,,,,,");
+        }
+        csv.append(slot.candidateCount).append(',')
+                .append(slot.cached ? 1 : 0).append('\n');
+    }
+}
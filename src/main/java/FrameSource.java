@@ -0,0 +1,36 @@
+import edu.wpi.cscore.VideoMode;
+import org.opencv.core.Mat;
+
+/**
+ * Where a {@link FrameExecutor} gets its frames: a live camera or a recording.
+ */
+public interface FrameSource {
+    /**
+     * Returned by {@link #grabFrame} when a recording has no more frames.
+     */
+    long END_OF_STREAM = -1;
+
+    /**
+     * Waits for the next frame and copies it into <code>frame</code>.
+     *
+     * @param frame the BGR image to overwrite.
+     * @return the capture time in the NetworkTables/cscore time base in us, 0 on error (see
+     * {@link #getError}) or {@link #END_OF_STREAM}.
+     */
+    long grabFrame(Mat frame);
+
+    /**
+     * @return the reason the last {@link #grabFrame} failed.
+     */
+    String getError();
+
+    /**
+     * @return the expected size and frame rate of the frames, or null if unknown.
+     */
+    VideoMode getVideoMode();
+
+    /**
+     * @return a name for log messages.
+     */
+    String getName();
+}
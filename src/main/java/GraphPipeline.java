@@ -0,0 +1,487 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A {@link GripProject} compiled into a fixed sequence of stages.
+ *
+ * <p>Every stage takes its output from the pipeline's {@link MatPool.FrameBuffers}, which hands
+ * the same native buffers back from frame to frame of the same size, and the kernel sizes and
+ * threshold bounds are only rebuilt when the parameters change, so a frame allocates nothing but
+ * the contours themselves. Stages tied to the tunable parameters read them
+ * from the snapshot taken at the start of the frame; the others use the values from the file.
+ */
+class GraphPipeline implements TargetPipeline {
+    private static final double[] OPEN_SOLIDITY = {0, 100};
+
+    /**
+     * An image step, writing into the output it was given for the frame.
+     */
+    private abstract static class ImageStage {
+        Mat output = new Mat();
+        final VisionMetrics.Stage timing;
+
+        ImageStage(VisionMetrics.Stage timing) {
+            this.timing = timing;
+        }
+
+        /**
+         * @return the type of the output for an input of the given type.
+         */
+        int outputType(Mat input) {
+            return input.type();
+        }
+
+        abstract void apply(Mat input, PipelineParameters params);
+    }
+
+    private static final class BlurStage extends ImageStage {
+        private final boolean tuned;
+        private final GripPipeline.BlurType fileType;
+        private final double fileRadius;
+        private final Size kernel = new Size();
+        private final Size gaussianKernel = new Size();
+        private double kernelRadius = Double.NaN;
+
+        BlurStage(GripProject.Step step, boolean tuned) {
+            super(VisionMetrics.Stage.BLUR);
+            this.tuned = tuned;
+            this.fileType = GripProject.blurType(step.text(1, "BOX"));
+            this.fileRadius = step.number(2, 0);
+        }
+
+        @Override
+        void apply(Mat input, PipelineParameters params) {
+            GripPipeline.BlurType type = tuned ? params.blurType : fileType;
+            double doubleRadius = tuned ? params.get(PipelineParameters.Value.BLUR_RADIUS) : fileRadius;
+            int radius = (int) (doubleRadius + 0.5);
+            if (doubleRadius != kernelRadius) {
+                kernelRadius = doubleRadius;
+                kernel.width = kernel.height = 2 * radius + 1;
+                gaussianKernel.width = gaussianKernel.height = 6 * radius + 1;
+            }
+            switch (type) {
+                case BOX:
+                    Imgproc.blur(input, output, kernel);
+                    break;
+                case GAUSSIAN:
+                    Imgproc.GaussianBlur(input, output, gaussianKernel, radius);
+                    break;
+                case MEDIAN:
+                    Imgproc.medianBlur(input, output, 2 * radius + 1);
+                    break;
+                case BILATERAL:
+                    Imgproc.bilateralFilter(input, output, -1, radius, radius);
+                    break;
+            }
+        }
+    }
+
+    private static final class ThresholdStage extends ImageStage {
+        private final GripProject.Kind kind;
+        private final boolean tuned;
+        private final double[] first;
+        private final double[] second;
+        private final double[] third;
+        private final Scalar lower = new Scalar(0, 0, 0);
+        private final Scalar upper = new Scalar(0, 0, 0);
+        private double[] boundFirst;
+        private double[] boundSecond;
+        private double[] boundThird;
+        private final MatPool.FrameBuffers buffers;
+        LutHsvThreshold lutThreshold;
+
+        ThresholdStage(GripProject.Step step, boolean tuned, MatPool.FrameBuffers buffers) {
+            super(VisionMetrics.Stage.HSV_THRESHOLD);
+            this.kind = step.kind;
+            this.tuned = tuned;
+            this.buffers = buffers;
+            double max = kind == GripProject.Kind.RGB_THRESHOLD ? 255 : 180;
+            this.first = step.range(1, 0, max);
+            this.second = step.range(2, 0, 255);
+            this.third = step.range(3, 0, 255);
+        }
+
+        @Override
+        int outputType(Mat input) {
+            return CvType.CV_8UC1;
+        }
+
+        @Override
+        void apply(Mat input, PipelineParameters params) {
+            threshold(input, params, output);
+        }
+
+        void threshold(Mat input, PipelineParameters params, Mat output) {
+            double[] a = tuned ? params.hue : first;
+            double[] b = tuned ? params.saturation : second;
+            double[] c = tuned ? params.value : third;
+            if (lutThreshold != null && kind == GripProject.Kind.HSV_THRESHOLD) {
+                lutThreshold.apply(input, a, b, c, output);
+                return;
+            }
+            if (a != boundFirst || b != boundSecond || c != boundThird) {
+                boundFirst = a;
+                boundSecond = b;
+                boundThird = c;
+                setBounds(a, b, c);
+            }
+            // Converted into a buffer of its own, or output would be reallocated twice per frame
+            Mat converted;
+            switch (kind) {
+                case HSV_THRESHOLD:
+                    converted = buffers.acquire(input.rows(), input.cols(), input.type());
+                    Imgproc.cvtColor(input, converted, Imgproc.COLOR_BGR2HSV);
+                    Core.inRange(converted, lower, upper, output);
+                    break;
+                case HSL_THRESHOLD:
+                    converted = buffers.acquire(input.rows(), input.cols(), input.type());
+                    Imgproc.cvtColor(input, converted, Imgproc.COLOR_BGR2HLS);
+                    Core.inRange(converted, lower, upper, output);
+                    break;
+                default:
+                    // Compared in BGR order instead of converting the frame to RGB first
+                    Core.inRange(input, lower, upper, output);
+                    break;
+            }
+        }
+
+        private void setBounds(double[] a, double[] b, double[] c) {
+            double[] low;
+            double[] high;
+            switch (kind) {
+                case HSL_THRESHOLD:
+                    // Hue, saturation, luminance in GRIP; hue, luminance, saturation in OpenCV
+                    low = new double[]{a[0], c[0], b[0]};
+                    high = new double[]{a[1], c[1], b[1]};
+                    break;
+                case RGB_THRESHOLD:
+                    low = new double[]{c[0], b[0], a[0]};
+                    high = new double[]{c[1], b[1], a[1]};
+                    break;
+                default:
+                    low = new double[]{a[0], b[0], c[0]};
+                    high = new double[]{a[1], b[1], c[1]};
+                    break;
+            }
+            lower.set(low);
+            upper.set(high);
+        }
+    }
+
+    private static final class MorphStage extends ImageStage {
+        private final int operation;
+        private final int iterations;
+        private final int borderType;
+        private final Scalar borderValue;
+        // GRIP's kernel socket takes a connection, never a saved value; empty means 3x3
+        private final Mat kernel = new Mat();
+        private final Point anchor = new Point(-1, -1);
+
+        MorphStage(GripProject.Step step) {
+            super(null);
+            switch (step.kind) {
+                case ERODE:
+                    operation = Imgproc.MORPH_ERODE;
+                    break;
+                case DILATE:
+                    operation = Imgproc.MORPH_DILATE;
+                    break;
+                case OPEN:
+                    operation = Imgproc.MORPH_OPEN;
+                    break;
+                default:
+                    operation = Imgproc.MORPH_CLOSE;
+                    break;
+            }
+            this.iterations = (int) step.number(GripProject.MORPH_ITERATIONS, 1);
+            this.borderType = borderType(step.text(GripProject.MORPH_BORDER_TYPE,
+                    "BORDER_CONSTANT"));
+            this.borderValue = new Scalar(step.scalar(GripProject.MORPH_BORDER_VALUE,
+                    GripProject.DEFAULT_BORDER_VALUE));
+        }
+
+        @Override
+        void apply(Mat input, PipelineParameters params) {
+            Imgproc.morphologyEx(input, output, operation, kernel, anchor, iterations, borderType,
+                    borderValue);
+        }
+    }
+
+    /**
+     * A Filter Contours step, with its own filter and output list.
+     */
+    private static final class FilterStage {
+        final boolean tuned;
+        final double[] bounds;
+        final double[] solidity;
+        final ContourFilter filter = new ContourFilter();
+        /** The accepted contours; empty when blobs are filtered, see {@link #applyComponents}. */
+        final ArrayList<MatOfPoint> output = new ArrayList<>();
+
+        FilterStage(GripProject.Step step, boolean tuned) {
+            this.tuned = tuned;
+            if (step == null) {
+                bounds = new double[]{0, 0, 0, Double.MAX_VALUE, 0, Double.MAX_VALUE,
+                        Double.MAX_VALUE, 0, 0, Double.MAX_VALUE};
+                solidity = OPEN_SOLIDITY;
+            } else {
+                bounds = new double[]{step.number(1, 0), step.number(2, 0), step.number(3, 0),
+                        step.number(4, 1000), step.number(5, 0), step.number(6, 1000),
+                        step.number(8, 1000000), step.number(9, 0), step.number(10, 0),
+                        step.number(11, 1000)};
+                solidity = step.range(7, 0, 100);
+            }
+        }
+
+        void apply(List<MatOfPoint> input, PipelineParameters params) {
+            setBounds(params);
+            filter.filter(input, output);
+        }
+
+        /**
+         * Filters the blobs labelled by {@link ContourFilter#label} instead of contours. Only the
+         * filter holds what was accepted, which is why no further step may follow.
+         */
+        void applyComponents(Point offset, List<MatOfPoint> traced, PipelineParameters params) {
+            setBounds(params);
+            output.clear();
+            filter.filterComponents((int) offset.x, (int) offset.y, traced);
+        }
+
+        private void setBounds(PipelineParameters params) {
+            if (tuned) {
+                filter.setBounds(params.get(PipelineParameters.Value.MIN_AREA),
+                        params.get(PipelineParameters.Value.MIN_PERIMETER),
+                        params.get(PipelineParameters.Value.MIN_WIDTH),
+                        params.get(PipelineParameters.Value.MAX_WIDTH),
+                        params.get(PipelineParameters.Value.MIN_HEIGHT),
+                        params.get(PipelineParameters.Value.MAX_HEIGHT), params.solidity,
+                        params.get(PipelineParameters.Value.MAX_VERTICES),
+                        params.get(PipelineParameters.Value.MIN_VERTICES),
+                        params.get(PipelineParameters.Value.MIN_RATIO),
+                        params.get(PipelineParameters.Value.MAX_RATIO));
+            } else {
+                filter.setBounds(bounds[0], bounds[1], bounds[2], bounds[3], bounds[4], bounds[5],
+                        solidity, bounds[6], bounds[7], bounds[8], bounds[9]);
+            }
+        }
+    }
+
+    private final ImageStage[] imageStages;
+    private final ThresholdStage[] thresholdStages;
+    private final FilterStage[] filterStages;
+    private final MatPool.FrameBuffers buffers = new MatPool.FrameBuffers();
+    private final ArrayList<MatOfPoint> contours = new ArrayList<>();
+    private final Mat hierarchy = new Mat();
+    private Mat mask;
+    private ContourFilter.Detection detection = ContourFilter.Detection.CONTOURS;
+    private final Point contourOffset = new Point();
+    private Supplier<PipelineParameters> parameters;
+    private VisionMetrics metrics;
+
+    static {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+    }
+
+    /**
+     * @param chain the steps to run, as loaded by {@link GripProject}.
+     * @param defaults the parameters to use until {@link #setParameters} is called.
+     */
+    GraphPipeline(List<GripProject.Step> chain, PipelineParameters defaults) {
+        this.parameters = () -> defaults;
+        List<ImageStage> images = new ArrayList<>();
+        List<ThresholdStage> thresholds = new ArrayList<>();
+        List<FilterStage> filters = new ArrayList<>();
+        boolean blurTuned = false;
+        boolean thresholdTuned = false;
+        for (GripProject.Step step : chain) {
+            switch (step.kind) {
+                case BLUR:
+                    images.add(new BlurStage(step, !blurTuned));
+                    blurTuned = true;
+                    break;
+                case HSV_THRESHOLD:
+                case HSL_THRESHOLD:
+                case RGB_THRESHOLD:
+                    boolean tuned = step.kind == GripProject.Kind.HSV_THRESHOLD && !thresholdTuned;
+                    thresholdTuned |= tuned;
+                    ThresholdStage threshold = new ThresholdStage(step, tuned, buffers);
+                    images.add(threshold);
+                    thresholds.add(threshold);
+                    break;
+                case FIND_CONTOURS:
+                    // Always tuned; its only setting is in the parameters
+                    break;
+                case FILTER_CONTOURS:
+                    filters.add(new FilterStage(step, filters.isEmpty()));
+                    break;
+                default:
+                    images.add(new MorphStage(step));
+                    break;
+            }
+        }
+        if (filters.isEmpty()) {
+            // Keeps the boxes and areas of every contour for RooProcessor
+            filters.add(new FilterStage(null, false));
+        }
+        this.imageStages = images.toArray(new ImageStage[0]);
+        this.thresholdStages = thresholds.toArray(new ThresholdStage[0]);
+        this.filterStages = filters.toArray(new FilterStage[0]);
+    }
+
+    @Override
+    public void process(Mat source0) {
+        PipelineParameters params = parameters.get();
+        long stepStart = System.nanoTime();
+        long stepEnd;
+        // The last frame's outputs are done with
+        buffers.recycle();
+
+        Mat image = source0;
+        for (ImageStage stage : imageStages) {
+            image = apply(stage, image, params);
+            stepEnd = System.nanoTime();
+            record(stage.timing, stepStart, stepEnd);
+            stepStart = stepEnd;
+        }
+
+        mask = image;
+        // The previous frame's contours are done with; free them now rather than at finalization
+        MatPool.releaseAdopted(contours);
+        boolean components = detection == ContourFilter.Detection.COMPONENTS;
+        if (components) {
+            filterStages[0].filter.label(image);
+        } else {
+            int mode = params.externalOnly ? Imgproc.RETR_EXTERNAL : Imgproc.RETR_LIST;
+            Imgproc.findContours(image, contours, hierarchy, mode, Imgproc.CHAIN_APPROX_SIMPLE,
+                    contourOffset);
+            MatPool.adoptAll(contours);
+        }
+        stepEnd = System.nanoTime();
+        record(VisionMetrics.Stage.FIND_CONTOURS, stepStart, stepEnd);
+        stepStart = stepEnd;
+
+        List<MatOfPoint> input = contours;
+        for (int i = 0; i < filterStages.length; i++) {
+            FilterStage stage = filterStages[i];
+            if (components && i == 0) {
+                stage.applyComponents(contourOffset, contours, params);
+                MatPool.adoptAll(contours);
+            } else {
+                stage.apply(input, params);
+            }
+            input = stage.output;
+        }
+        record(VisionMetrics.Stage.FILTER_CONTOURS, stepStart, System.nanoTime());
+        if (metrics != null) {
+            metrics.filterAllocatedBytes(contourFilter().allocatedBytesLastFrame());
+        }
+    }
+
+    @Override
+    public Mat mask() {
+        return mask;
+    }
+
+    /**
+     * Runs the first threshold step alone, or every image step if the project has none. The
+     * outputs of the last frame are released.
+     */
+    @Override
+    public void threshold(Mat input, PipelineParameters params, Mat out) {
+        buffers.recycle();
+        if (thresholdStages.length > 0) {
+            thresholdStages[0].threshold(input, params, out);
+            return;
+        }
+        Mat image = input;
+        for (ImageStage stage : imageStages) {
+            image = apply(stage, image, params);
+        }
+        image.copyTo(out);
+    }
+
+    private Mat apply(ImageStage stage, Mat input, PipelineParameters params) {
+        stage.output = buffers.acquire(input.rows(), input.cols(), stage.outputType(input));
+        stage.apply(input, params);
+        return stage.output;
+    }
+
+    @Override
+    public ContourFilter contourFilter() {
+        return filterStages[filterStages.length - 1].filter;
+    }
+
+    @Override
+    public void setContourOffset(int x, int y) {
+        contourOffset.x = x;
+        contourOffset.y = y;
+    }
+
+    @Override
+    public void setMetrics(VisionMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void setParameters(Supplier<PipelineParameters> parameters) {
+        this.parameters = parameters;
+    }
+
+    /**
+     * Blobs can only replace contours for a single Filter Contours step, as a further step would
+     * need every contour of the blobs the first one accepted. Projects with several keep finding
+     * contours.
+     */
+    @Override
+    public void setDetection(ContourFilter.Detection detection) {
+        if (detection == ContourFilter.Detection.COMPONENTS && filterStages.length > 1) {
+            System.err.println("Blob detection needs a single Filter Contours step; "
+                    + "finding contours instead.");
+            return;
+        }
+        this.detection = detection;
+    }
+
+    @Override
+    public void setLutThreshold(LutHsvThreshold lutThreshold) {
+        for (ThresholdStage stage : thresholdStages) {
+            stage.lutThreshold = lutThreshold;
+        }
+    }
+
+    private void record(VisionMetrics.Stage stage, long start, long end) {
+        if (metrics != null && stage != null) {
+            metrics.record(stage, end - start);
+        }
+    }
+
+    private static int borderType(String name) {
+        switch (name) {
+            case "BORDER_REPLICATE":
+                return Core.BORDER_REPLICATE;
+            case "BORDER_REFLECT":
+                return Core.BORDER_REFLECT;
+            case "BORDER_WRAP":
+                return Core.BORDER_WRAP;
+            case "BORDER_REFLECT_101":
+            case "BORDER_REFLECT101":
+            case "BORDER_DEFAULT":
+                return Core.BORDER_REFLECT_101;
+            case "BORDER_ISOLATED":
+                return Core.BORDER_ISOLATED;
+            default:
+                return Core.BORDER_CONSTANT;
+        }
+    }
+}
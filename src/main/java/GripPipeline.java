@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.HashMap;
+import java.util.function.Supplier;
 
 import edu.wpi.first.vision.VisionPipeline;
 
@@ -23,7 +24,7 @@ import org.opencv.objdetect.*;
 *
 * @author GRIP
 */
-public class GripPipeline implements VisionPipeline {
+public class GripPipeline implements TargetPipeline {
 
 	//Outputs
 	private Mat blurOutput = new Mat();
@@ -31,6 +32,20 @@ public class GripPipeline implements VisionPipeline {
 	private ArrayList<MatOfPoint> findContoursOutput = new ArrayList<MatOfPoint>();
 	private ArrayList<MatOfPoint> filterContoursOutput = new ArrayList<MatOfPoint>();
 
+	// Reused every frame instead of leaving native memory to the finalizer
+	private final MatPool.FrameBuffers buffers = new MatPool.FrameBuffers();
+	private final Mat hierarchy = new Mat();
+	private final Size blurKernel = new Size();
+	private final Scalar hsvLower = new Scalar(0, 0, 0);
+	private final Scalar hsvUpper = new Scalar(0, 0, 0);
+
+	private final ContourFilter contourFilter = new ContourFilter();
+	private VisionMetrics metrics;
+	private final Point contourOffset = new Point();
+	private LutHsvThreshold lutThreshold;
+	private ContourFilter.Detection detection = ContourFilter.Detection.CONTOURS;
+	private Supplier<PipelineParameters> parameters = () -> PipelineParameters.DEFAULTS;
+
 	static {
 		System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
 	}
@@ -39,39 +54,143 @@ public class GripPipeline implements VisionPipeline {
 	 * This is the primary method that runs the entire pipeline and updates the outputs.
 	 */
 	@Override	public void process(Mat source0) {
+		// One snapshot for the whole frame, however the parameters change meanwhile
+		PipelineParameters params = parameters.get();
+		long stepStart = System.nanoTime();
+		long stepEnd;
+		// The last frame's outputs are done with
+		buffers.recycle();
+
 		// Step Blur0:
 		Mat blurInput = source0;
-		BlurType blurType = BlurType.get("Box Blur");
-		double blurRadius = 0.9009009009008917;
+		BlurType blurType = params.blurType;
+		double blurRadius = params.get(PipelineParameters.Value.BLUR_RADIUS);
+		blurOutput = buffers.acquire(blurInput.rows(), blurInput.cols(), blurInput.type());
 		blur(blurInput, blurType, blurRadius, blurOutput);
+		stepEnd = System.nanoTime();
+		record(VisionMetrics.Stage.BLUR, stepStart, stepEnd);
+		stepStart = stepEnd;
 
 		// Step HSV_Threshold0:
 		Mat hsvThresholdInput = blurOutput;
-		double[] hsvThresholdHue = {49.152542372881356, 99.8464301640168};
-		double[] hsvThresholdSaturation = {91.24293785310735, 255.0};
-		double[] hsvThresholdValue = {168.08730134536438, 255.0};
+		double[] hsvThresholdHue = params.hue;
+		double[] hsvThresholdSaturation = params.saturation;
+		double[] hsvThresholdValue = params.value;
+		hsvThresholdOutput = buffers.acquire(hsvThresholdInput.rows(), hsvThresholdInput.cols(), CvType.CV_8UC1);
 		hsvThreshold(hsvThresholdInput, hsvThresholdHue, hsvThresholdSaturation, hsvThresholdValue, hsvThresholdOutput);
+		stepEnd = System.nanoTime();
+		record(VisionMetrics.Stage.HSV_THRESHOLD, stepStart, stepEnd);
+		stepStart = stepEnd;
 
 		// Step Find_Contours0:
 		Mat findContoursInput = hsvThresholdOutput;
-		boolean findContoursExternalOnly = false;
-		findContours(findContoursInput, findContoursExternalOnly, findContoursOutput);
+		boolean findContoursExternalOnly = params.externalOnly;
+		if (detection == ContourFilter.Detection.COMPONENTS) {
+			labelComponents(findContoursInput, findContoursOutput);
+		} else {
+			findContours(findContoursInput, findContoursExternalOnly, findContoursOutput);
+		}
+		stepEnd = System.nanoTime();
+		record(VisionMetrics.Stage.FIND_CONTOURS, stepStart, stepEnd);
+		stepStart = stepEnd;
 
 		// Step Filter_Contours0:
 		ArrayList<MatOfPoint> filterContoursContours = findContoursOutput;
-		double filterContoursMinArea = 200.0;
-		double filterContoursMinPerimeter = 10.0;
-		double filterContoursMinWidth = 0.0;
-		double filterContoursMaxWidth = 1500.0;
-		double filterContoursMinHeight = 10.0;
-		double filterContoursMaxHeight = 1000.0;
-		double[] filterContoursSolidity = {0.0, 100.0};
-		double filterContoursMaxVertices = 1000000.0;
-		double filterContoursMinVertices = 0.0;
-		double filterContoursMinRatio = 0.0;
-		double filterContoursMaxRatio = 10000.0;
+		double filterContoursMinArea = params.get(PipelineParameters.Value.MIN_AREA);
+		double filterContoursMinPerimeter = params.get(PipelineParameters.Value.MIN_PERIMETER);
+		double filterContoursMinWidth = params.get(PipelineParameters.Value.MIN_WIDTH);
+		double filterContoursMaxWidth = params.get(PipelineParameters.Value.MAX_WIDTH);
+		double filterContoursMinHeight = params.get(PipelineParameters.Value.MIN_HEIGHT);
+		double filterContoursMaxHeight = params.get(PipelineParameters.Value.MAX_HEIGHT);
+		double[] filterContoursSolidity = params.solidity;
+		double filterContoursMaxVertices = params.get(PipelineParameters.Value.MAX_VERTICES);
+		double filterContoursMinVertices = params.get(PipelineParameters.Value.MIN_VERTICES);
+		double filterContoursMinRatio = params.get(PipelineParameters.Value.MIN_RATIO);
+		double filterContoursMaxRatio = params.get(PipelineParameters.Value.MAX_RATIO);
 		filterContours(filterContoursContours, filterContoursMinArea, filterContoursMinPerimeter, filterContoursMinWidth, filterContoursMaxWidth, filterContoursMinHeight, filterContoursMaxHeight, filterContoursSolidity, filterContoursMaxVertices, filterContoursMinVertices, filterContoursMinRatio, filterContoursMaxRatio, filterContoursOutput);
+		if (detection == ContourFilter.Detection.COMPONENTS) {
+			// Traced blobs are released with the contours at the next frame
+			MatPool.adoptAll(findContoursOutput);
+		}
+		record(VisionMetrics.Stage.FILTER_CONTOURS, stepStart, System.nanoTime());
+		if (metrics != null) {
+			metrics.filterAllocatedBytes(contourFilter.allocatedBytesLastFrame());
+		}
+
+	}
+
+	/**
+	 * @return the mask contours are found in, the output of HSV_Threshold.
+	 */
+	@Override
+	public Mat mask() {
+		return hsvThresholdOutput;
+	}
+
+	/**
+	 * Sets where every frame reads its thresholds and filter bounds from.
+	 * @param parameters the source of the current parameters, read once at the start of each frame.
+	 */
+	@Override
+	public void setParameters(Supplier<PipelineParameters> parameters) {
+		this.parameters = parameters;
+	}
+
+	/**
+	 * Runs only HSV_Threshold, without the blur. The outputs of the last frame are released.
+	 * @param input The image on which to perform the HSV threshold.
+	 * @param params the parameters holding the ranges.
+	 * @param out The image in which to store the output.
+	 */
+	@Override
+	public void threshold(Mat input, PipelineParameters params, Mat out) {
+		buffers.recycle();
+		hsvThreshold(input, params.hue, params.saturation, params.value, out);
+	}
+
+	/**
+	 * Selects how blobs are found in the mask.
+	 * @param detection CONTOURS for Find_Contours as generated, COMPONENTS to label blobs instead.
+	 */
+	@Override
+	public void setDetection(ContourFilter.Detection detection) {
+		this.detection = detection;
+	}
+
+	/**
+	 * Selects the implementation of HSV_Threshold.
+	 * @param lutThreshold the lookup-table threshold to use, or null for cvtColor and inRange.
+	 */
+	@Override
+	public void setLutThreshold(LutHsvThreshold lutThreshold) {
+		this.lutThreshold = lutThreshold;
+	}
+
+	/**
+	 * Sets the offset added to every contour point, so that contours found in a window of a
+	 * larger frame come out in that frame's coordinates.
+	 * @param x the x coordinate of the window in the frame.
+	 * @param y the y coordinate of the window in the frame.
+	 */
+	@Override
+	public void setContourOffset(int x, int y) {
+		contourOffset.x = x;
+		contourOffset.y = y;
+	}
+
+	/**
+	 * Sets where the duration of every step is recorded. Steps are not timed while this is null.
+	 * @param metrics the metrics of the camera this pipeline processes.
+	 */
+	@Override
+	public void setMetrics(VisionMetrics metrics) {
+		this.metrics = metrics;
+	}
 
+	private void record(VisionMetrics.Stage stage, long start, long end) {
+		if (metrics != null) {
+			metrics.record(stage, end - start);
+		}
 	}
 
 	/**
@@ -99,13 +218,24 @@ public class GripPipeline implements VisionPipeline {
 	}
 
 	/**
-	 * This method is a generated getter for the output of a Filter_Contours.
+	 * This method is a generated getter for the output of a Filter_Contours. Always empty with
+	 * COMPONENTS detection; the accepted blobs are in {@link #contourFilter()} instead.
 	 * @return ArrayList<MatOfPoint> output from Filter_Contours.
 	 */
 	public ArrayList<MatOfPoint> filterContoursOutput() {
 		return filterContoursOutput;
 	}
 
+	/**
+	 * This method is a getter for the engine behind Filter_Contours, which also holds the bounding
+	 * boxes, areas and allocation counters of the last frame.
+	 * @return ContourFilter used by Filter_Contours.
+	 */
+	@Override
+	public ContourFilter contourFilter() {
+		return contourFilter;
+	}
+
 
 	/**
 	 * An indication of which type of filter to use for a blur.
@@ -149,18 +279,20 @@ public class GripPipeline implements VisionPipeline {
 	 * @param doubleRadius The radius for the blur.
 	 * @param output The image in which to store the output.
 	 */
-	private void blur(Mat input, BlurType type, double doubleRadius,
+	void blur(Mat input, BlurType type, double doubleRadius,
 		Mat output) {
 		int radius = (int)(doubleRadius + 0.5);
 		int kernelSize;
 		switch(type){
 			case BOX:
 				kernelSize = 2 * radius + 1;
-				Imgproc.blur(input, output, new Size(kernelSize, kernelSize));
+				blurKernel.width = blurKernel.height = kernelSize;
+				Imgproc.blur(input, output, blurKernel);
 				break;
 			case GAUSSIAN:
 				kernelSize = 6 * radius + 1;
-				Imgproc.GaussianBlur(input,output, new Size(kernelSize, kernelSize), radius);
+				blurKernel.width = blurKernel.height = kernelSize;
+				Imgproc.GaussianBlur(input,output, blurKernel, radius);
 				break;
 			case MEDIAN:
 				kernelSize = 2 * radius + 1;
@@ -181,11 +313,22 @@ public class GripPipeline implements VisionPipeline {
 	 * @param val The min and max value
 	 * @param output The image in which to store the output.
 	 */
-	private void hsvThreshold(Mat input, double[] hue, double[] sat, double[] val,
+	void hsvThreshold(Mat input, double[] hue, double[] sat, double[] val,
 	    Mat out) {
-		Imgproc.cvtColor(input, out, Imgproc.COLOR_BGR2HSV);
-		Core.inRange(out, new Scalar(hue[0], sat[0], val[0]),
-			new Scalar(hue[1], sat[1], val[1]), out);
+		if (lutThreshold != null) {
+			lutThreshold.apply(input, hue, sat, val, out);
+			return;
+		}
+		// Converted into a buffer of its own, or out would be reallocated twice per frame
+		Mat hsv = buffers.acquire(input.rows(), input.cols(), CvType.CV_8UC3);
+		Imgproc.cvtColor(input, hsv, Imgproc.COLOR_BGR2HSV);
+		hsvLower.val[0] = hue[0];
+		hsvLower.val[1] = sat[0];
+		hsvLower.val[2] = val[0];
+		hsvUpper.val[0] = hue[1];
+		hsvUpper.val[1] = sat[1];
+		hsvUpper.val[2] = val[1];
+		Core.inRange(hsv, hsvLower, hsvUpper, out);
 	}
 
 	/**
@@ -195,10 +338,10 @@ public class GripPipeline implements VisionPipeline {
 	 * @param maskSize the size of the mask.
 	 * @param output The image in which to store the output.
 	 */
-	private void findContours(Mat input, boolean externalOnly,
+	void findContours(Mat input, boolean externalOnly,
 		List<MatOfPoint> contours) {
-		Mat hierarchy = new Mat();
-		contours.clear();
+		// The previous frame's contours are done with; free them now rather than at finalization
+		MatPool.releaseAdopted(contours);
 		int mode;
 		if (externalOnly) {
 			mode = Imgproc.RETR_EXTERNAL;
@@ -207,10 +350,22 @@ public class GripPipeline implements VisionPipeline {
 			mode = Imgproc.RETR_LIST;
 		}
 		int method = Imgproc.CHAIN_APPROX_SIMPLE;
-		Imgproc.findContours(input, contours, hierarchy, mode, method);
+		Imgproc.findContours(input, contours, hierarchy, mode, method, contourOffset);
+		MatPool.adoptAll(contours);
 	}
 
 
+	/**
+	 * Labels the blobs of a binary image for the COMPONENTS detection, instead of finding
+	 * their contours.
+	 * @param input The image on which to label blobs.
+	 * @param contours the previous frame's traced blobs, released and cleared.
+	 */
+	void labelComponents(Mat input, List<MatOfPoint> contours) {
+		MatPool.releaseAdopted(contours);
+		contourFilter.label(input);
+	}
+
 	/**
 	 * Filters out contours that do not meet certain criteria.
 	 * @param inputContours is the input list of contours
@@ -227,35 +382,19 @@ public class GripPipeline implements VisionPipeline {
 	 * @param minRatio minimum ratio of width to height
 	 * @param maxRatio maximum ratio of width to height
 	 */
-	private void filterContours(List<MatOfPoint> inputContours, double minArea,
+	void filterContours(List<MatOfPoint> inputContours, double minArea,
 		double minPerimeter, double minWidth, double maxWidth, double minHeight, double
 		maxHeight, double[] solidity, double maxVertexCount, double minVertexCount, double
 		minRatio, double maxRatio, List<MatOfPoint> output) {
-		final MatOfInt hull = new MatOfInt();
-		output.clear();
-		//operation
-		for (int i = 0; i < inputContours.size(); i++) {
-			final MatOfPoint contour = inputContours.get(i);
-			final Rect bb = Imgproc.boundingRect(contour);
-			if (bb.width < minWidth || bb.width > maxWidth) continue;
-			if (bb.height < minHeight || bb.height > maxHeight) continue;
-			final double area = Imgproc.contourArea(contour);
-			if (area < minArea) continue;
-			if (Imgproc.arcLength(new MatOfPoint2f(contour.toArray()), true) < minPerimeter) continue;
-			Imgproc.convexHull(contour, hull);
-			MatOfPoint mopHull = new MatOfPoint();
-			mopHull.create((int) hull.size().height, 1, CvType.CV_32SC2);
-			for (int j = 0; j < hull.size().height; j++) {
-				int index = (int)hull.get(j, 0)[0];
-				double[] point = new double[] { contour.get(index, 0)[0], contour.get(index, 0)[1]};
-				mopHull.put(j, 0, point);
-			}
-			final double solid = 100 * area / Imgproc.contourArea(mopHull);
-			if (solid < solidity[0] || solid > solidity[1]) continue;
-			if (contour.rows() < minVertexCount || contour.rows() > maxVertexCount)	continue;
-			final double ratio = bb.width / (double)bb.height;
-			if (ratio < minRatio || ratio > maxRatio) continue;
-			output.add(contour);
+		contourFilter.setBounds(minArea, minPerimeter, minWidth, maxWidth, minHeight, maxHeight,
+			solidity, maxVertexCount, minVertexCount, minRatio, maxRatio);
+		if (detection == ContourFilter.Detection.COMPONENTS) {
+			// The blobs were labelled instead; any that need tracing are added to inputContours
+			output.clear();
+			contourFilter.filterComponents((int) contourOffset.x, (int) contourOffset.y,
+				inputContours);
+		} else {
+			contourFilter.filter(inputContours, output);
 		}
 	}
 
@@ -0,0 +1,396 @@
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A GRIP project file (<code>.grip</code>) loaded at startup, so switching venues is a matter of
+ * pointing a camera at another file instead of regenerating {@link GripPipeline}.
+ *
+ * <p>Loading keeps only the steps that lead to the pipeline's output: the contours published by
+ * its last NetworkTables publish step, or else its last contours step. Every supported step has a
+ * single image or contours input, so those steps form a chain. Adjacent erode and dilate steps
+ * with the same border settings are then fused: repeated erodes or dilates into one with the
+ * iterations added up, and an erode followed by a dilate with the same iterations (or the
+ * reverse) into one morphological opening (or closing).
+ *
+ * <p>Each {@link #compile} builds a {@link GraphPipeline} with its own buffers, so every worker
+ * compiles its own. The first Blur, HSV Threshold, Find Contours and Filter Contours steps read
+ * their values from the camera's {@link PipelineParameters}, whose defaults come from the file
+ * ({@link #defaultParameters}), so they can be tuned live like the generated pipeline.
+ */
+public class GripProject {
+    /**
+     * The GRIP operations that can be compiled, by their names in the project file.
+     */
+    enum Kind {
+        BLUR("Blur"), HSV_THRESHOLD("HSV Threshold"), HSL_THRESHOLD("HSL Threshold"),
+        RGB_THRESHOLD("RGB Threshold"), ERODE("CV erode"), DILATE("CV dilate"), OPEN(null),
+        CLOSE(null), FIND_CONTOURS("Find Contours"), FILTER_CONTOURS("Filter Contours");
+
+        private final String operation;
+
+        Kind(String operation) {
+            this.operation = operation;
+        }
+
+        static Kind of(String operation) {
+            for (Kind kind : values()) {
+                if (operation.equals(kind.operation)) {
+                    return kind;
+                }
+            }
+            return null;
+        }
+
+        boolean producesContours() {
+            return this == FIND_CONTOURS || this == FILTER_CONTOURS;
+        }
+    }
+
+    /**
+     * One step of the chain and its input values by socket: a Double, a double[] range, a Boolean
+     * or a String.
+     */
+    static final class Step {
+        final Kind kind;
+        final Map<Integer, Object> inputs;
+
+        Step(Kind kind, Map<Integer, Object> inputs) {
+            this.kind = kind;
+            this.inputs = inputs;
+        }
+
+        double number(int socket, double defaultValue) {
+            Object value = inputs.get(socket);
+            return value instanceof Double ? (Double) value : defaultValue;
+        }
+
+        double[] range(int socket, double min, double max) {
+            Object value = inputs.get(socket);
+            return value instanceof double[] ? ((double[]) value).clone() : new double[]{min, max};
+        }
+
+        boolean bool(int socket) {
+            return Boolean.TRUE.equals(inputs.get(socket));
+        }
+
+        /**
+         * @return a scalar socket's values, saved either as one number or as a list.
+         */
+        double[] scalar(int socket, double defaultValue) {
+            Object value = inputs.get(socket);
+            if (value instanceof double[]) {
+                return ((double[]) value).clone();
+            }
+            return new double[]{value instanceof Double ? (Double) value : defaultValue};
+        }
+
+        String text(int socket, String defaultValue) {
+            Object value = inputs.get(socket);
+            return value instanceof String ? (String) value : defaultValue;
+        }
+    }
+
+    static final int MORPH_ITERATIONS = 3;
+    static final int MORPH_BORDER_TYPE = 4;
+    static final int MORPH_BORDER_VALUE = 5;
+    /** GRIP's border value when none is set, which erodes from a constant border. */
+    static final double DEFAULT_BORDER_VALUE = -1;
+
+    private final String name;
+    private final List<Step> chain;
+    private final PipelineParameters defaultParameters;
+
+    private GripProject(String name, List<Step> chain) {
+        this.name = name;
+        this.chain = Collections.unmodifiableList(chain);
+        this.defaultParameters = parametersOf(chain);
+    }
+
+    /**
+     * Loads, prunes and fuses a GRIP project.
+     *
+     * @throws IOException if the file cannot be read or parsed.
+     * @throws IllegalArgumentException if a step leading to the output is not supported, or the
+     *                                  output is not a contours step.
+     */
+    public static GripProject load(Path path) throws IOException {
+        Document document;
+        try {
+            document = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(path.toFile());
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Could not parse GRIP project " + path, e);
+        }
+
+        List<String> operations = new ArrayList<>();
+        List<Map<Integer, Object>> inputs = new ArrayList<>();
+        for (Element step : children(firstChild(document.getDocumentElement(), "steps"), "grip:Step")) {
+            operations.add(step.getAttribute("name"));
+            Map<Integer, Object> values = new HashMap<>();
+            for (Element input : children(step, "grip:Input")) {
+                Element value = firstChild(input, "value");
+                if (value != null) {
+                    values.put(Integer.parseInt(input.getAttribute("socket")), parseValue(value));
+                }
+            }
+            inputs.add(values);
+        }
+
+        // Where the first input of each step comes from: a step index, or -1 for the camera
+        int[] producers = new int[operations.size()];
+        Arrays.fill(producers, -2);
+        for (Element connection : children(firstChild(document.getDocumentElement(), "connections"),
+                "grip:Connection")) {
+            Element output = firstChild(connection, "grip:Output");
+            Element input = firstChild(connection, "grip:Input");
+            if (output == null || input == null || !"0".equals(input.getAttribute("socket"))
+                    || input.getAttribute("step").isEmpty()) {
+                continue;
+            }
+            int step = Integer.parseInt(input.getAttribute("step"));
+            producers[step] = output.hasAttribute("step")
+                    ? Integer.parseInt(output.getAttribute("step")) : -1;
+        }
+
+        int output = findOutput(operations, producers);
+        if (output < 0) {
+            throw new IllegalArgumentException(path + " has no contours output");
+        }
+        List<Step> chain = new ArrayList<>();
+        for (int step = output; step >= 0; step = producers[step]) {
+            Kind kind = Kind.of(operations.get(step));
+            if (kind == null) {
+                throw new IllegalArgumentException("Unsupported GRIP step '" + operations.get(step)
+                        + "' in " + path);
+            }
+            chain.add(0, new Step(kind, inputs.get(step)));
+            if (producers[step] == -2 || chain.size() > operations.size()) {
+                throw new IllegalArgumentException("Step '" + operations.get(step) + "' of " + path
+                        + " has no input");
+            }
+        }
+        checkOrder(chain, path);
+
+        int kept = chain.size();
+        chain = fuse(chain);
+        System.out.println("Loaded " + path.getFileName() + ": " + chain.size() + " steps, "
+                + (operations.size() - kept) + " unused dropped, " + (kept - chain.size()) + " fused");
+        return new GripProject(path.getFileName().toString(), chain);
+    }
+
+    /**
+     * @return a new pipeline running this project, with its own buffers.
+     */
+    public TargetPipeline compile() {
+        return new GraphPipeline(chain, defaultParameters);
+    }
+
+    /**
+     * @return the values of this project's tunable steps, with the GRIP defaults for the rest.
+     */
+    public PipelineParameters defaultParameters() {
+        return defaultParameters;
+    }
+
+    /**
+     * @return the file name of the project.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * The contours consumed by the last publish step, or else the last contours step.
+     */
+    private static int findOutput(List<String> operations, int[] producers) {
+        for (int step = operations.size() - 1; step >= 0; step--) {
+            String operation = operations.get(step);
+            if ((operation.startsWith("NTPublish") || operation.startsWith("Publish"))
+                    && producers[step] >= 0) {
+                return producers[step];
+            }
+        }
+        for (int step = operations.size() - 1; step >= 0; step--) {
+            Kind kind = Kind.of(operations.get(step));
+            if (kind != null && kind.producesContours()) {
+                return step;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Makes sure the chain is image steps, then Find Contours, then Filter Contours steps.
+     */
+    private static void checkOrder(List<Step> chain, Path path) {
+        int findContours = -1;
+        for (int i = 0; i < chain.size(); i++) {
+            Kind kind = chain.get(i).kind;
+            if (kind == Kind.FIND_CONTOURS) {
+                if (findContours >= 0) {
+                    throw new IllegalArgumentException(path + " finds contours twice");
+                }
+                findContours = i;
+            } else if ((kind == Kind.FILTER_CONTOURS) != (findContours >= 0)) {
+                throw new IllegalArgumentException("Step '" + kind.operation + "' of " + path
+                        + " has the wrong kind of input");
+            }
+        }
+        if (findContours < 0) {
+            throw new IllegalArgumentException(path + " never finds contours");
+        }
+    }
+
+    private static List<Step> fuse(List<Step> chain) {
+        List<Step> fused = new ArrayList<>();
+        for (Step step : chain) {
+            Step previous = fused.isEmpty() ? null : fused.get(fused.size() - 1);
+            if (previous != null && isPlainMorph(previous) && isPlainMorph(step)
+                    && sameBorder(previous, step)) {
+                double iterations = previous.number(MORPH_ITERATIONS, 1);
+                Kind kind = null;
+                if (previous.kind == step.kind) {
+                    kind = step.kind;
+                    iterations += step.number(MORPH_ITERATIONS, 1);
+                } else if (iterations == step.number(MORPH_ITERATIONS, 1)) {
+                    kind = previous.kind == Kind.ERODE ? Kind.OPEN : Kind.CLOSE;
+                }
+                if (kind != null) {
+                    Map<Integer, Object> inputs = new HashMap<>(previous.inputs);
+                    inputs.put(MORPH_ITERATIONS, iterations);
+                    fused.set(fused.size() - 1, new Step(kind, inputs));
+                    continue;
+                }
+            }
+            fused.add(step);
+        }
+        return fused;
+    }
+
+    /**
+     * Whether two morphology steps pad the image the same way, so that fusing them does not
+     * change the result.
+     */
+    private static boolean sameBorder(Step a, Step b) {
+        return a.text(MORPH_BORDER_TYPE, "").equals(b.text(MORPH_BORDER_TYPE, ""))
+                && Arrays.equals(a.scalar(MORPH_BORDER_VALUE, DEFAULT_BORDER_VALUE),
+                b.scalar(MORPH_BORDER_VALUE, DEFAULT_BORDER_VALUE));
+    }
+
+    private static boolean isPlainMorph(Step step) {
+        return step.kind == Kind.ERODE || step.kind == Kind.DILATE;
+    }
+
+    private static PipelineParameters parametersOf(List<Step> chain) {
+        PipelineParameters parameters = PipelineParameters.DEFAULTS;
+        boolean blur = false;
+        boolean threshold = false;
+        boolean filter = false;
+        for (Step step : chain) {
+            if (step.kind == Kind.BLUR && !blur) {
+                blur = true;
+                parameters = parameters
+                        .withBlurType(blurType(step.text(1, "BOX")).toString())
+                        .with(PipelineParameters.Value.BLUR_RADIUS, step.number(2, 0));
+            } else if (step.kind == Kind.HSV_THRESHOLD && !threshold) {
+                threshold = true;
+                double[] hue = step.range(1, 0, 180);
+                double[] sat = step.range(2, 0, 255);
+                double[] val = step.range(3, 0, 255);
+                parameters = parameters
+                        .with(PipelineParameters.Value.HUE_MIN, hue[0])
+                        .with(PipelineParameters.Value.HUE_MAX, hue[1])
+                        .with(PipelineParameters.Value.SATURATION_MIN, sat[0])
+                        .with(PipelineParameters.Value.SATURATION_MAX, sat[1])
+                        .with(PipelineParameters.Value.VALUE_MIN, val[0])
+                        .with(PipelineParameters.Value.VALUE_MAX, val[1]);
+            } else if (step.kind == Kind.FIND_CONTOURS) {
+                parameters = parameters.withExternalOnly(step.bool(1));
+            } else if (step.kind == Kind.FILTER_CONTOURS && !filter) {
+                filter = true;
+                double[] solidity = step.range(7, 0, 100);
+                parameters = parameters
+                        .with(PipelineParameters.Value.MIN_AREA, step.number(1, 0))
+                        .with(PipelineParameters.Value.MIN_PERIMETER, step.number(2, 0))
+                        .with(PipelineParameters.Value.MIN_WIDTH, step.number(3, 0))
+                        .with(PipelineParameters.Value.MAX_WIDTH, step.number(4, 1000))
+                        .with(PipelineParameters.Value.MIN_HEIGHT, step.number(5, 0))
+                        .with(PipelineParameters.Value.MAX_HEIGHT, step.number(6, 1000))
+                        .with(PipelineParameters.Value.MIN_SOLIDITY, solidity[0])
+                        .with(PipelineParameters.Value.MAX_SOLIDITY, solidity[1])
+                        .with(PipelineParameters.Value.MAX_VERTICES, step.number(8, 1000000))
+                        .with(PipelineParameters.Value.MIN_VERTICES, step.number(9, 0))
+                        .with(PipelineParameters.Value.MIN_RATIO, step.number(10, 0))
+                        .with(PipelineParameters.Value.MAX_RATIO, step.number(11, 1000));
+            }
+        }
+        return parameters;
+    }
+
+    /**
+     * Maps a blur type as saved by GRIP, e.g. "BOX", to the generated code's.
+     */
+    static GripPipeline.BlurType blurType(String name) {
+        try {
+            return GripPipeline.BlurType.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            return GripPipeline.BlurType.get(name);
+        }
+    }
+
+    /**
+     * Parses a socket value: a list of numbers (a range), true/false, a number or an enum name.
+     */
+    private static Object parseValue(Element value) {
+        List<Element> items = children(value, null);
+        if (!items.isEmpty()) {
+            double[] range = new double[items.size()];
+            for (int i = 0; i < range.length; i++) {
+                range[i] = Double.parseDouble(items.get(i).getTextContent().trim());
+            }
+            return range;
+        }
+        String text = value.getTextContent().trim();
+        if (text.equals("true") || text.equals("false")) {
+            return Boolean.valueOf(text);
+        }
+        try {
+            return Double.valueOf(text);
+        } catch (NumberFormatException e) {
+            return text;
+        }
+    }
+
+    private static Element firstChild(Element parent, String tagName) {
+        List<Element> matches = children(parent, tagName);
+        return matches.isEmpty() ? null : matches.get(0);
+    }
+
+    private static List<Element> children(Element parent, String tagName) {
+        List<Element> matches = new ArrayList<>();
+        if (parent == null) {
+            return matches;
+        }
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node instanceof Element && (tagName == null || tagName.equals(node.getNodeName()))) {
+                matches.add((Element) node);
+            }
+        }
+        return matches;
+    }
+}
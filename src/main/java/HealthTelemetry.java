@@ -0,0 +1,309 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import com.sun.net.httpserver.HttpServer;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples the health of the whole process, to tell why the frame rate dips: garbage collection
+ * pauses, heap and native memory, process and vision-thread CPU, and the Pi's clock speeds,
+ * temperature and throttling.
+ *
+ * <p>A low-priority daemon thread takes a sample every {@value #PERIOD_MS} ms and publishes it to
+ * a <code>health</code> table and, as <code>name value</code> lines, to
+ * <code>http://localhost:&lt;port&gt;/metrics</code>. The endpoint serves the last sample as
+ * it is, so a request never triggers sampling. The sampler times its own CPU use; when it goes
+ * over {@value #OVERHEAD_BUDGET_PERCENT}% of a core, it samples half as often, down to once every
+ * {@value #MAX_PERIOD_MS} ms.
+ */
+public class HealthTelemetry {
+    private static final long PERIOD_MS = 2000;
+    private static final long MAX_PERIOD_MS = 16000;
+    private static final double OVERHEAD_BUDGET_PERCENT = 0.5;
+    private static final String METRIC_PREFIX = "roovision_";
+    /** The threads that grab and process frames. */
+    private static final String[] VISION_THREADS = {"ProcessorScheduler worker",
+            "FrameExecutor capture"};
+    private static final Path CPU_DIRECTORY = Paths.get("/sys/devices/system/cpu");
+    /** The firmware's throttled state, in hex, as shown by <code>vcgencmd get_throttled</code>. */
+    private static final Path THROTTLED =
+            Paths.get("/sys/devices/platform/soc/soc:firmware/get_throttled");
+    private static final Path TEMPERATURE = Paths.get("/sys/class/thermal/thermal_zone0/temp");
+    // Bits of the firmware's throttled state
+    private static final long UNDER_VOLTAGE = 0x1;
+    private static final long FREQUENCY_CAPPED = 0x2;
+    private static final long THROTTLED_NOW = 0x4;
+    private static final long THROTTLED_SINCE_BOOT = 0x70000;
+
+    private final NetworkTable table;
+    private final int port;
+    private final Map<String, NetworkTableEntry> entries = new HashMap<>();
+    private final StringBuilder text = new StringBuilder();
+    private volatile byte[] lastText = new byte[0];
+
+    private final List<GarbageCollectorMXBean> collectors =
+            ManagementFactory.getGarbageCollectorMXBeans();
+    private final LatencyHistogram gcPauses = new LatencyHistogram();
+    private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private final com.sun.management.OperatingSystemMXBean os;
+    private final BufferPoolMXBean directBuffers;
+    private final List<Path> cpuFrequencies = new ArrayList<>();
+
+    private final Map<Long, Long> lastThreadCpuNanos = new HashMap<>();
+    private long lastSampleNanos = System.nanoTime();
+    private long lastProcessCpuNanos;
+    private long periodMs = PERIOD_MS;
+
+    /**
+     * @param table the table to publish to.
+     * @param port the localhost port of the metrics endpoint, or 0 for none.
+     */
+    public HealthTelemetry(NetworkTable table, int port) {
+        this.table = table;
+        this.port = port;
+        java.lang.management.OperatingSystemMXBean platform =
+                ManagementFactory.getOperatingSystemMXBean();
+        os = platform instanceof com.sun.management.OperatingSystemMXBean
+                ? (com.sun.management.OperatingSystemMXBean) platform : null;
+        BufferPoolMXBean direct = null;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                direct = pool;
+            }
+        }
+        directBuffers = direct;
+        for (int cpu = 0; ; cpu++) {
+            Path frequency = CPU_DIRECTORY.resolve("cpu" + cpu + "/cpufreq/scaling_cur_freq");
+            if (!Files.isReadable(frequency)) {
+                break;
+            }
+            cpuFrequencies.add(frequency);
+        }
+        for (GarbageCollectorMXBean collector : collectors) {
+            if (collector instanceof NotificationEmitter) {
+                NotificationEmitter emitter = (NotificationEmitter) collector;
+                emitter.addNotificationListener(this::collected, null, null);
+            }
+        }
+        if (os != null) {
+            lastProcessCpuNanos = os.getProcessCpuTime();
+        }
+    }
+
+    /**
+     * Starts sampling and the metrics endpoint.
+     */
+    public void start() {
+        Thread thread = new Thread(this::run, "HealthTelemetry");
+        thread.setDaemon(true);
+        thread.setPriority(Thread.MIN_PRIORITY);
+        thread.start();
+    }
+
+    /**
+     * Records the pause of a finished collection. Called on the JVM's notification thread.
+     */
+    private void collected(Notification notification, Object handback) {
+        if (GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION
+                .equals(notification.getType())) {
+            GarbageCollectionNotificationInfo info = GarbageCollectionNotificationInfo
+                    .from((CompositeData) notification.getUserData());
+            gcPauses.record(info.getGcInfo().getDuration() * 1000000);
+        }
+    }
+
+    /**
+     * Serves the last sample. Started from the sampling thread, so that the server's thread is a
+     * daemon too and does not keep the program alive.
+     */
+    private void startEndpoint() {
+        if (port > 0) {
+            try {
+                HttpServer server = HttpServer.create(
+                        new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+                server.createContext("/metrics", exchange -> {
+                    byte[] body = lastText;
+                    exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+                    exchange.sendResponseHeaders(200, body.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(body);
+                    }
+                });
+                server.start();
+            } catch (IOException e) {
+                System.err.println("Failed to start the health metrics endpoint on port " + port);
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void run() {
+        startEndpoint();
+        try {
+            while (true) {
+                Thread.sleep(periodMs);
+                try {
+                    sample();
+                } catch (RuntimeException e) {
+                    System.err.println("Failed to sample health telemetry.");
+                    e.printStackTrace();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void sample() {
+        long startCpuNanos = threads.getCurrentThreadCpuTime();
+        long now = System.nanoTime();
+        double elapsedNanos = now - lastSampleNanos;
+        lastSampleNanos = now;
+        text.setLength(0);
+
+        long gcCount = 0;
+        long gcTime = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            gcCount += Math.max(0, collector.getCollectionCount());
+            gcTime += Math.max(0, collector.getCollectionTime());
+        }
+        put("gc_count", gcCount);
+        put("gc_time_ms", gcTime);
+        put("gc_pauses", gcPauses.takeSnapshot());
+        put("gc_pause_p99_ms", gcPauses.percentileMillis(99));
+        put("gc_pause_max_ms", gcPauses.maxMillis());
+
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        put("heap_used_bytes", heap.getUsed());
+        put("heap_committed_bytes", heap.getCommitted());
+        put("native_mat_bytes", MatPool.liveBytes());
+        if (directBuffers != null) {
+            put("direct_buffer_bytes", directBuffers.getMemoryUsed());
+        }
+        long rss = readResidentBytes();
+        if (rss >= 0) {
+            put("resident_bytes", rss);
+        }
+
+        if (os != null) {
+            long processCpuNanos = os.getProcessCpuTime();
+            double processPercent = 100 * (processCpuNanos - lastProcessCpuNanos) / elapsedNanos;
+            put("process_cpu_percent", processPercent);
+            lastProcessCpuNanos = processCpuNanos;
+        }
+        put("load_average", ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage());
+        if (threads.isThreadCpuTimeSupported()) {
+            put("vision_cpu_percent", 100 * visionThreadCpuNanos() / elapsedNanos);
+        }
+
+        for (int cpu = 0; cpu < cpuFrequencies.size(); cpu++) {
+            long kiloHertz = readLong(cpuFrequencies.get(cpu), 10);
+            if (kiloHertz >= 0) {
+                put("cpu" + cpu + "_mhz", kiloHertz / 1000d);
+            }
+        }
+        long milliCelsius = readLong(TEMPERATURE, 10);
+        if (milliCelsius >= 0) {
+            put("temperature_c", milliCelsius / 1000d);
+        }
+        long throttled = readLong(THROTTLED, 16);
+        if (throttled >= 0) {
+            put("under_voltage", (throttled & UNDER_VOLTAGE) != 0 ? 1 : 0);
+            put("throttled", (throttled & (FREQUENCY_CAPPED | THROTTLED_NOW)) != 0 ? 1 : 0);
+            put("throttled_since_boot", (throttled & THROTTLED_SINCE_BOOT) != 0 ? 1 : 0);
+        }
+
+        long overheadNanos = threads.getCurrentThreadCpuTime() - startCpuNanos;
+        double overheadPercent = 100 * overheadNanos / elapsedNanos;
+        put("telemetry_cpu_percent", overheadPercent);
+        put("telemetry_period_ms", periodMs);
+        if (overheadPercent > OVERHEAD_BUDGET_PERCENT && periodMs < MAX_PERIOD_MS) {
+            periodMs *= 2;
+        }
+        lastText = text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the CPU time the vision threads used since the last sample, in ns.
+     */
+    private long visionThreadCpuNanos() {
+        long total = 0;
+        Map<Long, Long> seen = new HashMap<>();
+        for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+            if (info == null || !isVisionThread(info.getThreadName())) {
+                continue;
+            }
+            long cpu = threads.getThreadCpuTime(info.getThreadId());
+            if (cpu < 0) {
+                continue;
+            }
+            total += cpu - lastThreadCpuNanos.getOrDefault(info.getThreadId(), 0L);
+            seen.put(info.getThreadId(), cpu);
+        }
+        lastThreadCpuNanos.clear();
+        lastThreadCpuNanos.putAll(seen);
+        return total;
+    }
+
+    private static boolean isVisionThread(String name) {
+        for (String prefix : VISION_THREADS) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void put(String key, double value) {
+        entries.computeIfAbsent(key, table::getEntry).setDouble(value);
+        text.append(METRIC_PREFIX).append(key).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @return the resident set size of this process, or -1 if unknown.
+     */
+    private static long readResidentBytes() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"))) {
+                if (line.startsWith("VmRSS:")) {
+                    return 1024 * Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // Not Linux
+        }
+        return -1;
+    }
+
+    /**
+     * @return the number in a sysfs file, or -1 if it cannot be read.
+     */
+    private static long readLong(Path path, int radix) {
+        try {
+            return Long.parseLong(Files.readString(path).trim(), radix);
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+    }
+}
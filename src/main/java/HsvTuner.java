@@ -0,0 +1,695 @@
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParser;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Searches for the HSV thresholds and contour filter bounds that best find hand-labeled targets
+ * in recorded frames, and writes them as a pipeline parameter file, so that re-tuning for a venue
+ * does not take an afternoon in GRIP.
+ *
+ * <p>Every frame is blurred with the base parameters once, converted to HSV and split into its
+ * three planes, which stay in memory for the whole search. The six threshold bounds are then
+ * searched one at a time on a grid, coarse to fine. While the bounds of one channel are searched,
+ * each frame keeps the mask of the other two channels, which every candidate shares, so a
+ * candidate only costs one <code>inRange</code>, one <code>and</code>, finding contours and the
+ * filter. After each round of thresholds, the contours of every frame are measured once and the
+ * filter bounds are searched on those measurements alone, among the values the contours actually
+ * have. All candidates of a bound are scored frame by frame on a fork/join pool, each worker
+ * with its own buffers.
+ *
+ * <p>A frame's target is its best candidate by {@link TargetTracker#score}, as in the pipeline. A
+ * labeled frame scores the overlap (intersection over union) of the target with the label, and a
+ * frame labeled as having no target scores 1 if nothing is found; the score of a set of
+ * parameters is the mean over all frames. The blur, the vertex bounds and the contour mode are
+ * kept from the base parameters.
+ */
+public class HsvTuner {
+    /** Grid steps of the threshold search, one round each. */
+    private static final int[] THRESHOLD_STEPS = {16, 8, 4, 2, 1};
+    /** How far rounds after the first search around each bound, in grid steps. */
+    private static final int REFINE_STEPS = 4;
+    /** Values tried for each filter bound, spread over the values the contours have. */
+    private static final int FILTER_CANDIDATES = 48;
+    /** The intersection over union from which a target counts as found in the summary. */
+    private static final double HIT_OVERLAP = 0.5;
+    /** Frames each fork/join task scores without splitting further. */
+    private static final int LEAF_FRAMES = 2;
+
+    private static final double[] CHANNEL_LIMITS = {180, 255, 255};
+    private static final PipelineParameters.Value[][] CHANNEL_BOUNDS = {
+            {PipelineParameters.Value.HUE_MIN, PipelineParameters.Value.HUE_MAX},
+            {PipelineParameters.Value.SATURATION_MIN, PipelineParameters.Value.SATURATION_MAX},
+            {PipelineParameters.Value.VALUE_MIN, PipelineParameters.Value.VALUE_MAX}};
+    private static final PipelineParameters.Value[][] FILTER_PAIRS = {
+            {PipelineParameters.Value.MIN_WIDTH, PipelineParameters.Value.MAX_WIDTH},
+            {PipelineParameters.Value.MIN_HEIGHT, PipelineParameters.Value.MAX_HEIGHT},
+            {PipelineParameters.Value.MIN_SOLIDITY, PipelineParameters.Value.MAX_SOLIDITY},
+            {PipelineParameters.Value.MIN_RATIO, PipelineParameters.Value.MAX_RATIO}};
+
+    // Measurements of one contour, in the order kept in Frame.stats
+    private static final int STAT_X = 0;
+    private static final int STAT_Y = 1;
+    private static final int STAT_WIDTH = 2;
+    private static final int STAT_HEIGHT = 3;
+    private static final int STAT_AREA = 4;
+    private static final int STAT_PERIMETER = 5;
+    private static final int STAT_SOLIDITY = 6;
+    private static final int STAT_RATIO = 7;
+    private static final int STAT_VERTICES = 8;
+    private static final int STAT_FIELDS = 9;
+
+    /** The filter bounds searched, and the measurement each one bounds. */
+    private static final PipelineParameters.Value[] FILTER_BOUNDS = {
+            PipelineParameters.Value.MIN_AREA, PipelineParameters.Value.MIN_PERIMETER,
+            PipelineParameters.Value.MIN_WIDTH, PipelineParameters.Value.MAX_WIDTH,
+            PipelineParameters.Value.MIN_HEIGHT, PipelineParameters.Value.MAX_HEIGHT,
+            PipelineParameters.Value.MIN_SOLIDITY, PipelineParameters.Value.MAX_SOLIDITY,
+            PipelineParameters.Value.MIN_RATIO, PipelineParameters.Value.MAX_RATIO};
+    private static final int[] FILTER_STATS = {STAT_AREA, STAT_PERIMETER, STAT_WIDTH, STAT_WIDTH,
+            STAT_HEIGHT, STAT_HEIGHT, STAT_SOLIDITY, STAT_SOLIDITY, STAT_RATIO, STAT_RATIO};
+
+    /**
+     * A recorded frame, its label and what the search keeps of it.
+     */
+    private static final class Frame {
+        final Path file;
+        /** The labeled target as x, y, width, height, or null if there is none. */
+        final int[] label;
+        final List<Mat> planes = new ArrayList<>(3);
+        /** The mask of the two channels not being searched. */
+        final Mat others = new Mat();
+        /** STAT_FIELDS measurements per contour found with the current thresholds. */
+        double[] stats = new double[0];
+        int contourCount;
+
+        Frame(Path file, int[] label) {
+            this.file = file;
+            this.label = label;
+        }
+    }
+
+    /**
+     * One worker's buffers. Never shared, so frames are scored without locking.
+     */
+    private static final class Scratch {
+        final GripPipeline grip = new GripPipeline();
+        final ContourFilter filter = new ContourFilter();
+        final Mat blurred = new Mat();
+        final Mat hsv = new Mat();
+        final Mat mask = new Mat();
+        final Mat channelMask = new Mat();
+        final Mat hierarchy = new Mat();
+        final List<MatOfPoint> contours = new ArrayList<>();
+        final List<MatOfPoint> accepted = new ArrayList<>();
+        final MatOfInt hull = new MatOfInt();
+        final MatOfPoint2f curve = new MatOfPoint2f();
+        final Scalar lower = new Scalar(0);
+        final Scalar upper = new Scalar(0);
+        final int[] box = new int[4];
+        final int[] target = new int[4];
+
+        void releaseContours() {
+            for (MatOfPoint contour : contours) {
+                contour.release();
+            }
+            contours.clear();
+        }
+    }
+
+    /**
+     * Adds one frame's scores for every candidate to <code>sums</code>.
+     */
+    private interface FrameScorer {
+        void score(Frame frame, Scratch scratch, double[] sums);
+    }
+
+    /**
+     * Scores a range of frames, splitting it in halves across the pool.
+     */
+    private final class Evaluation extends RecursiveTask<double[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final FrameScorer scorer;
+        private final int candidates;
+        private final int from;
+        private final int to;
+
+        Evaluation(FrameScorer scorer, int candidates, int from, int to) {
+            this.scorer = scorer;
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (to - from <= LEAF_FRAMES) {
+                double[] sums = new double[candidates];
+                Scratch scratch = SCRATCH.get();
+                for (int i = from; i < to; i++) {
+                    scorer.score(frames.get(i), scratch, sums);
+                }
+                return sums;
+            }
+            int middle = (from + to) >>> 1;
+            Evaluation first = new Evaluation(scorer, candidates, from, middle);
+            first.fork();
+            double[] sums = new Evaluation(scorer, candidates, middle, to).compute();
+            double[] other = first.join();
+            for (int i = 0; i < candidates; i++) {
+                sums[i] += other[i];
+            }
+            return sums;
+        }
+    }
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private final ForkJoinPool pool;
+    private final List<Frame> frames;
+    private PipelineParameters params;
+
+    /**
+     * @param frames the labeled frames, not loaded yet.
+     * @param base the parameters to start from; their blur is applied to every frame.
+     * @param threads how many frames to score at once.
+     */
+    private HsvTuner(List<Frame> frames, PipelineParameters base, int threads) {
+        this.frames = frames;
+        this.params = base;
+        this.pool = new ForkJoinPool(threads);
+    }
+
+    /**
+     * Runs the search and writes the best parameters to a file.
+     *
+     * @param args the directory of recorded frames, the labels file, the parameter file to write
+     *             and optionally the parameters to start from, as a parameter file or a .grip
+     *             project.
+     */
+    public static void main(String... args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: HsvTuner <frames directory> <labels.csv> <output.json>"
+                    + " [<base parameters .json or .grip>]");
+            System.exit(1);
+        }
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        Path directory = Paths.get(args[0]);
+        Path output = Paths.get(args[2]);
+        PipelineParameters base = args.length > 3 ? readBase(Paths.get(args[3]))
+                : PipelineParameters.DEFAULTS;
+
+        long start = System.nanoTime();
+        HsvTuner tuner = new HsvTuner(readLabels(directory, Paths.get(args[1])), base,
+                Runtime.getRuntime().availableProcessors());
+        tuner.load();
+        if (tuner.frames.isEmpty()) {
+            System.err.println("No labeled frames could be read from " + directory);
+            System.exit(1);
+        }
+        tuner.summarize("Base", base);
+        PipelineParameters best = tuner.tune();
+        tuner.summarize("Tuned", best);
+
+        Path parent = output.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.writeString(output,
+                new GsonBuilder().setPrettyPrinting().create().toJson(best.toJson()));
+        System.out.println(String.format("Wrote %s after %.1f s", output,
+                (System.nanoTime() - start) / 1e9));
+        tuner.pool.shutdown();
+    }
+
+    private static PipelineParameters readBase(Path path) throws IOException {
+        if (path.toString().endsWith(".grip")) {
+            return GripProject.load(path).defaultParameters();
+        }
+        return PipelineParameters.fromJson(
+                new JsonParser().parse(Files.readString(path)).getAsJsonObject());
+    }
+
+    /**
+     * Reads the labels of the frames to tune on. Either one line per frame,
+     * <code>file,x,y,width,height</code>, with the box left empty for frames without a target, or
+     * the <code>results.csv</code> of a {@link FrameRecorder} dump, whose boxes are the targets
+     * found in the saved frames.
+     */
+    private static List<Frame> readLabels(Path directory, Path labels) throws IOException {
+        List<String> lines = Files.readAllLines(labels);
+        boolean recorded = !lines.isEmpty() && lines.get(0).startsWith("sequence");
+        List<Frame> frames = new ArrayList<>();
+        for (String line : lines) {
+            String[] fields = line.split(",", -1);
+            if (line.isBlank() || line.startsWith("#") || line.startsWith("sequence")
+                    || fields[0].equals("file")) {
+                continue;
+            }
+            try {
+                if (recorded) {
+                    Path file = directory.resolve(String.format("frame_%06d.jpg",
+                            Long.parseLong(fields[0])));
+                    frames.add(new Frame(file, fields[2].equals("1") ? box(fields, 6) : null));
+                } else {
+                    Path file = directory.resolve(fields[0].trim());
+                    boolean labeled = fields.length >= 5 && !fields[1].isBlank();
+                    frames.add(new Frame(file, labeled ? box(fields, 1) : null));
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Skipping the unreadable label " + line);
+            }
+        }
+        return frames;
+    }
+
+    private static int[] box(String[] fields, int first) {
+        int[] box = new int[4];
+        for (int i = 0; i < 4; i++) {
+            box[i] = (int) Math.round(Double.parseDouble(fields[first + i].trim()));
+        }
+        return box;
+    }
+
+    /**
+     * Reads, blurs and splits every frame, and drops those that cannot be read.
+     */
+    private void load() {
+        PipelineParameters base = params;
+        GripPipeline.BlurType blurType = base.blurType;
+        double blurRadius = base.get(PipelineParameters.Value.BLUR_RADIUS);
+        evaluate(0, (frame, scratch, sums) -> {
+            Mat bgr = Imgcodecs.imread(frame.file.toString(), Imgcodecs.IMREAD_COLOR);
+            if (!bgr.empty()) {
+                scratch.grip.blur(bgr, blurType, blurRadius, scratch.blurred);
+                Imgproc.cvtColor(scratch.blurred, scratch.hsv, Imgproc.COLOR_BGR2HSV);
+                Core.split(scratch.hsv, frame.planes);
+            }
+            bgr.release();
+        });
+        int labeled = 0;
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            Frame frame = frames.get(i);
+            if (frame.planes.isEmpty()) {
+                System.err.println("Skipping " + frame.file + ", which cannot be read");
+                frames.remove(i);
+            } else if (frame.label != null) {
+                labeled++;
+            }
+        }
+        System.out.println("Tuning on " + frames.size() + " frames, " + labeled
+                + " with a target, on " + pool.getParallelism() + " threads");
+    }
+
+    /**
+     * @return the best parameters found.
+     */
+    public PipelineParameters tune() {
+        for (int round = 0; round < THRESHOLD_STEPS.length; round++) {
+            searchThresholds(THRESHOLD_STEPS[round], round == 0);
+            searchFilter();
+            double[] totals = evaluateParameters(params);
+            System.out.println(String.format("Round %d (step %d): score %.4f",
+                    round + 1, THRESHOLD_STEPS[round], totals[0] / frames.size()));
+        }
+        return params;
+    }
+
+    /**
+     * Searches the two bounds of each channel in turn, with the mask of the other two channels
+     * kept per frame.
+     *
+     * @param step the grid step.
+     * @param whole whether to search each bound's whole range rather than around its value.
+     */
+    private void searchThresholds(int step, boolean whole) {
+        for (int channel = 0; channel < CHANNEL_BOUNDS.length; channel++) {
+            int searched = channel;
+            PipelineParameters fixed = params;
+            evaluate(0, (frame, scratch, sums) -> otherChannels(frame, searched, fixed, scratch));
+            for (PipelineParameters.Value bound : CHANNEL_BOUNDS[channel]) {
+                double[] candidates = gridCandidates(bound, CHANNEL_LIMITS[channel], step, whole);
+                PipelineParameters current = params;
+                double[] sums = evaluate(candidates.length, (frame, scratch, scores) -> {
+                    for (int i = 0; i < candidates.length; i++) {
+                        scores[i] += scoreThreshold(frame, searched,
+                                current.with(bound, candidates[i]), scratch);
+                    }
+                });
+                params = params.with(bound, candidates[best(sums)]);
+            }
+        }
+    }
+
+    /**
+     * @return the current value of a bound first, then the grid values to try, all keeping the
+     * bound's range non-empty.
+     */
+    private double[] gridCandidates(PipelineParameters.Value bound, double limit, int step,
+                                    boolean whole) {
+        double value = params.get(bound);
+        double from = whole ? 0 : Math.max(0, value - REFINE_STEPS * step);
+        double to = whole ? limit : Math.min(limit, value + REFINE_STEPS * step);
+        // Snap refinements to the grid, so a coarse value is refined around itself
+        double first = whole ? 0 : from + (value - from) % step;
+        List<Double> values = new ArrayList<>();
+        values.add(value);
+        for (double candidate = first; candidate < to + step; candidate += step) {
+            // The last step ends on the limit, e.g. 255, even when it is off the grid
+            double clamped = Math.min(candidate, to);
+            if (clamped != value && ordered(params.with(bound, clamped))) {
+                values.add(clamped);
+            }
+        }
+        return values.stream().mapToDouble(Double::doubleValue).toArray();
+    }
+
+    /**
+     * Measures every frame's contours with the current thresholds, then searches each filter
+     * bound among the values those contours have.
+     */
+    private void searchFilter() {
+        PipelineParameters thresholds = params;
+        evaluate(0, (frame, scratch, sums) -> measureContours(frame, thresholds, scratch));
+        for (int b = 0; b < FILTER_BOUNDS.length; b++) {
+            PipelineParameters.Value bound = FILTER_BOUNDS[b];
+            double[] candidates = filterCandidates(bound, FILTER_STATS[b]);
+            PipelineParameters current = params;
+            double[] sums = evaluate(candidates.length, (frame, scratch, scores) -> {
+                for (int i = 0; i < candidates.length; i++) {
+                    scores[i] += scoreMeasured(frame, current.with(bound, candidates[i]));
+                }
+            });
+            params = params.with(bound, candidates[best(sums)]);
+        }
+    }
+
+    /**
+     * @return the current value of a bound first, then the bound left open and values spread
+     * over the measurement of every contour.
+     */
+    private double[] filterCandidates(PipelineParameters.Value bound, int stat) {
+        int count = 0;
+        for (Frame frame : frames) {
+            count += frame.contourCount;
+        }
+        double[] measured = new double[count];
+        int n = 0;
+        for (Frame frame : frames) {
+            for (int c = 0; c < frame.contourCount; c++) {
+                measured[n++] = frame.stats[c * STAT_FIELDS + stat];
+            }
+        }
+        Arrays.sort(measured);
+        List<Double> values = new ArrayList<>();
+        values.add(params.get(bound));
+        values.add(isMin(bound) ? 0 : PipelineParameters.DEFAULTS.get(bound));
+        for (int i = 0; i < FILTER_CANDIDATES && count > 0; i++) {
+            values.add(measured[(int) ((long) i * (count - 1) / (FILTER_CANDIDATES - 1))]);
+        }
+        return values.stream().mapToDouble(Double::doubleValue)
+                .filter(v -> ordered(params.with(bound, v))).toArray();
+    }
+
+    private static boolean isMin(PipelineParameters.Value bound) {
+        return bound.key().startsWith("min_") || bound.key().endsWith("_min");
+    }
+
+    /**
+     * @return whether no range of the parameters is empty.
+     */
+    private static boolean ordered(PipelineParameters p) {
+        for (PipelineParameters.Value[] pair : CHANNEL_BOUNDS) {
+            if (p.get(pair[0]) > p.get(pair[1])) {
+                return false;
+            }
+        }
+        for (PipelineParameters.Value[] pair : FILTER_PAIRS) {
+            if (p.get(pair[0]) > p.get(pair[1])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the index of the best candidate; the first, i.e. the current value, wins ties.
+     */
+    private static int best(double[] sums) {
+        int best = 0;
+        for (int i = 1; i < sums.length; i++) {
+            if (sums[i] > sums[best]) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Runs a scorer on every frame on the pool.
+     *
+     * @return the sum over all frames of each candidate's score.
+     */
+    private double[] evaluate(int candidates, FrameScorer scorer) {
+        return pool.invoke(new Evaluation(scorer, candidates, 0, frames.size()));
+    }
+
+    private static void inRange(Mat plane, double min, double max, Mat out, Scratch scratch) {
+        scratch.lower.val[0] = min;
+        scratch.upper.val[0] = max;
+        Core.inRange(plane, scratch.lower, scratch.upper, out);
+    }
+
+    private static void otherChannels(Frame frame, int searched, PipelineParameters p,
+                                      Scratch scratch) {
+        int first = searched == 0 ? 1 : 0;
+        int second = searched == 2 ? 1 : 2;
+        inRange(frame.planes.get(first), p.get(CHANNEL_BOUNDS[first][0]),
+                p.get(CHANNEL_BOUNDS[first][1]), frame.others, scratch);
+        inRange(frame.planes.get(second), p.get(CHANNEL_BOUNDS[second][0]),
+                p.get(CHANNEL_BOUNDS[second][1]), scratch.channelMask, scratch);
+        Core.bitwise_and(frame.others, scratch.channelMask, frame.others);
+    }
+
+    private static double scoreThreshold(Frame frame, int searched, PipelineParameters p,
+                                         Scratch scratch) {
+        inRange(frame.planes.get(searched), p.get(CHANNEL_BOUNDS[searched][0]),
+                p.get(CHANNEL_BOUNDS[searched][1]), scratch.mask, scratch);
+        Core.bitwise_and(scratch.mask, frame.others, scratch.mask);
+        return score(frame, detect(scratch.mask, p, scratch) ? scratch.target : null);
+    }
+
+    /**
+     * Thresholds a frame on all three channels into <code>scratch.mask</code>.
+     */
+    private static void threshold(Frame frame, PipelineParameters p, Scratch scratch) {
+        inRange(frame.planes.get(0), p.hue[0], p.hue[1], scratch.mask, scratch);
+        inRange(frame.planes.get(1), p.saturation[0], p.saturation[1], scratch.channelMask,
+                scratch);
+        Core.bitwise_and(scratch.mask, scratch.channelMask, scratch.mask);
+        inRange(frame.planes.get(2), p.value[0], p.value[1], scratch.channelMask, scratch);
+        Core.bitwise_and(scratch.mask, scratch.channelMask, scratch.mask);
+    }
+
+    private static void findContours(Mat mask, PipelineParameters p, Scratch scratch) {
+        scratch.releaseContours();
+        Imgproc.findContours(mask, scratch.contours, scratch.hierarchy,
+                p.externalOnly ? Imgproc.RETR_EXTERNAL : Imgproc.RETR_LIST,
+                Imgproc.CHAIN_APPROX_SIMPLE);
+    }
+
+    /**
+     * Finds and filters the contours of a mask like the pipeline does.
+     *
+     * @return whether a target was found; its box is then in <code>scratch.target</code>.
+     */
+    private static boolean detect(Mat mask, PipelineParameters p, Scratch scratch) {
+        findContours(mask, p, scratch);
+        scratch.filter.setBounds(p.get(PipelineParameters.Value.MIN_AREA),
+                p.get(PipelineParameters.Value.MIN_PERIMETER),
+                p.get(PipelineParameters.Value.MIN_WIDTH),
+                p.get(PipelineParameters.Value.MAX_WIDTH),
+                p.get(PipelineParameters.Value.MIN_HEIGHT),
+                p.get(PipelineParameters.Value.MAX_HEIGHT), p.solidity,
+                p.get(PipelineParameters.Value.MAX_VERTICES),
+                p.get(PipelineParameters.Value.MIN_VERTICES),
+                p.get(PipelineParameters.Value.MIN_RATIO),
+                p.get(PipelineParameters.Value.MAX_RATIO));
+        scratch.filter.filter(scratch.contours, scratch.accepted);
+        double bestScore = -1;
+        for (int i = 0; i < scratch.filter.acceptedCount(); i++) {
+            scratch.filter.acceptedBox(i, scratch.box);
+            double candidateScore = TargetTracker.score(scratch.box[2], scratch.box[3],
+                    scratch.filter.acceptedArea(i));
+            if (candidateScore > bestScore) {
+                bestScore = candidateScore;
+                System.arraycopy(scratch.box, 0, scratch.target, 0, 4);
+            }
+        }
+        return bestScore >= 0;
+    }
+
+    /**
+     * Keeps the measurements of every contour found with the given thresholds, for searching the
+     * filter bounds without touching the images again.
+     */
+    private static void measureContours(Frame frame, PipelineParameters p, Scratch scratch) {
+        threshold(frame, p, scratch);
+        findContours(scratch.mask, p, scratch);
+        int count = scratch.contours.size();
+        if (frame.stats.length < count * STAT_FIELDS) {
+            frame.stats = new double[count * STAT_FIELDS];
+        }
+        for (int c = 0; c < count; c++) {
+            MatOfPoint contour = scratch.contours.get(c);
+            Rect box = Imgproc.boundingRect(contour);
+            double area = Imgproc.contourArea(contour);
+            contour.convertTo(scratch.curve, CvType.CV_32F);
+            Imgproc.convexHull(contour, scratch.hull);
+            double hullArea = hullArea(contour, scratch.hull);
+            int base = c * STAT_FIELDS;
+            frame.stats[base + STAT_X] = box.x;
+            frame.stats[base + STAT_Y] = box.y;
+            frame.stats[base + STAT_WIDTH] = box.width;
+            frame.stats[base + STAT_HEIGHT] = box.height;
+            frame.stats[base + STAT_AREA] = area;
+            frame.stats[base + STAT_PERIMETER] = Imgproc.arcLength(scratch.curve, true);
+            frame.stats[base + STAT_SOLIDITY] = hullArea > 0 ? 100 * area / hullArea : 0;
+            frame.stats[base + STAT_RATIO] = box.width / (double) box.height;
+            frame.stats[base + STAT_VERTICES] = contour.rows();
+        }
+        frame.contourCount = count;
+    }
+
+    private static double hullArea(MatOfPoint contour, MatOfInt hull) {
+        int[] indices = hull.toArray();
+        int[] points = new int[2 * contour.rows()];
+        contour.get(0, 0, points);
+        double twiceArea = 0;
+        for (int i = 0; i < indices.length; i++) {
+            int a = 2 * indices[i];
+            int b = 2 * indices[(i + 1) % indices.length];
+            twiceArea += (double) points[a] * points[b + 1] - (double) points[b] * points[a + 1];
+        }
+        return Math.abs(twiceArea) / 2;
+    }
+
+    /**
+     * Scores a frame from its measured contours, with the bounds of {@link ContourFilter}.
+     */
+    private static double scoreMeasured(Frame frame, PipelineParameters p) {
+        double minArea = p.get(PipelineParameters.Value.MIN_AREA);
+        double minPerimeter = p.get(PipelineParameters.Value.MIN_PERIMETER);
+        double minWidth = p.get(PipelineParameters.Value.MIN_WIDTH);
+        double maxWidth = p.get(PipelineParameters.Value.MAX_WIDTH);
+        double minHeight = p.get(PipelineParameters.Value.MIN_HEIGHT);
+        double maxHeight = p.get(PipelineParameters.Value.MAX_HEIGHT);
+        double minVertices = p.get(PipelineParameters.Value.MIN_VERTICES);
+        double maxVertices = p.get(PipelineParameters.Value.MAX_VERTICES);
+        double minRatio = p.get(PipelineParameters.Value.MIN_RATIO);
+        double maxRatio = p.get(PipelineParameters.Value.MAX_RATIO);
+        double bestScore = -1;
+        int best = -1;
+        for (int c = 0; c < frame.contourCount; c++) {
+            int base = c * STAT_FIELDS;
+            double[] s = frame.stats;
+            double vertices = s[base + STAT_VERTICES];
+            if (vertices < minVertices || vertices > maxVertices
+                    || s[base + STAT_WIDTH] < minWidth || s[base + STAT_WIDTH] > maxWidth
+                    || s[base + STAT_HEIGHT] < minHeight || s[base + STAT_HEIGHT] > maxHeight
+                    || s[base + STAT_RATIO] < minRatio || s[base + STAT_RATIO] > maxRatio
+                    || s[base + STAT_AREA] < minArea || s[base + STAT_PERIMETER] < minPerimeter
+                    || s[base + STAT_SOLIDITY] < p.solidity[0]
+                    || s[base + STAT_SOLIDITY] > p.solidity[1]) {
+                continue;
+            }
+            double candidateScore = TargetTracker.score((int) s[base + STAT_WIDTH],
+                    (int) s[base + STAT_HEIGHT], s[base + STAT_AREA]);
+            if (candidateScore > bestScore) {
+                bestScore = candidateScore;
+                best = base;
+            }
+        }
+        if (best < 0) {
+            return score(frame, null);
+        }
+        double[] s = frame.stats;
+        return score(frame, new int[]{(int) s[best + STAT_X], (int) s[best + STAT_Y],
+                (int) s[best + STAT_WIDTH], (int) s[best + STAT_HEIGHT]});
+    }
+
+    /**
+     * @param found the box of the target found, or null if none was.
+     * @return the overlap of the target with the label, or whether nothing was found if the frame
+     * has no target.
+     */
+    private static double score(Frame frame, int[] found) {
+        if (frame.label == null) {
+            return found == null ? 1 : 0;
+        }
+        return found == null ? 0 : overlap(frame.label, found);
+    }
+
+    /**
+     * @return the intersection over union of two boxes given as x, y, width, height.
+     */
+    private static double overlap(int[] a, int[] b) {
+        int width = Math.min(a[0] + a[2], b[0] + b[2]) - Math.max(a[0], b[0]);
+        int height = Math.min(a[1] + a[3], b[1] + b[3]) - Math.max(a[1], b[1]);
+        if (width <= 0 || height <= 0) {
+            return 0;
+        }
+        double intersection = width * (double) height;
+        return intersection / ((double) a[2] * a[3] + (double) b[2] * b[3] - intersection);
+    }
+
+    /**
+     * Runs the whole pipeline with some parameters on every frame.
+     *
+     * @return the sum of the frames' scores, the number of labeled targets found and the number
+     * of targets found in frames without one.
+     */
+    private double[] evaluateParameters(PipelineParameters p) {
+        return evaluate(3, (frame, scratch, sums) -> {
+            threshold(frame, p, scratch);
+            boolean found = detect(scratch.mask, p, scratch);
+            double frameScore = score(frame, found ? scratch.target : null);
+            sums[0] += frameScore;
+            if (frame.label != null && frameScore >= HIT_OVERLAP) {
+                sums[1]++;
+            } else if (frame.label == null && found) {
+                sums[2]++;
+            }
+        });
+    }
+
+    private void summarize(String name, PipelineParameters p) {
+        double[] totals = evaluateParameters(p);
+        long labeled = frames.stream().filter(frame -> frame.label != null).count();
+        System.out.println(String.format("%s: score %.4f, %d of %d targets found, %d false"
+                        + " targets in %d frames without one; hue %.0f-%.0f, saturation %.0f-%.0f,"
+                        + " value %.0f-%.0f, min area %.0f", name, totals[0] / frames.size(),
+                (long) totals[1], labeled, (long) totals[2], frames.size() - labeled,
+                p.hue[0], p.hue[1], p.saturation[0], p.saturation[1], p.value[0], p.value[1],
+                p.get(PipelineParameters.Value.MIN_AREA)));
+    }
+}
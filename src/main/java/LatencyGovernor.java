@@ -0,0 +1,253 @@
+import edu.wpi.cscore.VideoException;
+import edu.wpi.cscore.VideoMode;
+import edu.wpi.cscore.VideoSource;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+import edu.wpi.first.networktables.NetworkTablesJNI;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Keeps one camera's end-to-end latency inside a budget.
+ *
+ * <p>The governor follows a moving average of the time from capture to publish. When it goes over
+ * the budget, the camera first skips frames, up to {@value #MAX_SKIP} of every
+ * {@value #MAX_SKIP} + 1, which takes load off the processing threads right away. If that is not
+ * enough, the camera is switched to its next smaller video mode. Once the average stays well under
+ * the budget for a while, the steps are undone in reverse order. After every step the governor
+ * waits for the frames already in flight to drain before judging again, so it does not overshoot.
+ *
+ * <p>Smaller modes are the camera's own modes with the configured pixel format, no larger and no
+ * faster than the configured mode, one per resolution. Recordings cannot change mode, so for them
+ * only frames are skipped. The active mode, skip and average are published to a
+ * <code>governor</code> subtable of the vision table.
+ *
+ * <p>Switching a camera's mode blocks in the driver, so it is done on the governor's own thread
+ * rather than on the publish path. Results keep being published meanwhile, and the governor does
+ * not judge them until the switch is done.
+ */
+public class LatencyGovernor {
+    private static final int MAX_SKIP = 2;
+    private static final double AVERAGE_WEIGHT = 0.1;
+    private static final double RECOVER_FRACTION = 0.6;
+    private static final int SETTLE_FRAMES = 30;
+    private static final int RECOVER_FRAMES = 90;
+    private static final int PUBLISH_EVERY_FRAMES = 30;
+
+    private final long budgetMicros;
+    private final FrameExecutor executor;
+    private final VideoSource camera;
+    private final VideoMode configuredMode;
+    /** Switches the camera's mode; null for recordings. */
+    private final ExecutorService modeSwitcher;
+    private final AtomicBoolean switching = new AtomicBoolean();
+    private volatile boolean switched;
+    // Written by the mode switcher only
+    private List<VideoMode> modes;
+    private volatile int modeIndex;
+    private volatile int modeCount = -1;
+    private int skip;
+
+    private double averageMicros = -1;
+    private int settleFrames;
+    private int headroomFrames;
+    private int framesSincePublish;
+
+    private final NetworkTableEntry modeEntry;
+    private final NetworkTableEntry skipEntry;
+    private final NetworkTableEntry averageEntry;
+
+    /**
+     * @param budgetMillis the latency to stay under, from capture to publish, in ms.
+     * @param executor the camera's executor, which skips the frames.
+     * @param frameSource the camera; its video mode is only changed if it is a live camera.
+     * @param visionTable the camera's vision table.
+     */
+    public LatencyGovernor(double budgetMillis, FrameExecutor executor, FrameSource frameSource,
+                           NetworkTable visionTable) {
+        this.budgetMicros = (long) (budgetMillis * 1000);
+        this.executor = executor;
+        this.camera = frameSource instanceof CameraFrameSource
+                ? ((CameraFrameSource) frameSource).getCamera() : null;
+        this.configuredMode = frameSource.getVideoMode();
+        this.modeSwitcher = camera == null ? null : Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LatencyGovernor " + frameSource.getName());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        NetworkTable governorTable = visionTable.getSubTable("governor");
+        governorTable.getEntry("budget_ms").setDouble(budgetMillis);
+        modeEntry = governorTable.getEntry("mode");
+        skipEntry = governorTable.getEntry("skip");
+        averageEntry = governorTable.getEntry("latency_ms");
+        publishMode(configuredMode);
+        skipEntry.setDouble(0);
+    }
+
+    /**
+     * Feeds back a published result. Must be called in frame order.
+     */
+    public void update(TargetResult result) {
+        // NetworkTables and cscore share a microsecond time base
+        long latency = NetworkTablesJNI.now() - result.captureTime;
+        averageMicros = averageMicros < 0 ? latency
+                : averageMicros + AVERAGE_WEIGHT * (latency - averageMicros);
+        if (++framesSincePublish >= PUBLISH_EVERY_FRAMES) {
+            framesSincePublish = 0;
+            averageEntry.setDouble(averageMicros / 1000);
+        }
+
+        if (switching.get()) {
+            return;
+        }
+        if (switched) {
+            switched = false;
+            settle();
+        }
+        if (settleFrames > 0) {
+            settleFrames--;
+            return;
+        }
+        if (averageMicros > budgetMicros) {
+            headroomFrames = 0;
+            stepDown();
+        } else if (averageMicros < budgetMicros * RECOVER_FRACTION) {
+            if (++headroomFrames >= RECOVER_FRAMES) {
+                headroomFrames = 0;
+                stepUp();
+            }
+        } else {
+            headroomFrames = 0;
+        }
+    }
+
+    private void stepDown() {
+        if (skip < MAX_SKIP) {
+            setSkip(skip + 1);
+            return;
+        }
+        requestMode(1);
+    }
+
+    private void stepUp() {
+        if (skip > 0) {
+            setSkip(skip - 1);
+        } else {
+            requestMode(-1);
+        }
+    }
+
+    /**
+     * Asks the mode switcher for the next smaller or larger mode, if there is one.
+     *
+     * @param step 1 for a smaller mode, -1 for a larger one.
+     */
+    private void requestMode(int step) {
+        int index = modeIndex + step;
+        if (modeSwitcher == null || index < 0 || (modeCount >= 0 && index >= modeCount)) {
+            return;
+        }
+        switching.set(true);
+        modeSwitcher.execute(() -> {
+            try {
+                if (modes == null) {
+                    modes = smallerModes();
+                    modeCount = modes.size();
+                }
+                int target = modeIndex + step;
+                if (target >= 0 && target < modes.size() && setMode(target)) {
+                    switched = true;
+                }
+            } finally {
+                switching.set(false);
+            }
+        });
+    }
+
+    private void setSkip(int skip) {
+        this.skip = skip;
+        executor.setFrameSkip(skip);
+        skipEntry.setDouble(skip);
+        settle();
+    }
+
+    private boolean setMode(int index) {
+        VideoMode mode = modes.get(index);
+        try {
+            if (!camera.setVideoMode(mode)) {
+                throw new VideoException("mode rejected");
+            }
+        } catch (VideoException e) {
+            System.err.println("Failed to switch " + camera.getName() + " to " + describe(mode));
+            e.printStackTrace();
+            modes.remove(index);
+            modeCount = modes.size();
+            if (index < modeIndex) {
+                modeIndex--;
+            }
+            return false;
+        }
+        modeIndex = index;
+        System.out.println("Switched " + camera.getName() + " to " + describe(mode)
+                + " to stay within the latency budget");
+        publishMode(mode);
+        return true;
+    }
+
+    private void settle() {
+        settleFrames = SETTLE_FRAMES;
+        averageMicros = -1;
+    }
+
+    /**
+     * Lists the modes to step through, starting with the configured one and getting smaller.
+     */
+    private List<VideoMode> smallerModes() {
+        List<VideoMode> smaller = new ArrayList<>();
+        smaller.add(configuredMode);
+        if (camera == null || configuredMode == null) {
+            return smaller;
+        }
+        for (VideoMode mode : camera.enumerateVideoModes()) {
+            if (mode.pixelFormat != configuredMode.pixelFormat
+                    || mode.width > configuredMode.width || mode.height > configuredMode.height
+                    || mode.fps > configuredMode.fps
+                    || mode.width * mode.height == configuredMode.width * configuredMode.height) {
+                continue;
+            }
+            boolean replaced = false;
+            for (int i = 0; i < smaller.size(); i++) {
+                VideoMode other = smaller.get(i);
+                if (other.width == mode.width && other.height == mode.height) {
+                    if (mode.fps > other.fps) {
+                        smaller.set(i, mode);
+                    }
+                    replaced = true;
+                    break;
+                }
+            }
+            if (!replaced) {
+                smaller.add(mode);
+            }
+        }
+        smaller.sort(Comparator.comparingInt((VideoMode mode) -> mode.width * mode.height).reversed());
+        return smaller;
+    }
+
+    private void publishMode(VideoMode mode) {
+        modeEntry.setString(describe(mode));
+    }
+
+    private static String describe(VideoMode mode) {
+        if (mode == null) {
+            return "unknown";
+        }
+        return mode.width + "x" + mode.height + " " + mode.pixelFormat + " " + mode.fps + "fps";
+    }
+}
@@ -0,0 +1,99 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-memory, lock-free histogram of durations.
+ *
+ * <p>Durations are kept in microseconds in log-linear buckets: each power of two is split into
+ * {@value #SUB_BUCKETS} linear buckets, so any recorded value is reported within about 6% while
+ * the whole range up to half an hour fits in a few hundred counters. Recording never allocates and
+ * is safe from any number of threads.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_SHIFT = 27;
+    private static final int BUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong maxMicros = new AtomicLong();
+    private final long[] snapshot = new long[BUCKETS];
+    private long snapshotTotal;
+    private long snapshotMax;
+
+    /**
+     * Records a duration.
+     *
+     * @param nanos the duration, in ns.
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0, nanos / 1000);
+        counts.incrementAndGet(bucketOf(micros));
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    /**
+     * Moves everything recorded since the last call into the snapshot read by
+     * {@link #percentileMillis} and {@link #maxMillis}, and starts a new window. Only one thread
+     * may take and read snapshots.
+     *
+     * @return the number of durations in the snapshot.
+     */
+    public long takeSnapshot() {
+        snapshotTotal = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.getAndSet(i, 0);
+            snapshotTotal += snapshot[i];
+        }
+        snapshotMax = maxMicros.getAndSet(0);
+        return snapshotTotal;
+    }
+
+    /**
+     * @param percentile the percentile to compute, between 0 and 100.
+     * @return the upper edge of the bucket holding that percentile of the snapshot, in ms, or 0 if
+     * the snapshot is empty.
+     */
+    public double percentileMillis(double percentile) {
+        if (snapshotTotal == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(snapshotTotal * percentile / 100d));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(upperEdgeMicros(i), snapshotMax) / 1000d;
+            }
+        }
+        return snapshotMax / 1000d;
+    }
+
+    /**
+     * @return the longest duration in the snapshot, in ms.
+     */
+    public double maxMillis() {
+        return snapshotMax / 1000d;
+    }
+
+    private static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int shift = Math.min(63 - Long.numberOfLeadingZeros(micros) - SUB_BUCKET_BITS, MAX_SHIFT);
+        long subBucket = Math.min(micros >> shift, 2 * SUB_BUCKETS - 1) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + (int) subBucket;
+    }
+
+    private static long upperEdgeMicros(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,274 @@
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Corrects lens distortion, so offsets and distances stay right near the edges of the frame.
+ *
+ * <p>In {@link Mode#REMAP} mode the frame itself is undistorted with remap tables that are built
+ * once per frame size and shared by all pipelines. When only a window of the frame is searched,
+ * only that window is remapped. In {@link Mode#POINTS} mode the frame is processed as the camera
+ * delivers it, and only the corners and edge midpoints of each candidate's bounding box are
+ * undistorted afterwards, which costs almost nothing per frame.
+ *
+ * <p>The intrinsics are scaled to the frame size, so one calibration covers every video mode with
+ * the same field of view. Each pipeline needs its own instance for the per-frame buffers.
+ */
+public class LensCorrection {
+    /**
+     * What gets undistorted.
+     */
+    public enum Mode {
+        REMAP, POINTS;
+
+        /**
+         * Parses a mode name as written in <code>frc.json</code>, e.g. "points".
+         */
+        public static Mode parse(String name) {
+            return valueOf(name.trim().toUpperCase());
+        }
+    }
+
+    /**
+     * A camera calibration, read from JSON such as
+     * <pre>
+     * {
+     *     "width": 640, "height": 480,
+     *     "camera_matrix": [fx, 0, cx, 0, fy, cy, 0, 0, 1],
+     *     "distortion": [k1, k2, p1, p2, k3]
+     * }
+     * </pre>
+     */
+    public static final class Intrinsics {
+        final int width;
+        final int height;
+        final double[] cameraMatrix;
+        final double[] distortion;
+
+        Intrinsics(int width, int height, double[] cameraMatrix, double[] distortion) {
+            this.width = width;
+            this.height = height;
+            this.cameraMatrix = cameraMatrix;
+            this.distortion = distortion;
+        }
+
+        /**
+         * @throws IOException if the file cannot be read or is not a calibration.
+         */
+        public static Intrinsics load(Path path) throws IOException {
+            try {
+                JsonObject json = new JsonParser().parse(Files.readString(path)).getAsJsonObject();
+                double[] cameraMatrix = doubles(json.getAsJsonArray("camera_matrix"));
+                if (cameraMatrix.length != 9) {
+                    throw new IOException("camera_matrix must have 9 values: " + path);
+                }
+                return new Intrinsics(json.get("width").getAsInt(), json.get("height").getAsInt(),
+                        cameraMatrix, doubles(json.getAsJsonArray("distortion")));
+            } catch (RuntimeException e) {
+                throw new IOException("Invalid lens calibration " + path, e);
+            }
+        }
+
+        private static double[] doubles(JsonArray array) {
+            double[] values = new double[array.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = array.get(i).getAsDouble();
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Remap tables for one calibration at one frame size, shared by every pipeline.
+     */
+    private static final class Maps {
+        final Intrinsics intrinsics;
+        final int width;
+        final int height;
+        final Mat map1 = new Mat();
+        final Mat map2 = new Mat();
+
+        Maps(Intrinsics intrinsics, int width, int height) {
+            this.intrinsics = intrinsics;
+            this.width = width;
+            this.height = height;
+        }
+    }
+
+    private static final int MAX_CACHED_MAPS = 4;
+    private static final List<Maps> maps = new ArrayList<>();
+
+    private final Intrinsics intrinsics;
+    private final Mode mode;
+    private final Mat cameraMatrix = new Mat(3, 3, CvType.CV_64FC1);
+    private final Mat distortion;
+    private final Mat noRectification = new Mat();
+    private int scaledWidth;
+    private int scaledHeight;
+    private Maps currentMaps;
+
+    private final MatOfPoint2f distorted = new MatOfPoint2f();
+    private final MatOfPoint2f undistorted = new MatOfPoint2f();
+    private float[] points = new float[0];
+
+    public LensCorrection(Intrinsics intrinsics, Mode mode) {
+        this.intrinsics = intrinsics;
+        this.mode = mode;
+        distortion = new Mat(intrinsics.distortion.length, 1, CvType.CV_64FC1);
+        distortion.put(0, 0, intrinsics.distortion);
+    }
+
+    /**
+     * @return what this instance undistorts.
+     */
+    public Mode mode() {
+        return mode;
+    }
+
+    /**
+     * Undistorts a whole frame. Only for {@link Mode#REMAP}.
+     *
+     * @param frame the frame as the camera delivered it.
+     * @param out the image to store the undistorted frame in.
+     */
+    public void undistortFrame(Mat frame, Mat out) {
+        Maps maps = mapsFor(frame.cols(), frame.rows());
+        Imgproc.remap(frame, out, maps.map1, maps.map2, Imgproc.INTER_LINEAR);
+    }
+
+    /**
+     * Undistorts only a window of a frame, at the cost of remapping just that window. Only for
+     * {@link Mode#REMAP}.
+     *
+     * @param frame the whole frame as the camera delivered it.
+     * @param window the window of the undistorted frame to produce.
+     * @param out the image to store the undistorted window in.
+     */
+    public void undistortWindow(Mat frame, Rect window, Mat out) {
+        Maps maps = mapsFor(frame.cols(), frame.rows());
+        // Every pixel of the window still samples the whole distorted frame
+        Mat map1 = maps.map1.submat(window);
+        Mat map2 = maps.map2.submat(window);
+        Imgproc.remap(frame, out, map1, map2, Imgproc.INTER_LINEAR);
+        map1.release();
+        map2.release();
+    }
+
+    /**
+     * Replaces bounding boxes found in a distorted frame with the bounding boxes of their
+     * undistorted corners and edge midpoints. Only for {@link Mode#POINTS}.
+     *
+     * @param boxes x, y, width, height of each box, overwritten in place.
+     * @param count the number of boxes.
+     * @param frameWidth the width of the frame the boxes were found in, in px.
+     * @param frameHeight the height of the frame, in px.
+     */
+    public void undistortBoxes(int[] boxes, int count, int frameWidth, int frameHeight) {
+        if (count == 0) {
+            return;
+        }
+        scaleTo(frameWidth, frameHeight);
+        int pointCount = 8 * count;
+        if (points.length < 2 * pointCount) {
+            points = new float[2 * pointCount];
+        }
+        for (int i = 0, p = 0; i < count; i++) {
+            float x0 = boxes[4 * i];
+            float y0 = boxes[4 * i + 1];
+            float x1 = x0 + boxes[4 * i + 2];
+            float y1 = y0 + boxes[4 * i + 3];
+            float xm = (x0 + x1) / 2;
+            float ym = (y0 + y1) / 2;
+            p = putPoint(p, x0, y0);
+            p = putPoint(p, xm, y0);
+            p = putPoint(p, x1, y0);
+            p = putPoint(p, x1, ym);
+            p = putPoint(p, x1, y1);
+            p = putPoint(p, xm, y1);
+            p = putPoint(p, x0, y1);
+            p = putPoint(p, x0, ym);
+        }
+        distorted.create(pointCount, 1, CvType.CV_32FC2);
+        distorted.put(0, 0, points);
+        // Projecting back with the same camera matrix keeps the result in pixels
+        Imgproc.undistortPoints(distorted, undistorted, cameraMatrix, distortion, noRectification,
+                cameraMatrix);
+        undistorted.get(0, 0, points);
+
+        for (int i = 0, p = 0; i < count; i++) {
+            float minX = Float.MAX_VALUE;
+            float minY = Float.MAX_VALUE;
+            float maxX = -Float.MAX_VALUE;
+            float maxY = -Float.MAX_VALUE;
+            for (int j = 0; j < 8; j++, p += 2) {
+                minX = Math.min(minX, points[p]);
+                maxX = Math.max(maxX, points[p]);
+                minY = Math.min(minY, points[p + 1]);
+                maxY = Math.max(maxY, points[p + 1]);
+            }
+            boxes[4 * i] = Math.round(minX);
+            boxes[4 * i + 1] = Math.round(minY);
+            boxes[4 * i + 2] = Math.max(1, Math.round(maxX - minX));
+            boxes[4 * i + 3] = Math.max(1, Math.round(maxY - minY));
+        }
+    }
+
+    private int putPoint(int index, float x, float y) {
+        points[index] = x;
+        points[index + 1] = y;
+        return index + 2;
+    }
+
+    private Maps mapsFor(int width, int height) {
+        Maps current = currentMaps;
+        if (current != null && current.width == width && current.height == height) {
+            return current;
+        }
+        scaleTo(width, height);
+        synchronized (maps) {
+            for (Maps cached : maps) {
+                if (cached.intrinsics == intrinsics && cached.width == width && cached.height == height) {
+                    currentMaps = cached;
+                    return cached;
+                }
+            }
+            Maps built = new Maps(intrinsics, width, height);
+            Imgproc.initUndistortRectifyMap(cameraMatrix, distortion, noRectification, cameraMatrix,
+                    new Size(width, height), CvType.CV_16SC2, built.map1, built.map2);
+            if (maps.size() == MAX_CACHED_MAPS) {
+                maps.remove(0);
+            }
+            maps.add(built);
+            currentMaps = built;
+            return built;
+        }
+    }
+
+    /**
+     * Scales the calibrated focal lengths and principal point to a frame size.
+     */
+    private void scaleTo(int width, int height) {
+        if (width == scaledWidth && height == scaledHeight) {
+            return;
+        }
+        double sx = width / (double) intrinsics.width;
+        double sy = height / (double) intrinsics.height;
+        double[] k = intrinsics.cameraMatrix;
+        cameraMatrix.put(0, 0, k[0] * sx, k[1] * sx, k[2] * sx, k[3] * sy, k[4] * sy, k[5] * sy,
+                k[6], k[7], k[8]);
+        scaledWidth = width;
+        scaledHeight = height;
+    }
+}
@@ -0,0 +1,145 @@
+import edu.wpi.first.networktables.EntryListenerFlags;
+import edu.wpi.first.networktables.EntryNotification;
+import edu.wpi.first.networktables.NetworkTableInstance;
+import edu.wpi.first.networktables.NetworkTablesJNI;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A NetworkTables client in the same process as a local server, standing in for the robot. Measures
+ * how long after capture each frame's <code>target_packet</code> becomes visible to a client, which
+ * is the latency the robot actually sees: processing, queueing, the flush and the network stack.
+ *
+ * <p>Server and client share NetworkTables' microsecond clock, so the capture timestamp in each
+ * packet can be compared with the arrival time directly. Latencies are kept in the same histograms
+ * as the vision metrics, per report period and for the whole run.
+ */
+public class LoopbackClient {
+    /** How long {@link #finish} waits for packets still on their way. */
+    private static final long SETTLE_MS = 250;
+
+    /**
+     * What has been received from one vision table, counted by the client's listener thread.
+     */
+    private static final class Subscription {
+        final String table;
+        final LatencyHistogram period = new LatencyHistogram();
+        final LatencyHistogram total = new LatencyHistogram();
+        volatile long packets;
+        volatile long targets;
+        volatile long gaps;
+        long lastSequence;
+        // Counts at the last report, read and written by the reporting thread only
+        long reportedPackets;
+        long reportedTargets;
+        long reportedGaps;
+
+        Subscription(String table) {
+            this.table = table;
+        }
+    }
+
+    private final NetworkTableInstance client;
+    private final List<Subscription> subscriptions = new ArrayList<>();
+    private final long startNanos = System.nanoTime();
+    private long lastReportNanos = startNanos;
+
+    /**
+     * Connects to the server on this machine.
+     *
+     * @param port the port the server listens on.
+     */
+    public LoopbackClient(int port) {
+        client = NetworkTableInstance.create();
+        client.startClient("127.0.0.1", port);
+    }
+
+    /**
+     * Measures the packets of a vision table from now on.
+     *
+     * @param table the table a camera publishes to, e.g. "Vision".
+     */
+    public void subscribe(String table) {
+        Subscription subscription = new Subscription(table);
+        subscriptions.add(subscription);
+        client.getTable(table).getEntry("target_packet").addListener(
+                event -> receive(subscription, event),
+                EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
+    }
+
+    private static void receive(Subscription subscription, EntryNotification event) {
+        long now = NetworkTablesJNI.now();
+        if (!event.value.isDoubleArray()) {
+            return;
+        }
+        double[] packet = event.value.getDoubleArray();
+        if (packet.length < TargetPublisher.PACKET_LENGTH) {
+            return;
+        }
+        long latencyNanos = (now - (long) packet[TargetPublisher.PACKET_CAPTURE_TIME]) * 1000;
+        subscription.period.record(latencyNanos);
+        subscription.total.record(latencyNanos);
+        long sequence = (long) packet[TargetPublisher.PACKET_SEQUENCE];
+        // Frames dropped by the processor, or overwritten before a flush went out
+        if (subscription.lastSequence > 0 && sequence > subscription.lastSequence + 1) {
+            subscription.gaps += sequence - subscription.lastSequence - 1;
+        }
+        subscription.lastSequence = sequence;
+        subscription.packets++;
+        if (packet[TargetPublisher.PACKET_VALID] != 0) {
+            subscription.targets++;
+        }
+    }
+
+    /**
+     * Prints the latency distribution and packet rate of every table since the last report.
+     */
+    public void report() {
+        long now = System.nanoTime();
+        double seconds = (now - lastReportNanos) / 1e9;
+        lastReportNanos = now;
+        if (!client.isConnected()) {
+            System.out.println("Loopback client not connected yet");
+        }
+        for (Subscription subscription : subscriptions) {
+            long packets = subscription.packets;
+            long targets = subscription.targets;
+            long gaps = subscription.gaps;
+            subscription.period.takeSnapshot();
+            print(subscription.table, "last " + Math.round(seconds) + " s", subscription.period,
+                    packets - subscription.reportedPackets, targets - subscription.reportedTargets,
+                    gaps - subscription.reportedGaps, seconds);
+            subscription.reportedPackets = packets;
+            subscription.reportedTargets = targets;
+            subscription.reportedGaps = gaps;
+        }
+    }
+
+    /**
+     * Waits for packets still in flight, then prints the distribution over the whole run.
+     */
+    public void finish() {
+        try {
+            Thread.sleep(SETTLE_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        double seconds = (System.nanoTime() - startNanos) / 1e9;
+        for (Subscription subscription : subscriptions) {
+            subscription.total.takeSnapshot();
+            print(subscription.table, "total", subscription.total, subscription.packets,
+                    subscription.targets, subscription.gaps, seconds);
+        }
+    }
+
+    private static void print(String table, String period, LatencyHistogram histogram, long packets,
+                              long targets, long gaps, double seconds) {
+        System.out.println(String.format("Loopback %s (%s): %d packets, %.1f/s, %d with target, "
+                        + "%d sequence gaps; capture to client p50 %.1f ms, p95 %.1f ms, "
+                        + "p99 %.1f ms, max %.1f ms",
+                table, period, packets, packets / seconds, targets, gaps,
+                histogram.percentileMillis(50), histogram.percentileMillis(95),
+                histogram.percentileMillis(99), histogram.maxMillis()));
+    }
+}
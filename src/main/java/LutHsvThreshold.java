@@ -0,0 +1,194 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A one-pass alternative to GripPipeline's HSV threshold.
+ *
+ * <p>Instead of converting the whole frame to HSV and then running <code>inRange</code> over it,
+ * every possible BGR color is classified once into a bit table, and the mask is produced by one
+ * lookup per pixel. The table is built with OpenCV's own <code>cvtColor</code> and
+ * <code>inRange</code>, so at the full 8 bits per channel the mask matches the original stage bit
+ * for bit. Fewer bits per channel give a smaller, more cache-friendly table at the cost of
+ * classifying each color by the center of its bin.
+ *
+ * <p>Tables are shared between all pipelines using the same ranges and are only rebuilt when the
+ * ranges change. Each pipeline needs its own instance for the per-frame buffers.
+ */
+public class LutHsvThreshold {
+    private static final int MAX_CACHED_TABLES = 4;
+    private static final List<Table> tables = new ArrayList<>();
+
+    private final int bitsPerChannel;
+    private Table table;
+    private byte[] pixels = new byte[0];
+    private byte[] mask = new byte[0];
+
+    /**
+     * An immutable classification of every quantized BGR color for one set of ranges.
+     */
+    private static final class Table {
+        final int bits;
+        final double[] ranges;
+        final long[] inRange;
+
+        Table(int bits, double[] ranges, long[] inRange) {
+            this.bits = bits;
+            this.ranges = ranges;
+            this.inRange = inRange;
+        }
+
+        boolean matches(int bits, double[] hue, double[] sat, double[] val) {
+            return this.bits == bits
+                    && ranges[0] == hue[0] && ranges[1] == hue[1]
+                    && ranges[2] == sat[0] && ranges[3] == sat[1]
+                    && ranges[4] == val[0] && ranges[5] == val[1];
+        }
+    }
+
+    /**
+     * @param bitsPerChannel how many of the most significant bits of each channel index the
+     *                       table, from 1 to 8. Only 8 is exact.
+     */
+    public LutHsvThreshold(int bitsPerChannel) {
+        if (bitsPerChannel < 1 || bitsPerChannel > 8) {
+            throw new IllegalArgumentException("bitsPerChannel must be between 1 and 8");
+        }
+        this.bitsPerChannel = bitsPerChannel;
+    }
+
+    /**
+     * Segments a BGR image based on hue, saturation, and value ranges.
+     *
+     * @param input The BGR image on which to perform the threshold.
+     * @param hue The min and max hue
+     * @param sat The min and max saturation
+     * @param val The min and max value
+     * @param out The 8-bit single channel image in which to store the mask.
+     */
+    public void apply(Mat input, double[] hue, double[] sat, double[] val, Mat out) {
+        if (table == null || !table.matches(bitsPerChannel, hue, sat, val)) {
+            table = tableFor(bitsPerChannel, hue, sat, val);
+        }
+        int pixelCount = input.rows() * input.cols();
+        if (mask.length < pixelCount) {
+            pixels = new byte[3 * pixelCount];
+            mask = new byte[pixelCount];
+        }
+        input.get(0, 0, pixels);
+
+        final long[] inRange = table.inRange;
+        final int shift = 8 - bitsPerChannel;
+        final int bits = bitsPerChannel;
+        for (int i = 0, p = 0; i < pixelCount; i++, p += 3) {
+            int index = (((pixels[p] & 0xFF) >> shift) << (2 * bits))
+                    | (((pixels[p + 1] & 0xFF) >> shift) << bits)
+                    | ((pixels[p + 2] & 0xFF) >> shift);
+            mask[i] = (inRange[index >>> 6] & (1L << index)) != 0 ? (byte) 255 : 0;
+        }
+
+        out.create(input.rows(), input.cols(), CvType.CV_8UC1);
+        out.put(0, 0, mask, 0, pixelCount);
+    }
+
+    /**
+     * Times this threshold against <code>cvtColor</code> and <code>inRange</code> on one frame.
+     * Which of the two is faster depends on the resolution and the CPU, so this is meant to run
+     * on the Pi itself at the camera's resolution, with the table already built.
+     *
+     * @param frame a BGR frame of the size to compare at.
+     * @param runs how many times each is timed, after as many untimed runs.
+     * @return the mean time of the lookup table and of cvtColor and inRange, in ns.
+     */
+    public long[] compareWithCvtColor(Mat frame, double[] hue, double[] sat, double[] val,
+                                      int runs) {
+        Mat out = new Mat();
+        Scalar lower = new Scalar(hue[0], sat[0], val[0]);
+        Scalar upper = new Scalar(hue[1], sat[1], val[1]);
+        long[] times = new long[2];
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                apply(frame, hue, sat, val, out);
+            }
+            long lutEnd = System.nanoTime();
+            for (int i = 0; i < runs; i++) {
+                Imgproc.cvtColor(frame, out, Imgproc.COLOR_BGR2HSV);
+                Core.inRange(out, lower, upper, out);
+            }
+            // The first pass only warms up the JIT and the caches
+            times[0] = (lutEnd - start) / runs;
+            times[1] = (System.nanoTime() - lutEnd) / runs;
+        }
+        out.release();
+        return times;
+    }
+
+    private static Table tableFor(int bits, double[] hue, double[] sat, double[] val) {
+        synchronized (tables) {
+            for (Table table : tables) {
+                if (table.matches(bits, hue, sat, val)) {
+                    return table;
+                }
+            }
+            Table table = new Table(bits, new double[]{hue[0], hue[1], sat[0], sat[1], val[0], val[1]},
+                    buildTable(bits, hue, sat, val));
+            if (tables.size() == MAX_CACHED_TABLES) {
+                tables.remove(0);
+            }
+            tables.add(table);
+            return table;
+        }
+    }
+
+    /**
+     * Classifies every quantized color with cvtColor and inRange, one blue level at a time so the
+     * temporary images stay small.
+     */
+    private static long[] buildTable(int bits, double[] hue, double[] sat, double[] val) {
+        int levels = 1 << bits;
+        int shift = 8 - bits;
+        // Each bin is represented by its center; at 8 bits that is the color itself
+        int half = shift == 0 ? 0 : 1 << (shift - 1);
+        long[] inRange = new long[Math.max(1, (levels * levels * levels) >>> 6)];
+
+        Mat slice = MatPool.acquire(levels, levels, CvType.CV_8UC3);
+        Mat hsv = MatPool.acquire(levels, levels, CvType.CV_8UC3);
+        Mat sliceMask = MatPool.acquire(levels, levels, CvType.CV_8UC1);
+        Scalar lower = new Scalar(hue[0], sat[0], val[0]);
+        Scalar upper = new Scalar(hue[1], sat[1], val[1]);
+        byte[] bgr = new byte[3 * levels * levels];
+        byte[] classified = new byte[levels * levels];
+
+        for (int b = 0; b < levels; b++) {
+            for (int g = 0, p = 0; g < levels; g++) {
+                for (int r = 0; r < levels; r++, p += 3) {
+                    bgr[p] = (byte) ((b << shift) + half);
+                    bgr[p + 1] = (byte) ((g << shift) + half);
+                    bgr[p + 2] = (byte) ((r << shift) + half);
+                }
+            }
+            slice.put(0, 0, bgr);
+            Imgproc.cvtColor(slice, hsv, Imgproc.COLOR_BGR2HSV);
+            Core.inRange(hsv, lower, upper, sliceMask);
+            sliceMask.get(0, 0, classified);
+
+            int base = b * levels * levels;
+            for (int i = 0; i < classified.length; i++) {
+                if (classified[i] != 0) {
+                    int index = base + i;
+                    inRange[index >>> 6] |= 1L << index;
+                }
+            }
+        }
+        MatPool.release(slice);
+        MatPool.release(hsv);
+        MatPool.release(sliceMask);
+        return inRange;
+    }
+}
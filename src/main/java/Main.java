@@ -10,12 +10,16 @@ import edu.wpi.cscore.*;
 import edu.wpi.first.cameraserver.CameraServer;
 import edu.wpi.first.networktables.EntryListenerFlags;
 import edu.wpi.first.networktables.NetworkTableInstance;
+import org.opencv.core.Core;
 
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * This file consists primarily of the sample code provided in the FRCVision image.
@@ -26,13 +30,30 @@ import java.util.List;
    JSON format:
    {
        "team": <team number>,
-       "ntmode": <"client" or "server", "client" if unspecified>
+       "ntmode": <"client", "server" or "loopback", "client" if unspecified>
+                 // "loopback" runs a server and an in-process client that reports the latency
+                 // from capture to client of every camera's packets
+       "loopback seconds": <length of a loopback test> // optional, default until replays end
+       "processing threads": <threads shared by all cameras> // optional, default cores - 1
+       "health port": <localhost port of the health metrics endpoint> // optional, default 5805,
+                 // 0 for none; GC, memory, CPU and throttling are also published to Vision/health
        "cameras": [
            {
                "name": <camera name>
-               // EXACTLY one of the following three fields must be present
+               // EXACTLY one of the following five fields must be present
                "path": <path, e.g. "/dev/video0">
                "url": <url, e.g. "http://192.168.0.90/mjpg/video.mjpg?resolution=640x480">
+               "replay": <directory of images or recorded MJPEG file, for testing without a camera>
+               "replay fps": <fps to pace the replay at>  // optional, default as fast as possible
+               "replay loop": <true to restart at the end> // optional, default false
+               "replay output": <CSV file of per-frame results> // optional
+               "synthetic": {                           // a moving target drawn over noise,
+                                                        // for testing without a camera;
+                                                        // true for defaults
+                   "width": <frame width>               // default 640
+                   "height": <frame height>             // default 480
+                   "fps": <frames per second>           // default 30
+               }
                // The third option is detailed in the "properties" subobject
                "pixel format": <"MJPEG", "YUYV", etc>   // optional
                "width": <video mode width>              // optional
@@ -54,6 +75,64 @@ import java.util.List;
                        }
                    ]
                }
+               "pipeline": <"roo" or a .grip file>      // optional, default "roo", the code
+                                                           // generated from GRIP
+               "parameters": <pipeline parameter JSON file> // optional, default
+                                                           // "/home/pi/pipeline_<name>.json"
+               "calibration": <focal length JSON file>   // optional, default
+                                                           // "/home/pi/calibration_<name>.json"
+               "table": <NetworkTables table for results> // optional, default "Vision" for the
+                                                           // first camera, "Vision/<name>" after
+               "priority": <higher gets threads first>  // optional, default 0
+               "max fps": <processed frames per second cap> // optional, default no cap
+               "latency budget ms": <capture to publish>  // optional; skips frames, then steps
+                                                           // down the video mode to stay under it
+               "workers": <frames processed at once>    // optional, default all threads,
+                                                           // always 1 when replaying
+               "queue depth": <frames waiting for a worker> // optional, default 2
+               "queue policy": <"drop oldest" or "block">  // optional, default "drop oldest",
+                                                           // "block" when replaying
+               "threshold": <"cvtcolor" or "lut">       // optional, default "cvtcolor"; "lut"
+                                                           // only if faster on this machine
+               "lut bits": <bits per channel, 1-8>      // optional, default 8 (exact)
+               "detection": <"contours" or "components"> // optional, default "contours";
+                                                           // "components" labels blobs and only
+                                                           // traces those a bound needs
+               "pyramid levels": <times the frame is halved> // optional, 0-3, default 0; finds
+                                                           // blobs in the reduced frame, then
+                                                           // searches only around them
+               "scene cache": {                         // optional; true for defaults
+                   // reuse the last result while a 32x24 thumbnail of the frame is unchanged
+                   "tolerance": <largest change of a thumbnail value, 0-255> // default 3
+                   "max frames": <frames in a row reusing a result> // default 10
+               }
+               "undistort": {                           // optional
+                   "intrinsics": <lens calibration JSON file>, e.g. "calibration/lens_640x480.json"
+                   "mode": <"remap" (whole frame) or "points" (target corners only)> // default "points"
+               }
+               "tracks": <number of tracks published>  // optional, default 3
+               "track max misses": <frames a lost track coasts> // optional, default 5
+               "tracking": {                            // optional; true for defaults
+                   // only search around the last target until it is missed this many times
+                   "margin": <window margin, fraction of target size> // default 0.5
+                   "velocity scale": <frames of motion added to margin> // default 2
+                   "max misses": <frames before full-frame search>  // default 3
+               }
+               "recorder": {                            // optional; true for defaults
+                   // keeps the last frames in memory and saves them as JPEGs when
+                   // <table>/recorder/dump is set or the FMS disables the robot
+                   "seconds": <seconds of frames kept>  // default 5
+                   "every": <record one frame in this many> // default 2
+                   "quality": <JPEG quality, 0-100>     // default 90
+                   "directory": <where dumps are saved> // default "/home/pi/recordings"
+               }
+               "debug stream": {                        // optional; true for defaults
+                   // "<name> debug" stream of the mask, contour boxes and offsets, only
+                   // drawn while a client is connected
+                   "width": <stream width>              // default 320
+                   "height": <stream height>            // default 240
+                   "fps": <streamed frames per second>  // default 5
+               }
            }
        ]
        "switched cameras": [
@@ -78,6 +157,47 @@ public final class Main {
     public JsonObject config;
     public JsonElement streamConfig;
     public boolean isHTTP;
+    public String replay;
+    public double replayFps;
+    public boolean replayLoop;
+    public String replayOutput;
+    public boolean synthetic;
+    public int syntheticWidth = 640;
+    public int syntheticHeight = 480;
+    public double syntheticFps = 30;
+    public String pipeline = "roo";
+    public String table;
+    public String parametersPath;
+    public String calibrationPath;
+    public int priority;
+    public double maxFps;
+    public double latencyBudgetMs;
+    public int workers = -1;
+    public int queueDepth = 2;
+    public FrameExecutor.QueuePolicy queuePolicy = FrameExecutor.QueuePolicy.DROP_OLDEST;
+    public String lensIntrinsics;
+    public LensCorrection.Mode lensMode = LensCorrection.Mode.POINTS;
+    public int publishedTracks = 3;
+    public int trackMaxMisses = 5;
+    public boolean tracking;
+    public double trackingMargin = 0.5;
+    public double trackingVelocityScale = 2;
+    public int trackingMaxMisses = 3;
+    public int lutThresholdBits;
+    public ContourFilter.Detection detection = ContourFilter.Detection.CONTOURS;
+    public int pyramidLevels;
+    public boolean sceneCache;
+    public double sceneCacheTolerance = 3;
+    public int sceneCacheMaxFrames = 10;
+    public boolean recorder;
+    public double recorderSeconds = 5;
+    public int recorderEvery = 2;
+    public int recorderQuality = 90;
+    public String recorderDirectory = "/home/pi/recordings";
+    public boolean debugStream;
+    public int debugWidth = 320;
+    public int debugHeight = 240;
+    public double debugFps = 5;
   }
 
   @SuppressWarnings("MemberName")
@@ -88,9 +208,14 @@ public final class Main {
 
   public static int team;
   public static boolean server;
+  public static boolean loopback;
+  public static double loopbackSeconds;
+  public static int healthPort = 5805;
+  public static int processingThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
   public static List<CameraConfig> cameraConfigs = new ArrayList<>();
   public static List<SwitchedCameraConfig> switchedCameraConfigs = new ArrayList<>();
   public static List<VideoSource> cameras = new ArrayList<>();
+  public static List<FrameSource> frameSources = new ArrayList<>();
 
   private Main() {
   }
@@ -119,8 +244,41 @@ public final class Main {
     // path
     JsonElement pathElement = config.get("path");
     JsonElement urlElement = config.get("url");
+    JsonElement replayElement = config.get("replay");
+    JsonElement syntheticElement = config.get("synthetic");
     JsonElement properties = config.get("properties"); // web console props
-    if (properties != null && properties.getAsJsonObject().get("url") != null) {
+    if (syntheticElement != null && syntheticElement.isJsonObject()) {
+      JsonObject synthetic = syntheticElement.getAsJsonObject();
+      cam.synthetic = true;
+      if (synthetic.has("width")) {
+        cam.syntheticWidth = synthetic.get("width").getAsInt();
+      }
+      if (synthetic.has("height")) {
+        cam.syntheticHeight = synthetic.get("height").getAsInt();
+      }
+      if (synthetic.has("fps")) {
+        cam.syntheticFps = synthetic.get("fps").getAsDouble();
+      }
+      if (cam.syntheticWidth <= 0 || cam.syntheticHeight <= 0 || cam.syntheticFps < 0) {
+        parseError("camera '" + cam.name + "': synthetic size must be positive");
+        return false;
+      }
+    } else if (syntheticElement != null && syntheticElement.getAsBoolean()) {
+      cam.synthetic = true;
+    } else if (replayElement != null) {
+      cam.replay = replayElement.getAsString();
+      if (config.has("replay fps")) {
+        cam.replayFps = config.get("replay fps").getAsDouble();
+      }
+      if (config.has("replay loop")) {
+        cam.replayLoop = config.get("replay loop").getAsBoolean();
+      }
+      if (config.has("replay output")) {
+        cam.replayOutput = config.get("replay output").getAsString();
+      }
+      // every recorded frame should be processed unless asked otherwise
+      cam.queuePolicy = FrameExecutor.QueuePolicy.BLOCK;
+    } else if (properties != null && properties.getAsJsonObject().get("url") != null) {
       cam.isHTTP = true;
       cam.url = properties.getAsJsonObject().get("url").getAsString();
     } else {
@@ -139,6 +297,192 @@ public final class Main {
     // stream properties
     cam.streamConfig = config.get("stream");
 
+    // processing (optional)
+    if (config.has("pipeline")) {
+      cam.pipeline = config.get("pipeline").getAsString();
+      if (!"roo".equals(cam.pipeline) && !Files.isRegularFile(Paths.get(cam.pipeline))) {
+        parseError("camera '" + cam.name + "': pipeline '" + cam.pipeline
+            + "' is neither \"roo\" nor a GRIP project file");
+        return false;
+      }
+    }
+    if (config.has("parameters")) {
+      cam.parametersPath = config.get("parameters").getAsString();
+    } else {
+      cam.parametersPath = "/home/pi/pipeline_" + cam.name + ".json";
+    }
+    if (config.has("calibration")) {
+      cam.calibrationPath = config.get("calibration").getAsString();
+    } else {
+      cam.calibrationPath = "/home/pi/calibration_" + cam.name + ".json";
+    }
+    if (config.has("table")) {
+      cam.table = config.get("table").getAsString();
+    }
+    if (config.has("priority")) {
+      cam.priority = config.get("priority").getAsInt();
+    }
+    if (config.has("max fps")) {
+      cam.maxFps = config.get("max fps").getAsDouble();
+    }
+    if (config.has("undistort")) {
+      JsonObject undistort = config.get("undistort").getAsJsonObject();
+      if (!undistort.has("intrinsics")) {
+        parseError("camera '" + cam.name + "': undistort needs \"intrinsics\"");
+        return false;
+      }
+      cam.lensIntrinsics = undistort.get("intrinsics").getAsString();
+      if (undistort.has("mode")) {
+        try {
+          cam.lensMode = LensCorrection.Mode.parse(undistort.get("mode").getAsString());
+        } catch (IllegalArgumentException e) {
+          parseError("camera '" + cam.name + "': unknown undistort mode '"
+              + undistort.get("mode").getAsString() + "'");
+          return false;
+        }
+      }
+    }
+    if (config.has("tracks")) {
+      cam.publishedTracks = config.get("tracks").getAsInt();
+    }
+    if (config.has("track max misses")) {
+      cam.trackMaxMisses = config.get("track max misses").getAsInt();
+    }
+    if (config.has("latency budget ms")) {
+      cam.latencyBudgetMs = config.get("latency budget ms").getAsDouble();
+    }
+    if (config.has("workers")) {
+      cam.workers = config.get("workers").getAsInt();
+    }
+    if (cam.replay != null) {
+      // a frame finishing after a newer one is dropped, so with several workers the results
+      // of a recording would depend on thread timing
+      if (cam.workers > 1) {
+        System.out.println("camera '" + cam.name
+            + "': replays use 1 worker, ignoring \"workers\"");
+      }
+      cam.workers = 1;
+    }
+    if (config.has("queue depth")) {
+      cam.queueDepth = config.get("queue depth").getAsInt();
+    }
+    if (config.has("queue policy")) {
+      String str = config.get("queue policy").getAsString();
+      try {
+        cam.queuePolicy = FrameExecutor.QueuePolicy.parse(str);
+      } catch (IllegalArgumentException ex) {
+        parseError("camera '" + cam.name + "': could not understand queue policy value '" + str + "'");
+      }
+    }
+
+    // HSV threshold implementation (optional)
+    if (config.has("threshold")) {
+      String str = config.get("threshold").getAsString();
+      if ("lut".equalsIgnoreCase(str)) {
+        cam.lutThresholdBits = config.has("lut bits") ? config.get("lut bits").getAsInt() : 8;
+      } else if (!"cvtcolor".equalsIgnoreCase(str)) {
+        parseError("camera '" + cam.name + "': could not understand threshold value '" + str + "'");
+      }
+    }
+
+    if (config.has("detection")) {
+      try {
+        cam.detection = ContourFilter.Detection.parse(config.get("detection").getAsString());
+      } catch (IllegalArgumentException e) {
+        parseError("camera '" + cam.name + "': unknown detection '"
+            + config.get("detection").getAsString() + "'");
+        return false;
+      }
+    }
+
+    if (config.has("pyramid levels")) {
+      cam.pyramidLevels = config.get("pyramid levels").getAsInt();
+      if (cam.pyramidLevels < 0 || cam.pyramidLevels > 3) {
+        parseError("camera '" + cam.name + "': pyramid levels must be between 0 and 3");
+        return false;
+      }
+    }
+
+    // reuse of results while the scene is unchanged (optional)
+    JsonElement cacheElement = config.get("scene cache");
+    if (cacheElement != null && cacheElement.isJsonObject()) {
+      JsonObject cache = cacheElement.getAsJsonObject();
+      cam.sceneCache = true;
+      if (cache.has("tolerance")) {
+        cam.sceneCacheTolerance = cache.get("tolerance").getAsDouble();
+      }
+      if (cache.has("max frames")) {
+        cam.sceneCacheMaxFrames = cache.get("max frames").getAsInt();
+      }
+    } else if (cacheElement != null) {
+      cam.sceneCache = cacheElement.getAsBoolean();
+    }
+
+    // region-of-interest tracking (optional)
+    JsonElement trackingElement = config.get("tracking");
+    if (trackingElement != null && trackingElement.isJsonObject()) {
+      JsonObject tracking = trackingElement.getAsJsonObject();
+      cam.tracking = true;
+      if (tracking.has("margin")) {
+        cam.trackingMargin = tracking.get("margin").getAsDouble();
+      }
+      if (tracking.has("velocity scale")) {
+        cam.trackingVelocityScale = tracking.get("velocity scale").getAsDouble();
+      }
+      if (tracking.has("max misses")) {
+        cam.trackingMaxMisses = tracking.get("max misses").getAsInt();
+      }
+    } else if (trackingElement != null) {
+      cam.tracking = trackingElement.getAsBoolean();
+    }
+
+    // frame recorder (optional)
+    JsonElement recorderElement = config.get("recorder");
+    if (recorderElement != null && recorderElement.isJsonObject()) {
+      JsonObject recorder = recorderElement.getAsJsonObject();
+      cam.recorder = true;
+      if (recorder.has("seconds")) {
+        cam.recorderSeconds = recorder.get("seconds").getAsDouble();
+      }
+      if (recorder.has("every")) {
+        cam.recorderEvery = recorder.get("every").getAsInt();
+      }
+      if (recorder.has("quality")) {
+        cam.recorderQuality = recorder.get("quality").getAsInt();
+      }
+      if (recorder.has("directory")) {
+        cam.recorderDirectory = recorder.get("directory").getAsString();
+      }
+      if (cam.recorderSeconds <= 0 || cam.recorderEvery <= 0) {
+        parseError("camera '" + cam.name + "': recorder seconds and every must be positive");
+        return false;
+      }
+    } else if (recorderElement != null) {
+      cam.recorder = recorderElement.getAsBoolean();
+    }
+
+    // debug stream (optional)
+    JsonElement debugElement = config.get("debug stream");
+    if (debugElement != null && debugElement.isJsonObject()) {
+      JsonObject debug = debugElement.getAsJsonObject();
+      cam.debugStream = true;
+      if (debug.has("width")) {
+        cam.debugWidth = debug.get("width").getAsInt();
+      }
+      if (debug.has("height")) {
+        cam.debugHeight = debug.get("height").getAsInt();
+      }
+      if (debug.has("fps")) {
+        cam.debugFps = debug.get("fps").getAsDouble();
+      }
+      if (cam.debugWidth <= 0 || cam.debugHeight <= 0 || cam.debugFps <= 0) {
+        parseError("camera '" + cam.name + "': debug stream size and fps must be positive");
+        return false;
+      }
+    } else if (debugElement != null) {
+      cam.debugStream = debugElement.getAsBoolean();
+    }
+
     cam.config = config;
 
     cameraConfigs.add(cam);
@@ -207,11 +551,29 @@ public final class Main {
         server = false;
       } else if ("server".equalsIgnoreCase(str)) {
         server = true;
+      } else if ("loopback".equalsIgnoreCase(str)) {
+        server = true;
+        loopback = true;
       } else {
         parseError("could not understand ntmode value '" + str + "'");
       }
     }
 
+    // loopback test length (optional)
+    if (obj.has("loopback seconds")) {
+      loopbackSeconds = obj.get("loopback seconds").getAsDouble();
+    }
+
+    // health metrics endpoint (optional)
+    if (obj.has("health port")) {
+      healthPort = obj.get("health port").getAsInt();
+    }
+
+    // processing threads (optional)
+    if (obj.has("processing threads")) {
+      processingThreads = obj.get("processing threads").getAsInt();
+    }
+
     // cameras
     JsonElement camerasElement = obj.get("cameras");
     if (camerasElement == null) {
@@ -264,6 +626,60 @@ public final class Main {
     return camera;
   }
 
+  /**
+   * Start replaying a recording as if it were a camera. The replayed frames are also streamed.
+   */
+  public static ReplayFrameSource startReplay(CameraConfig config) {
+    System.out.println("Starting replay '" + config.name + "' of " + config.replay);
+    ReplayFrameSource replay;
+    try {
+      replay = new ReplayFrameSource(config.name, Paths.get(config.replay), config.replayFps,
+          config.replayLoop);
+    } catch (IOException ex) {
+      System.err.println("could not open replay '" + config.replay + "': " + ex);
+      return null;
+    }
+    VideoMode mode = replay.getVideoMode();
+    replay.setOutput(CameraServer.getInstance().putVideo(config.name, mode.width, mode.height));
+    return replay;
+  }
+
+  /**
+   * Start generating frames as if from a camera. The generated frames are also streamed.
+   */
+  public static SyntheticFrameSource startSynthetic(CameraConfig config) {
+    System.out.println("Starting synthetic camera '" + config.name + "' at " + config.syntheticWidth
+        + "x" + config.syntheticHeight);
+    SyntheticFrameSource synthetic = new SyntheticFrameSource(config.name, config.syntheticWidth,
+        config.syntheticHeight, config.syntheticFps);
+    synthetic.setOutput(CameraServer.getInstance().putVideo(config.name, config.syntheticWidth,
+        config.syntheticHeight));
+    return synthetic;
+  }
+
+  /**
+   * Start a camera, replay or synthetic camera, storing its frame source and streamed video
+   * source at <code>index</code>. The frame source is left null if it could not be started.
+   */
+  public static void startFrameSource(CameraConfig config, int index, VideoSource[] videoSources,
+                                      FrameSource[] frameSources) {
+    if (config.synthetic) {
+      SyntheticFrameSource synthetic = startSynthetic(config);
+      videoSources[index] = synthetic.getOutput();
+      frameSources[index] = synthetic;
+    } else if (config.replay != null) {
+      ReplayFrameSource replay = startReplay(config);
+      if (replay != null) {
+        videoSources[index] = replay.getOutput();
+        frameSources[index] = replay;
+      }
+    } else {
+      VideoSource camera = startCamera(config);
+      videoSources[index] = camera;
+      frameSources[index] = new CameraFrameSource(camera);
+    }
+  }
+
   /**
    * Start running the switched camera.
    */
@@ -302,6 +718,10 @@ public final class Main {
       configFile = args[0];
     }
 
+    // load OpenCV while the configuration is read and NetworkTables starts
+    CompletableFuture<Void> natives = CompletableFuture.runAsync(
+        () -> System.loadLibrary(Core.NATIVE_LIBRARY_NAME));
+
     // read configuration
     if (!readConfig()) {
       return;
@@ -316,30 +736,112 @@ public final class Main {
       System.out.println("Setting up NetworkTables client for team " + team);
       ntinst.startClientTeam(team);
     }
-
-    // start cameras
-    for (CameraConfig config : cameraConfigs) {
-      cameras.add(startCamera(config));
+    new HealthTelemetry(ntinst.getTable("Vision/health"), healthPort).start();
+
+    // start every camera and its processor at once, once OpenCV is loaded as the frame sources
+    // already need it; each processor warms up on generated frames while the other cameras are
+    // still opening
+    int cameraCount = cameraConfigs.size();
+    ExecutorService startup = Executors.newFixedThreadPool(Math.max(1, cameraCount));
+    PersistenceService persistence = new PersistenceService();
+    VideoSource[] videoSources = new VideoSource[cameraCount];
+    FrameSource[] sources = new FrameSource[cameraCount];
+    String[] tables = new String[cameraCount];
+    List<CompletableFuture<RooProcessor>> starting = new ArrayList<>();
+    for (int i = 0; i < cameraCount; i++) {
+      int index = i;
+      CameraConfig config = cameraConfigs.get(i);
+      tables[i] = config.table != null ? config.table
+          : i == 0 ? "Vision" : "Vision/" + config.name;
+      if (config.workers <= 0) {
+        config.workers = processingThreads;
+      }
+      starting.add(natives.thenRunAsync(
+          () -> startFrameSource(config, index, videoSources, sources), startup)
+          .thenApplyAsync(started -> {
+            if (sources[index] == null) {
+              return null;
+            }
+            RooProcessor processor = new RooProcessor(sources[index],
+                ntinst.getTable(tables[index]), config, persistence);
+            processor.warmUp();
+            return processor;
+          }, startup));
     }
+    // a camera that did not open is left out; the others are processed as usual
+    List<RooProcessor> processors = new ArrayList<>();
+    List<CameraConfig> openConfigs = new ArrayList<>();
+    List<String> openTables = new ArrayList<>();
+    for (int i = 0; i < cameraCount; i++) {
+      RooProcessor processor = starting.get(i).join();
+      if (processor == null) {
+        System.err.println("camera '" + cameraConfigs.get(i).name
+            + "' did not start, continuing without it");
+        continue;
+      }
+      processors.add(processor);
+      openConfigs.add(cameraConfigs.get(i));
+      openTables.add(tables[i]);
+      cameras.add(videoSources[i]);
+      frameSources.add(sources[i]);
+    }
+    startup.shutdown();
+    // keeps the switched cameras' indices and names lined up with the cameras that opened
+    cameraConfigs = openConfigs;
 
     // start switched cameras
     for (SwitchedCameraConfig config : switchedCameraConfigs) {
       startSwitchedCamera(config);
     }
 
+    // start image processing on every camera, sharing the processing threads
+    ProcessorScheduler scheduler = new ProcessorScheduler(processingThreads);
+    LoopbackClient loopbackClient = loopback
+        ? new LoopbackClient(NetworkTableInstance.kDefaultPort) : null;
+    boolean finite = !cameras.isEmpty();
+    for (int i = 0; i < cameras.size(); i++) {
+      CameraConfig config = cameraConfigs.get(i);
+      RooProcessor processor = processors.get(i);
+      if (loopbackClient != null) {
+        loopbackClient.subscribe(openTables.get(i));
+      }
+      processor.process(scheduler);
+      finite &= config.replay != null && !config.replayLoop;
+    }
+    scheduler.start();
 
-    // start image processing on camera 0 if present
-    if (cameras.size() >= 1) {
-      new RooProcessor(cameras.get(0), ntinst.getTable("Vision")).process();
+    // finite replays are done once every frame is processed
+    if (finite) {
+      try {
+        for (RooProcessor processor : processors) {
+          processor.awaitFinished();
+        }
+      } catch (InterruptedException ex) {
+        return;
+      }
+      if (loopbackClient != null) {
+        loopbackClient.finish();
+      }
+      return;
     }
 
-    // loop forever
+    // loop forever, or until the end of a loopback test
+    boolean timed = loopbackClient != null && loopbackSeconds > 0;
+    long end = System.nanoTime() + (long) (loopbackSeconds * 1e9);
     for (;;) {
+      long remainingMs = (end - System.nanoTime()) / 1000000;
+      if (timed && remainingMs <= 0) {
+        loopbackClient.finish();
+        return;
+      }
       try {
-        Thread.sleep(10000);
+        Thread.sleep(timed ? Math.min(10000, remainingMs) : 10000);
       } catch (InterruptedException ex) {
         return;
       }
+      if (loopbackClient != null) {
+        loopbackClient.report();
+      }
     }
   }
 }
@@ -0,0 +1,287 @@
+import org.opencv.core.Mat;
+
+import java.lang.ref.Cleaner;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Native image buffers shared by every pipeline of every camera, with an account of the native
+ * memory they hold.
+ *
+ * <p>A {@link Mat}'s pixels are freed only when it is released or when the garbage collector gets
+ * round to finalizing it, which on the Pi shows as a sawtooth in resident memory. Temporary buffers
+ * are therefore taken with {@link #acquire} and handed back with {@link #release}, which keeps up
+ * to {@value #MAX_FREE_PER_SHAPE} free buffers per size and type. The intermediate images of a
+ * frame come from a pipeline's own {@link FrameBuffers} instead, which takes no lock. Mats that
+ * OpenCV allocates itself, such as the contours of <code>findContours</code>, cannot be pooled;
+ * they are released with {@link #releaseAdopted}, normally at the start of the next frame.
+ *
+ * <p>Any counted Mat that is garbage collected without having been released is a leak. The
+ * counters are published by {@link VisionMetrics}; live bytes that stay flat over a match and a
+ * leak count of zero mean native memory is under control. Contours are only counted when the JVM
+ * runs with <code>-Droovision.trackMats=true</code>, as counting costs a lock, a map entry and a
+ * cleaner for every one of them.
+ */
+public final class MatPool {
+    private static final int MAX_FREE_PER_SHAPE = 8;
+    private static final boolean TRACK_ADOPTED = Boolean.getBoolean("roovision.trackMats");
+
+    /**
+     * The intermediate images of one pipeline. Each stage takes its output with {@link #acquire},
+     * and {@link #recycle} takes every buffer back once the next frame starts, so an output stays
+     * valid until then. Buffers are matched by size and type, so frames of the same size reuse
+     * the same buffers, and up to {@value #MAX_FREE} buffers of other sizes are kept for when a
+     * search window or video mode comes back. Only to be used by one thread at a time.
+     */
+    public static final class FrameBuffers {
+        private static final int MAX_FREE = 16;
+
+        private static final class Buffer {
+            final Mat mat;
+            final long key;
+            final long bytes;
+
+            Buffer(Mat mat, long key) {
+                this.mat = mat;
+                this.key = key;
+                this.bytes = mat.total() * mat.elemSize();
+            }
+        }
+
+        // Oldest first, so that the buffers of sizes not seen for a while are freed first
+        private final ArrayList<Buffer> free = new ArrayList<>();
+        private final ArrayList<Buffer> inUse = new ArrayList<>();
+
+        /**
+         * Takes a buffer for this frame, or allocates one if none of that size and type is free.
+         * Its contents are undefined.
+         */
+        public Mat acquire(int rows, int cols, int type) {
+            long key = key(rows, cols, type);
+            for (int i = free.size() - 1; i >= 0; i--) {
+                if (free.get(i).key == key) {
+                    Buffer buffer = free.remove(i);
+                    inUse.add(buffer);
+                    hits.incrementAndGet();
+                    return buffer.mat;
+                }
+            }
+            misses.incrementAndGet();
+            Buffer buffer = new Buffer(new Mat(rows, cols, type), key);
+            liveBytes.addAndGet(buffer.bytes);
+            inUse.add(buffer);
+            return buffer.mat;
+        }
+
+        /**
+         * Takes back every buffer acquired since the last call. None of them may be used
+         * afterwards.
+         */
+        public void recycle() {
+            for (int i = 0; i < inUse.size(); i++) {
+                Buffer buffer = inUse.get(i);
+                // A buffer that OpenCV reallocated at another size no longer matches its key
+                if (key(buffer.mat.rows(), buffer.mat.cols(), buffer.mat.type()) == buffer.key) {
+                    free.add(buffer);
+                } else {
+                    free(buffer);
+                }
+            }
+            inUse.clear();
+            while (free.size() > MAX_FREE) {
+                free(free.remove(0));
+            }
+        }
+
+        private static void free(Buffer buffer) {
+            liveBytes.addAndGet(-buffer.bytes);
+            buffer.mat.release();
+        }
+    }
+
+    /**
+     * What is known about a counted Mat. Must not refer to the Mat, so that it can be collected.
+     */
+    private static final class Tracked implements Runnable {
+        final long key;
+        final long bytes;
+        final boolean pooled;
+        /** Whether the Mat is still in use, i.e. neither released nor back in the pool. */
+        boolean inUse = true;
+        boolean freed;
+
+        Tracked(long key, long bytes, boolean pooled) {
+            this.key = key;
+            this.bytes = bytes;
+            this.pooled = pooled;
+        }
+
+        /** Runs once the Mat has been garbage collected. */
+        @Override
+        public void run() {
+            synchronized (MatPool.class) {
+                if (freed) {
+                    return;
+                }
+                freed = true;
+                liveBytes.addAndGet(-bytes);
+                if (inUse) {
+                    leaks.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static final Cleaner cleaner = Cleaner.create();
+    private static final Map<Long, ArrayDeque<Mat>> free = new HashMap<>();
+    private static final Map<Mat, Tracked> tracked = new WeakHashMap<>();
+
+    private static final AtomicLong liveBytes = new AtomicLong();
+    private static final AtomicLong hits = new AtomicLong();
+    private static final AtomicLong misses = new AtomicLong();
+    private static final AtomicLong leaks = new AtomicLong();
+
+    private MatPool() {
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if none of that size and type is free. Its
+     * contents are undefined.
+     *
+     * @return a Mat to {@link #release} once it is no longer needed.
+     */
+    public static Mat acquire(int rows, int cols, int type) {
+        long key = key(rows, cols, type);
+        synchronized (MatPool.class) {
+            ArrayDeque<Mat> shape = free.get(key);
+            Mat mat = shape != null ? shape.poll() : null;
+            if (mat != null) {
+                tracked.get(mat).inUse = true;
+                hits.incrementAndGet();
+                return mat;
+            }
+        }
+        misses.incrementAndGet();
+        Mat mat = new Mat(rows, cols, type);
+        track(mat, key, true);
+        return mat;
+    }
+
+    /**
+     * Counts a Mat that OpenCV allocated, so that it shows in {@link #liveBytes} until released.
+     * Does nothing unless contours are being counted, see the class comment.
+     */
+    public static void adopt(Mat mat) {
+        if (TRACK_ADOPTED) {
+            track(mat, 0, false);
+        }
+    }
+
+    /**
+     * Counts every Mat of a list, see {@link #adopt(Mat)}.
+     */
+    public static void adoptAll(List<? extends Mat> mats) {
+        if (!TRACK_ADOPTED) {
+            return;
+        }
+        for (int i = 0; i < mats.size(); i++) {
+            adopt(mats.get(i));
+        }
+    }
+
+    /**
+     * Returns an acquired buffer to the pool, or frees the pixels of any other Mat right away.
+     * The Mat must not be used afterwards.
+     */
+    public static void release(Mat mat) {
+        synchronized (MatPool.class) {
+            Tracked t = tracked.get(mat);
+            // A buffer that OpenCV reallocated at another size no longer belongs to its shape
+            if (t != null && t.pooled && t.inUse
+                    && key(mat.rows(), mat.cols(), mat.type()) == t.key) {
+                ArrayDeque<Mat> shape = free.computeIfAbsent(t.key, k -> new ArrayDeque<>());
+                if (shape.size() < MAX_FREE_PER_SHAPE) {
+                    t.inUse = false;
+                    shape.push(mat);
+                    return;
+                }
+            }
+            if (t != null && !t.freed) {
+                t.freed = true;
+                liveBytes.addAndGet(-t.bytes);
+            }
+        }
+        mat.release();
+    }
+
+    /**
+     * Releases every Mat of a list and empties it, see {@link #release(Mat)}.
+     */
+    public static void releaseAll(List<? extends Mat> mats) {
+        for (int i = 0; i < mats.size(); i++) {
+            release(mats.get(i));
+        }
+        mats.clear();
+    }
+
+    /**
+     * Releases every Mat of a list that was passed to {@link #adoptAll}, and empties it. Unless
+     * contours are being counted, their pixels are freed without touching the pool.
+     */
+    public static void releaseAdopted(List<? extends Mat> mats) {
+        if (TRACK_ADOPTED) {
+            releaseAll(mats);
+            return;
+        }
+        for (int i = 0; i < mats.size(); i++) {
+            mats.get(i).release();
+        }
+        mats.clear();
+    }
+
+    /**
+     * @return the native bytes held by counted Mats, whether in use or free in the pool.
+     */
+    public static long liveBytes() {
+        return liveBytes.get();
+    }
+
+    /**
+     * @return how many times a buffer was acquired without allocating.
+     */
+    public static long hits() {
+        return hits.get();
+    }
+
+    /**
+     * @return how many times acquiring a buffer had to allocate.
+     */
+    public static long misses() {
+        return misses.get();
+    }
+
+    /**
+     * @return how many counted Mats were garbage collected without having been released.
+     */
+    public static long leaks() {
+        return leaks.get();
+    }
+
+    private static void track(Mat mat, long key, boolean pooled) {
+        Tracked t = new Tracked(key, mat.total() * mat.elemSize(), pooled);
+        liveBytes.addAndGet(t.bytes);
+        synchronized (MatPool.class) {
+            tracked.put(mat, t);
+        }
+        cleaner.register(mat, t);
+    }
+
+    private static long key(int rows, int cols, int type) {
+        return ((long) type << 40) | ((long) rows << 20) | cols;
+    }
+}
@@ -0,0 +1,108 @@
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import edu.wpi.first.networktables.EntryListenerFlags;
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Holds one camera's current {@link PipelineParameters} behind a single volatile reference that
+ * all of its pipelines read once per frame.
+ *
+ * <p>The parameters are loaded from a JSON file and mirrored into a <code>parameters</code>
+ * subtable of the vision table. Editing an entry there, e.g. from Shuffleboard, swaps in a new
+ * snapshot, which the pipelines pick up at their next frame. Changes are saved back to the file
+ * through the shared {@link PersistenceService}, so a burst of edits is written once, with the
+ * latest values.
+ */
+public class ParameterStore implements Supplier<PipelineParameters> {
+    private final Path path;
+    private final PersistenceService persistence;
+    private volatile PipelineParameters current;
+
+    /**
+     * @param path the JSON file to load from and save to; the defaults are used if it is missing.
+     * @param visionTable the camera's vision table.
+     * @param defaults the parameters of the camera's pipeline, for any missing from the file.
+     * @param persistence the service that saves the file.
+     */
+    public ParameterStore(Path path, NetworkTable visionTable, PipelineParameters defaults,
+                          PersistenceService persistence) {
+        this.path = path;
+        this.persistence = persistence;
+        this.current = load(path, defaults);
+
+        NetworkTable table = visionTable.getSubTable("parameters");
+        int flags = EntryListenerFlags.kNew | EntryListenerFlags.kUpdate;
+        for (PipelineParameters.Value v : PipelineParameters.Value.values()) {
+            NetworkTableEntry entry = table.getEntry(v.key());
+            entry.setDouble(current.get(v));
+            entry.addListener(event -> {
+                if (event.value.isDouble()) {
+                    update(parameters -> parameters.with(v, event.value.getDouble()));
+                }
+            }, flags);
+        }
+        NetworkTableEntry blurType = table.getEntry(PipelineParameters.BLUR_TYPE_KEY);
+        blurType.setString(current.blurType());
+        blurType.addListener(event -> {
+            if (event.value.isString()) {
+                update(parameters -> parameters.withBlurType(event.value.getString()));
+            }
+        }, flags);
+        NetworkTableEntry externalOnly = table.getEntry(PipelineParameters.EXTERNAL_ONLY_KEY);
+        externalOnly.setBoolean(current.externalOnly());
+        externalOnly.addListener(event -> {
+            if (event.value.isBoolean()) {
+                update(parameters -> parameters.withExternalOnly(event.value.getBoolean()));
+            }
+        }, flags);
+    }
+
+    /**
+     * @return the parameters to process the next frame with.
+     */
+    @Override
+    public PipelineParameters get() {
+        return current;
+    }
+
+    /**
+     * Replaces the parameters and saves them.
+     */
+    public void set(PipelineParameters parameters) {
+        update(old -> parameters);
+    }
+
+    private synchronized void update(UnaryOperator<PipelineParameters> change) {
+        PipelineParameters changed = change.apply(current);
+        if (changed == current) {
+            return;
+        }
+        current = changed;
+        String json = new GsonBuilder().setPrettyPrinting().create().toJson(changed.toJson());
+        persistence.write(path, json);
+    }
+
+    private static PipelineParameters load(Path path, PipelineParameters defaults) {
+        if (!Files.exists(path)) {
+            System.out.println("No pipeline parameters at " + path + ", using the GRIP defaults.");
+            return defaults;
+        }
+        try {
+            JsonObject json = new JsonParser().parse(Files.readString(path)).getAsJsonObject();
+            return PipelineParameters.fromJson(json, defaults);
+        } catch (IOException | RuntimeException e) {
+            System.err.println("Failed to read pipeline parameters from " + path
+                    + ", using the GRIP defaults.");
+            e.printStackTrace();
+            return defaults;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The one thread that writes files to the Pi's SD card, shared by every camera.
+ *
+ * <p>FRCVision keeps the root filesystem read-only, so every save needs a remount. Writes are
+ * coalesced per file, only the latest contents being kept, and collected for
+ * {@value #BATCH_DELAY_MS} ms, so a burst of changes to several files costs a single read-write
+ * window. Each file is written to a temporary file, synced, and renamed over the old one, so a
+ * power loss leaves either the old or the new contents. The filesystem is remounted read-only
+ * after every batch, retried if that fails, and once more when the program exits.
+ */
+public class PersistenceService {
+    private static final long BATCH_DELAY_MS = 500;
+    private static final int REMOUNT_ATTEMPTS = 3;
+
+    private final Map<Path, byte[]> pending = new LinkedHashMap<>();
+    /**
+     * Guards the mount state, apart from {@link #pending} so that remounting, which runs a
+     * process and can take seconds, never holds up callers of {@link #write}.
+     */
+    private final Object mountLock = new Object();
+    private boolean writable;
+
+    public PersistenceService() {
+        Thread thread = new Thread(this::run, "PersistenceService");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            synchronized (mountLock) {
+                if (writable) {
+                    makeReadOnly();
+                }
+            }
+        }, "PersistenceService shutdown"));
+    }
+
+    /**
+     * Saves a file in the background, replacing any write of the same file that has not happened
+     * yet. Never blocks on the disk or a remount.
+     *
+     * @param path the file to write.
+     * @param contents the text to write to it.
+     */
+    public void write(Path path, String contents) {
+        write(path, contents.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Saves a binary file in the background, creating its directory if needed, like
+     * {@link #write(Path, String)}. The array must not be modified afterwards.
+     *
+     * @param path the file to write.
+     * @param contents the bytes to write to it.
+     */
+    public void write(Path path, byte[] contents) {
+        synchronized (pending) {
+            pending.put(path, contents);
+            pending.notifyAll();
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                Map<Path, byte[]> batch;
+                synchronized (pending) {
+                    while (pending.isEmpty()) {
+                        pending.wait();
+                    }
+                }
+                // Let a burst of changes gather into one remount cycle
+                Thread.sleep(BATCH_DELAY_MS);
+                synchronized (pending) {
+                    batch = new LinkedHashMap<>(pending);
+                    pending.clear();
+                }
+                synchronized (mountLock) {
+                    writable = makeWritable();
+                }
+                try {
+                    for (Map.Entry<Path, byte[]> file : batch.entrySet()) {
+                        writeAtomically(file.getKey(), file.getValue());
+                    }
+                } finally {
+                    synchronized (mountLock) {
+                        // Retried with the next batch if it fails
+                        if (writable) {
+                            writable = !makeReadOnly();
+                        }
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void writeAtomically(Path path, byte[] contents) {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.wrap(contents);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.err.println("Failed to write " + path);
+            e.printStackTrace();
+        }
+    }
+
+    private static boolean makeWritable() {
+        if (!mount("rw")) {
+            System.err.println("Failed to make system writable.");
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean makeReadOnly() {
+        for (int attempt = 0; attempt < REMOUNT_ATTEMPTS; attempt++) {
+            if (mount("ro")) {
+                return true;
+            }
+        }
+        System.err.println("Failed to make system readonly. WARNING: this could render the " +
+                "filesystem corrupt and should be manually corrected immediately.");
+        return false;
+    }
+
+    /**
+     * Remounts the root and boot filesystems, without ever waiting for a sudo password.
+     */
+    private static boolean mount(String mode) {
+        try {
+            Process process = Runtime.getRuntime().exec(new String[]{"/usr/bin/sudo", "-n", "/bin/sh", "-c",
+                    "/bin/mount -o remount," + mode + " / && /bin/mount -o remount," + mode + " /boot"});
+            return process.waitFor() == 0;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of every tunable value of {@link GripPipeline}.
+ *
+ * <p>The pipeline reads one snapshot at the start of each frame, so a change never applies to half
+ * a frame, and reading it allocates nothing: the ranges are kept as ready-made arrays. A change
+ * makes a new snapshot with {@link #with}. Snapshots read and write a flat JSON object keyed like
+ * the NetworkTables entries, e.g. <code>{"hue_min": 49.2, "blur_type": "Box Blur"}</code>; missing
+ * keys keep their defaults, which are the values exported from GRIP.
+ */
+public final class PipelineParameters {
+    /**
+     * The numeric values, with their JSON/NetworkTables keys and GRIP defaults.
+     */
+    public enum Value {
+        BLUR_RADIUS("blur_radius", 0.9009009009008917),
+        HUE_MIN("hue_min", 49.152542372881356),
+        HUE_MAX("hue_max", 99.8464301640168),
+        SATURATION_MIN("saturation_min", 91.24293785310735),
+        SATURATION_MAX("saturation_max", 255.0),
+        VALUE_MIN("value_min", 168.08730134536438),
+        VALUE_MAX("value_max", 255.0),
+        MIN_AREA("min_area", 200.0),
+        MIN_PERIMETER("min_perimeter", 10.0),
+        MIN_WIDTH("min_width", 0.0),
+        MAX_WIDTH("max_width", 1500.0),
+        MIN_HEIGHT("min_height", 10.0),
+        MAX_HEIGHT("max_height", 1000.0),
+        MIN_SOLIDITY("min_solidity", 0.0),
+        MAX_SOLIDITY("max_solidity", 100.0),
+        MAX_VERTICES("max_vertices", 1000000.0),
+        MIN_VERTICES("min_vertices", 0.0),
+        MIN_RATIO("min_ratio", 0.0),
+        MAX_RATIO("max_ratio", 10000.0);
+
+        private final String key;
+        private final double defaultValue;
+
+        Value(String key, double defaultValue) {
+            this.key = key;
+            this.defaultValue = defaultValue;
+        }
+
+        /**
+         * @return the name of this value in JSON and NetworkTables.
+         */
+        public String key() {
+            return key;
+        }
+    }
+
+    public static final String BLUR_TYPE_KEY = "blur_type";
+    public static final String EXTERNAL_ONLY_KEY = "external_only";
+
+    private static final Value[] VALUES = Value.values();
+
+    /** The values exported from GRIP. */
+    public static final PipelineParameters DEFAULTS = new PipelineParameters(defaultValues(),
+            GripPipeline.BlurType.BOX, false);
+
+    private final double[] values;
+    // Shared with every pipeline reading this snapshot; never modified
+    final GripPipeline.BlurType blurType;
+    final boolean externalOnly;
+    final double[] hue;
+    final double[] saturation;
+    final double[] value;
+    final double[] solidity;
+
+    private PipelineParameters(double[] values, GripPipeline.BlurType blurType, boolean externalOnly) {
+        this.values = values;
+        this.blurType = blurType;
+        this.externalOnly = externalOnly;
+        hue = new double[]{get(Value.HUE_MIN), get(Value.HUE_MAX)};
+        saturation = new double[]{get(Value.SATURATION_MIN), get(Value.SATURATION_MAX)};
+        value = new double[]{get(Value.VALUE_MIN), get(Value.VALUE_MAX)};
+        solidity = new double[]{get(Value.MIN_SOLIDITY), get(Value.MAX_SOLIDITY)};
+    }
+
+    private static double[] defaultValues() {
+        double[] values = new double[VALUES.length];
+        for (Value v : VALUES) {
+            values[v.ordinal()] = v.defaultValue;
+        }
+        return values;
+    }
+
+    /**
+     * @return the current setting of a value.
+     */
+    public double get(Value v) {
+        return values[v.ordinal()];
+    }
+
+    /**
+     * @return the blur type, by its GRIP label such as "Box Blur".
+     */
+    public String blurType() {
+        return blurType.toString();
+    }
+
+    /**
+     * @return whether only the outermost contours are found.
+     */
+    public boolean externalOnly() {
+        return externalOnly;
+    }
+
+    /**
+     * @return a snapshot with one value changed, or this one if it already has that value.
+     */
+    public PipelineParameters with(Value v, double newValue) {
+        if (get(v) == newValue) {
+            return this;
+        }
+        double[] changed = Arrays.copyOf(values, values.length);
+        changed[v.ordinal()] = newValue;
+        return new PipelineParameters(changed, blurType, externalOnly);
+    }
+
+    /**
+     * @param label the GRIP label of the blur type, e.g. "Gaussian Blur"; unknown labels mean a
+     *              box blur, as in GRIP's generated code.
+     * @return a snapshot with the blur type changed.
+     */
+    public PipelineParameters withBlurType(String label) {
+        GripPipeline.BlurType type = GripPipeline.BlurType.get(label);
+        return type == blurType ? this : new PipelineParameters(values, type, externalOnly);
+    }
+
+    /**
+     * @return a snapshot with only the outermost contours found, or all of them.
+     */
+    public PipelineParameters withExternalOnly(boolean externalOnly) {
+        return externalOnly == this.externalOnly ? this
+                : new PipelineParameters(values, blurType, externalOnly);
+    }
+
+    /**
+     * Reads a snapshot from JSON, keeping the GRIP defaults for any missing keys.
+     */
+    public static PipelineParameters fromJson(JsonObject json) {
+        return fromJson(json, DEFAULTS);
+    }
+
+    /**
+     * Reads a snapshot from JSON, keeping the given defaults for any missing keys.
+     */
+    public static PipelineParameters fromJson(JsonObject json, PipelineParameters defaults) {
+        double[] values = Arrays.copyOf(defaults.values, defaults.values.length);
+        for (Value v : VALUES) {
+            JsonElement element = json.get(v.key);
+            if (element != null) {
+                values[v.ordinal()] = element.getAsDouble();
+            }
+        }
+        GripPipeline.BlurType blurType = json.has(BLUR_TYPE_KEY)
+                ? GripPipeline.BlurType.get(json.get(BLUR_TYPE_KEY).getAsString())
+                : defaults.blurType;
+        boolean externalOnly = json.has(EXTERNAL_ONLY_KEY)
+                ? json.get(EXTERNAL_ONLY_KEY).getAsBoolean() : defaults.externalOnly;
+        return new PipelineParameters(values, blurType, externalOnly);
+    }
+
+    /**
+     * @return every value of this snapshot as JSON.
+     */
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        json.addProperty(BLUR_TYPE_KEY, blurType.toString());
+        json.addProperty(EXTERNAL_ONLY_KEY, externalOnly);
+        for (Value v : VALUES) {
+            json.addProperty(v.key, get(v));
+        }
+        return json;
+    }
+}
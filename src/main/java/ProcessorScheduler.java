@@ -0,0 +1,129 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded pool of processing threads shared by every camera.
+ *
+ * <p>Each camera registers its {@link FrameExecutor} with a priority and an optional frame rate
+ * cap. Whenever a thread is free it takes a frame from the highest-priority camera that has one
+ * waiting, is under its cap and is not already using all the pipelines it has. When the pool
+ * cannot keep up, the lower-priority cameras' frames wait in their rings and get dropped there,
+ * while the higher-priority cameras keep their frame rate.
+ */
+public class ProcessorScheduler {
+    /**
+     * A registered camera and its scheduling state, guarded by {@link #lock}.
+     */
+    private static final class Camera {
+        final FrameExecutor executor;
+        final int priority;
+        final long minIntervalNanos;
+        long nextAllowedNanos;
+        int activeWorkers;
+
+        Camera(FrameExecutor executor, int priority, double maxFps) {
+            this.executor = executor;
+            this.priority = priority;
+            this.minIntervalNanos = maxFps > 0 ? (long) (1e9 / maxFps) : 0;
+        }
+    }
+
+    private final int threadCount;
+    private final List<Camera> cameras = new ArrayList<>();
+    private final Object lock = new Object();
+
+    /**
+     * @param threadCount the number of processing threads shared by all cameras.
+     */
+    public ProcessorScheduler(int threadCount) {
+        this.threadCount = Math.max(1, threadCount);
+    }
+
+    /**
+     * Adds a camera. Cameras with equal priority are served in the order they were added.
+     *
+     * @param executor the camera's executor.
+     * @param priority higher priorities get free threads first.
+     * @param maxFps the most frames per second to process from this camera, or 0 for no cap.
+     */
+    public void register(FrameExecutor executor, int priority, double maxFps) {
+        Camera camera = new Camera(executor, priority, maxFps);
+        synchronized (lock) {
+            int index = 0;
+            while (index < cameras.size() && cameras.get(index).priority >= priority) {
+                index++;
+            }
+            cameras.add(index, camera);
+        }
+        executor.setFrameListener(this::frameAvailable);
+    }
+
+    /**
+     * Starts the processing threads.
+     */
+    public void start() {
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread(this::runWorker, "ProcessorScheduler worker " + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void frameAvailable() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    private void runWorker() {
+        try {
+            while (!Thread.interrupted()) {
+                Camera camera = takeCamera();
+                try {
+                    camera.executor.processNext();
+                } catch (RuntimeException e) {
+                    // One bad frame must not take a thread away from every camera
+                    camera.executor.frameFailed(e);
+                } finally {
+                    synchronized (lock) {
+                        camera.activeWorkers--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Waits until some camera can be served and reserves one of its pipelines.
+     */
+    private Camera takeCamera() throws InterruptedException {
+        synchronized (lock) {
+            while (true) {
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                for (Camera camera : cameras) {
+                    if (camera.activeWorkers >= camera.executor.maxWorkers()
+                            || !camera.executor.hasPendingFrame()) {
+                        continue;
+                    }
+                    long untilAllowed = camera.nextAllowedNanos - now;
+                    if (untilAllowed > 0) {
+                        wait = Math.min(wait, untilAllowed);
+                        continue;
+                    }
+                    camera.activeWorkers++;
+                    camera.nextAllowedNanos = now + camera.minIntervalNanos;
+                    return camera;
+                }
+                if (wait == Long.MAX_VALUE) {
+                    lock.wait();
+                } else {
+                    lock.wait(wait / 1000000, (int) (wait % 1000000));
+                }
+            }
+        }
+    }
+}
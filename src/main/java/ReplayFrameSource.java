@@ -0,0 +1,210 @@
+import edu.wpi.cscore.CvSource;
+import edu.wpi.cscore.VideoMode;
+import edu.wpi.first.networktables.NetworkTablesJNI;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgcodecs.Imgcodecs;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Frames from a recording instead of a camera: either a directory of images, played in file name
+ * order, or a recorded MJPEG file, which is memory-mapped and split into JPEGs at their start of
+ * image markers.
+ *
+ * <p>Frames are delivered as fast as they are asked for, or paced to a target frame rate. Each
+ * frame is stamped with the time it was grabbed, like a camera frame.
+ */
+public class ReplayFrameSource implements FrameSource {
+    private static final String[] IMAGE_EXTENSIONS = {".jpg", ".jpeg", ".png", ".bmp"};
+
+    private final String name;
+    private final List<Path> images;
+    private final MappedByteBuffer mjpeg;
+    private final List<long[]> jpegRanges;
+    private final double fps;
+    private final boolean loop;
+    private final VideoMode videoMode;
+
+    private CvSource output;
+    private int nextFrame;
+    private long startNanos;
+    private String error = "";
+
+    private final Mat encoded = new Mat();
+    private byte[] encodedBytes = new byte[0];
+
+    /**
+     * @param name the name of the replayed camera.
+     * @param path a directory of images or an MJPEG file.
+     * @param fps the rate to deliver frames at, or 0 to deliver them as fast as they are grabbed.
+     * @param loop whether to start over after the last frame instead of ending the stream.
+     * @throws IOException if the recording cannot be read or has no frames.
+     */
+    public ReplayFrameSource(String name, Path path, double fps, boolean loop) throws IOException {
+        this.name = name;
+        this.fps = fps;
+        this.loop = loop;
+        if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.list(path)) {
+                images = files.filter(ReplayFrameSource::isImage).sorted().collect(Collectors.toList());
+            }
+            mjpeg = null;
+            jpegRanges = null;
+        } else {
+            images = null;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                if (channel.size() > Integer.MAX_VALUE) {
+                    throw new IOException("MJPEG recordings over 2 GB are not supported: " + path);
+                }
+                mjpeg = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            jpegRanges = indexJpegs(mjpeg);
+        }
+        if (frameCount() == 0) {
+            throw new IOException("No frames found in " + path);
+        }
+
+        Mat first = new Mat();
+        if (!decode(0, first)) {
+            throw new IOException("Could not decode the first frame of " + path + ": " + error);
+        }
+        videoMode = new VideoMode(VideoMode.PixelFormat.kBGR, first.cols(), first.rows(),
+                (int) Math.round(fps));
+        first.release();
+    }
+
+    /**
+     * Also shows every replayed frame on a cscore source, e.g. to stream it like a camera.
+     */
+    public void setOutput(CvSource output) {
+        this.output = output;
+    }
+
+    /**
+     * @return the cscore source replayed frames are shown on, or null.
+     */
+    public CvSource getOutput() {
+        return output;
+    }
+
+    /**
+     * @return the number of frames in one pass of the recording.
+     */
+    public int frameCount() {
+        return images != null ? images.size() : jpegRanges.size();
+    }
+
+    @Override
+    public long grabFrame(Mat frame) {
+        if (nextFrame == frameCount()) {
+            if (!loop) {
+                return END_OF_STREAM;
+            }
+            nextFrame = 0;
+        }
+        if (fps > 0) {
+            if (startNanos == 0) {
+                startNanos = System.nanoTime();
+            }
+            long due = startNanos + (long) (nextFrame / fps * 1e9);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        if (!decode(nextFrame++, frame)) {
+            return 0;
+        }
+        if (output != null) {
+            output.putFrame(frame);
+        }
+        return NetworkTablesJNI.now();
+    }
+
+    @Override
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public VideoMode getVideoMode() {
+        return videoMode;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    private boolean decode(int index, Mat frame) {
+        Mat decoded;
+        if (images != null) {
+            decoded = Imgcodecs.imread(images.get(index).toString(), Imgcodecs.IMREAD_COLOR);
+        } else {
+            long[] range = jpegRanges.get(index);
+            int length = (int) (range[1] - range[0]);
+            if (encodedBytes.length < length) {
+                encodedBytes = new byte[length];
+            }
+            mjpeg.position((int) range[0]);
+            mjpeg.get(encodedBytes, 0, length);
+            encoded.create(1, length, CvType.CV_8UC1);
+            encoded.put(0, 0, encodedBytes, 0, length);
+            decoded = Imgcodecs.imdecode(encoded, Imgcodecs.IMREAD_COLOR);
+        }
+        if (decoded.empty()) {
+            error = "could not decode frame " + index;
+            decoded.release();
+            return false;
+        }
+        decoded.copyTo(frame);
+        decoded.release();
+        return true;
+    }
+
+    /**
+     * Finds every JPEG in an MJPEG recording. Each runs from a start of image marker up to the
+     * next one, so multipart boundaries between frames are passed to the decoder as trailing
+     * bytes, which it ignores.
+     */
+    private static List<long[]> indexJpegs(MappedByteBuffer data) {
+        List<long[]> ranges = new ArrayList<>();
+        int limit = data.limit();
+        long start = -1;
+        for (int i = 0; i + 2 < limit; i++) {
+            if (data.get(i) == (byte) 0xFF && data.get(i + 1) == (byte) 0xD8
+                    && data.get(i + 2) == (byte) 0xFF) {
+                if (start >= 0) {
+                    ranges.add(new long[]{start, i});
+                }
+                start = i;
+                i += 2;
+            }
+        }
+        if (start >= 0) {
+            ranges.add(new long[]{start, limit});
+        }
+        return ranges;
+    }
+
+    private static boolean isImage(Path path) {
+        String fileName = path.getFileName().toString().toLowerCase();
+        for (String extension : IMAGE_EXTENSIONS) {
+            if (fileName.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,66 @@
+import edu.wpi.first.networktables.NetworkTablesJNI;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes one CSV line per published result, so replays of the same recording can be compared
+ * before and after a change.
+ */
+public class ResultCsvWriter implements Closeable {
+    private static final String HEADER = "sequence,capture_time_us,valid,degree_offset,inch_offset,"
+            + "current_distance,pipeline_ms,latency_ms,cached";
+
+    private final BufferedWriter writer;
+    private final StringBuilder line = new StringBuilder();
+    private int rows;
+
+    public ResultCsvWriter(Path path) throws IOException {
+        writer = Files.newBufferedWriter(path);
+        writer.write(HEADER);
+        writer.newLine();
+    }
+
+    /**
+     * Appends a result. Called in frame order from the publisher.
+     */
+    public void write(TargetResult result) {
+        line.setLength(0);
+        line.append(result.sequence).append(',')
+                .append(result.captureTime).append(',')
+                .append(result.valid ? 1 : 0).append(',');
+        if (result.valid) {
+            line.append(result.degreeOffset).append(',')
+                    .append(result.inchOffset).append(',')
+                    .append(result.currentDistance).append(',');
+        } else {
+            line.append(",,,");
+        }
+        line.append(result.pipelineNanos / 1e6).append(',')
+                .append((NetworkTablesJNI.now() - result.captureTime) / 1000d).append(',')
+                .append(result.cached ? 1 : 0);
+        try {
+            writer.append(line);
+            writer.newLine();
+            rows++;
+        } catch (IOException e) {
+            System.err.println("Failed to write result CSV.");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * @return the number of results written so far.
+     */
+    public int rows() {
+        return rows;
+    }
+
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+}
@@ -0,0 +1,104 @@
+import org.opencv.core.Rect;
+
+/**
+ * Remembers where one camera last saw the target so the next frames only need to be searched in a
+ * window around it.
+ *
+ * <p>The window is the last bounding box grown on every side by a margin proportional to the
+ * target's size plus its recent motion, so a target moving quickly still lands inside it. After a
+ * configured number of frames in a row without a target, the full frame is searched again.
+ *
+ * <p>All pipelines of a camera share one tracker. Workers read the window when they start a frame
+ * and results are fed back in frame order by the publisher, so the methods are synchronized.
+ */
+public class RoiTracker {
+    private static final int MIN_MARGIN_PX = 16;
+
+    private final double marginFraction;
+    private final double velocityScale;
+    private final int maxMisses;
+
+    private boolean tracking;
+    private int misses;
+    private long lastSequence;
+    private double centerX;
+    private double centerY;
+    private int width;
+    private int height;
+    private double velocityX;
+    private double velocityY;
+
+    /**
+     * @param marginFraction how far to grow the window on each side, relative to the target size.
+     * @param velocityScale how many frames of the target's motion to add to the margin.
+     * @param maxMisses how many frames in a row may miss the target before searching everywhere.
+     */
+    public RoiTracker(double marginFraction, double velocityScale, int maxMisses) {
+        this.marginFraction = marginFraction;
+        this.velocityScale = velocityScale;
+        this.maxMisses = maxMisses;
+    }
+
+    /**
+     * Computes the window to search in the next frame.
+     *
+     * @param frameWidth the width of the frame, in px.
+     * @param frameHeight the height of the frame, in px.
+     * @param out the rect to overwrite with the window.
+     * @return false if the whole frame should be searched, in which case <code>out</code> is unchanged.
+     */
+    public synchronized boolean window(int frameWidth, int frameHeight, Rect out) {
+        if (!tracking) {
+            return false;
+        }
+        double marginX = Math.max(MIN_MARGIN_PX, marginFraction * width)
+                + velocityScale * Math.abs(velocityX);
+        double marginY = Math.max(MIN_MARGIN_PX, marginFraction * height)
+                + velocityScale * Math.abs(velocityY);
+        int x0 = Math.max(0, (int) Math.floor(centerX - width / 2d - marginX));
+        int y0 = Math.max(0, (int) Math.floor(centerY - height / 2d - marginY));
+        int x1 = Math.min(frameWidth, (int) Math.ceil(centerX + width / 2d + marginX));
+        int y1 = Math.min(frameHeight, (int) Math.ceil(centerY + height / 2d + marginY));
+        if (x1 <= x0 || y1 <= y0 || (x1 - x0) * (long) (y1 - y0) >= frameWidth * (long) frameHeight) {
+            return false;
+        }
+        out.x = x0;
+        out.y = y0;
+        out.width = x1 - x0;
+        out.height = y1 - y0;
+        return true;
+    }
+
+    /**
+     * Feeds back the result of a frame. Must be called in frame order.
+     *
+     * @param result the published result. Its frame box, in full-frame coordinates of the frame as
+     *               processed, is followed rather than the lens-corrected box.
+     */
+    public synchronized void update(TargetResult result) {
+        if (!result.valid) {
+            if (tracking && ++misses >= maxMisses) {
+                tracking = false;
+            }
+            return;
+        }
+        int[] box = result.frameBox;
+        double newCenterX = box[0] + box[2] / 2d;
+        double newCenterY = box[1] + box[3] / 2d;
+        if (tracking) {
+            long frames = Math.max(1, result.sequence - lastSequence);
+            velocityX = (newCenterX - centerX) / frames;
+            velocityY = (newCenterY - centerY) / frames;
+        } else {
+            velocityX = 0;
+            velocityY = 0;
+        }
+        centerX = newCenterX;
+        centerY = newCenterY;
+        width = box[2];
+        height = box[3];
+        lastSequence = result.sequence;
+        misses = 0;
+        tracking = true;
+    }
+}
@@ -1,20 +1,415 @@
+import edu.wpi.first.vision.VisionPipeline;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Rect;
 import org.opencv.imgproc.Imgproc;
 
-public class RooPipeline extends GripPipeline {
+import java.util.Arrays;
+import java.util.function.Supplier;
+
+public class RooPipeline implements VisionPipeline {
+    /** More candidate regions than this and the coarse search is not worth it. */
+    private static final int MAX_REGIONS = 8;
+    private static final int STATS_COLUMNS = 5;
+
+    private final TargetPipeline pipeline;
+    private final Rect window = new Rect();
+    private final Rect nextWindow = new Rect();
+    private RoiTracker roiTracker;
+    private LensCorrection lensCorrection;
+    // The undistorted frame, reduced copies and coarse mask, taken back when the next frame starts
+    private final MatPool.FrameBuffers buffers = new MatPool.FrameBuffers();
+    private boolean windowed;
+    private int frameWidth;
+    private int frameHeight;
+
+    private Supplier<PipelineParameters> parameters = () -> PipelineParameters.DEFAULTS;
+    private VisionMetrics metrics;
+    private int pyramidLevels;
+    private Mat coarseMask = new Mat();
+    private final Mat coarseStats = new Mat();
+    private final Mat coarseCentroids = new Mat();
+    private int[] coarseStatsBuffer = new int[STATS_COLUMNS * 16];
+    private final int[] regions = new int[4 * MAX_REGIONS];
+    private int regionCount;
+    private final Rect region = new Rect();
+    private final int[] box = new int[4];
+    private boolean coarse;
+    private SceneChangeDetector sceneChange;
+    private boolean cached;
+    private PipelineParameters lastParameters;
+    private long lastProcessNanos;
+
+    // Candidates of all regions, when the frame was searched region by region
+    private int candidateCount;
+    private int[] candidateBoxes = new int[4 * 8];
+    private double[] candidateAreas = new double[8];
+
+    /**
+     * Runs the code generated by GRIP.
+     */
+    public RooPipeline() {
+        this(new GripPipeline());
+    }
+
+    /**
+     * @param pipeline the pipeline that finds the target contours.
+     */
+    public RooPipeline(TargetPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
     @Override
     public void process(Mat source0) {
-        // Mat destMat = new Mat();
-        // Mat cmat = new Mat(3, 3, CvType.CV_64FC1);
-        // // cmat.put(0, 0, 3.9880059069460083e+02, 0., 3.1950000000000000e+02, 0., 3.9880059069460083e+02, 2.3950000000000000e+02, 0., 0., 1.);
-        // cmat.put(0, 0, 4.4591267180257097e+02, 0., 3.1950000000000000e+02, 0., 4.4591267180257097e+02, 2.3950000000000000e+02, 0., 0., 1.);
-        // Mat dmat = new Mat(5, 1, CvType.CV_64FC1);
-        // // dmat.put(0, 0,-2.8391855665804844e-01, 1.4110956317092877e-02, 0., 0., 5.5756067125119907e-02);
-        // dmat.put(0, 0,-4.2827077098878126e-02, -1.8441706717563970e+00, 0., 0., 6.4991402298444072e+00);
-        // Imgproc.undistort(source0, destMat, cmat, dmat);
-        //
-        // super.process(destMat);
-        super.process(source0);
+        int width = source0.width();
+        int height = source0.height();
+        boolean windowNext = roiTracker != null && roiTracker.window(width, height, nextWindow);
+        if (sceneChange != null) {
+            long start = System.nanoTime();
+            PipelineParameters params = parameters.get();
+            // The last result only stands for this frame if it would be searched the same way
+            boolean comparable = params == lastParameters && width == frameWidth
+                    && height == frameHeight && windowNext == windowed
+                    && (!windowNext || nextWindow.equals(window));
+            if (!comparable) {
+                sceneChange.reset();
+            }
+            lastParameters = params;
+            cached = sceneChange.unchanged(source0);
+            if (metrics != null) {
+                metrics.record(VisionMetrics.Stage.CHANGE_DETECT, System.nanoTime() - start);
+                metrics.sceneCacheResult(cached, lastProcessNanos);
+            }
+            if (cached) {
+                return;
+            }
+        }
+
+        long start = System.nanoTime();
+        frameWidth = width;
+        frameHeight = height;
+        windowed = windowNext;
+        window.x = nextWindow.x;
+        window.y = nextWindow.y;
+        window.width = nextWindow.width;
+        window.height = nextWindow.height;
+        processFrame(source0);
+        lastProcessNanos = System.nanoTime() - start;
+    }
+
+    private void processFrame(Mat source0) {
+        boolean remap = lensCorrection != null && lensCorrection.mode() == LensCorrection.Mode.REMAP;
+        coarse = false;
+        buffers.recycle();
+        if (!windowed && pyramidLevels > 0) {
+            Mat frame = remap ? undistortFrame(source0) : source0;
+            if (findRegions(frame)) {
+                processRegions(frame);
+                return;
+            }
+            // Too many blobs for the coarse search to pay off
+            pipeline.setContourOffset(0, 0);
+            pipeline.process(frame);
+            return;
+        }
+        if (windowed) {
+            // Only search around the last target; contours come back in full-frame coordinates
+            pipeline.setContourOffset(window.x, window.y);
+            if (remap) {
+                Mat undistorted = buffers.acquire(window.height, window.width, source0.type());
+                lensCorrection.undistortWindow(source0, window, undistorted);
+                pipeline.process(undistorted);
+            } else {
+                Mat roi = source0.submat(window);
+                pipeline.process(roi);
+                roi.release();
+            }
+        } else {
+            pipeline.setContourOffset(0, 0);
+            pipeline.process(remap ? undistortFrame(source0) : source0);
+        }
+    }
+
+    private Mat undistortFrame(Mat source0) {
+        Mat undistorted = buffers.acquire(source0.rows(), source0.cols(), source0.type());
+        lensCorrection.undistortFrame(source0, undistorted);
+        return undistorted;
+    }
+
+    /**
+     * Thresholds a reduced copy of the frame and collects the regions of the full frame around
+     * blobs big enough to be the target, merging those that overlap.
+     *
+     * @return false if there are too many regions to be worth searching one by one.
+     */
+    private boolean findRegions(Mat frame) {
+        long start = System.nanoTime();
+        Mat level = frame;
+        for (int i = 0; i < pyramidLevels; i++) {
+            Mat reduced = buffers.acquire((level.rows() + 1) / 2, (level.cols() + 1) / 2,
+                    level.type());
+            Imgproc.pyrDown(level, reduced);
+            level = reduced;
+        }
+        PipelineParameters params = parameters.get();
+        coarseMask = buffers.acquire(level.rows(), level.cols(), CvType.CV_8UC1);
+        pipeline.threshold(level, params, coarseMask);
+        Mat coarseLabels = buffers.acquire(level.rows(), level.cols(), CvType.CV_32S);
+        int count = Imgproc.connectedComponentsWithStats(coarseMask, coarseLabels, coarseStats,
+                coarseCentroids, 8, CvType.CV_32S);
+        if (coarseStatsBuffer.length < STATS_COLUMNS * count) {
+            int size = Math.max(STATS_COLUMNS * count, 2 * coarseStatsBuffer.length);
+            coarseStatsBuffer = new int[size];
+        }
+        coarseStats.get(0, 0, coarseStatsBuffer);
+
+        int scale = 1 << pyramidLevels;
+        // Lenient, as reducing blurs thin tape into its surroundings
+        double minHeight = params.get(PipelineParameters.Value.MIN_HEIGHT) / 2;
+        double minArea = params.get(PipelineParameters.Value.MIN_AREA) / 4;
+        int regionCount = 0;
+        for (int label = 1; label < count; label++) {
+            int base = STATS_COLUMNS * label;
+            int x = coarseStatsBuffer[base + Imgproc.CC_STAT_LEFT];
+            int y = coarseStatsBuffer[base + Imgproc.CC_STAT_TOP];
+            int w = coarseStatsBuffer[base + Imgproc.CC_STAT_WIDTH];
+            int h = coarseStatsBuffer[base + Imgproc.CC_STAT_HEIGHT];
+            int area = coarseStatsBuffer[base + Imgproc.CC_STAT_AREA];
+            if (h * scale < minHeight || (double) area * scale * scale < minArea) {
+                continue;
+            }
+            if (regionCount == MAX_REGIONS) {
+                record(start);
+                return false;
+            }
+            // Leaves room for the parts of the blob that fell below the threshold when reduced
+            int margin = 1 + Math.max(w, h) / 4;
+            int r = 4 * regionCount++;
+            regions[r] = Math.max(0, (x - margin) * scale);
+            regions[r + 1] = Math.max(0, (y - margin) * scale);
+            regions[r + 2] = Math.min(frameWidth, (x + w + margin) * scale);
+            regions[r + 3] = Math.min(frameHeight, (y + h + margin) * scale);
+        }
+        this.regionCount = mergeRegions(regionCount);
+        coarse = true;
+        record(start);
+        return true;
+    }
+
+    /**
+     * Merges overlapping regions until none overlap, so that no blob is searched twice.
+     *
+     * @return the number of regions left.
+     */
+    private int mergeRegions(int count) {
+        boolean merged = true;
+        while (merged) {
+            merged = false;
+            for (int i = 0; i < count && !merged; i++) {
+                for (int j = i + 1; j < count; j++) {
+                    int a = 4 * i;
+                    int b = 4 * j;
+                    boolean apart = regions[a] >= regions[b + 2] || regions[b] >= regions[a + 2]
+                            || regions[a + 1] >= regions[b + 3] || regions[b + 1] >= regions[a + 3];
+                    if (apart) {
+                        continue;
+                    }
+                    regions[a] = Math.min(regions[a], regions[b]);
+                    regions[a + 1] = Math.min(regions[a + 1], regions[b + 1]);
+                    regions[a + 2] = Math.max(regions[a + 2], regions[b + 2]);
+                    regions[a + 3] = Math.max(regions[a + 3], regions[b + 3]);
+                    count--;
+                    System.arraycopy(regions, 4 * count, regions, b, 4);
+                    merged = true;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Runs the full pipeline at full resolution in each region and collects the candidates.
+     */
+    private void processRegions(Mat frame) {
+        candidateCount = 0;
+        for (int i = 0; i < regionCount; i++) {
+            int r = 4 * i;
+            region.x = regions[r];
+            region.y = regions[r + 1];
+            region.width = regions[r + 2] - regions[r];
+            region.height = regions[r + 3] - regions[r + 1];
+            pipeline.setContourOffset(region.x, region.y);
+            Mat roi = frame.submat(region);
+            pipeline.process(roi);
+            roi.release();
+
+            ContourFilter filter = pipeline.contourFilter();
+            int accepted = filter.acceptedCount();
+            if (candidateAreas.length < candidateCount + accepted) {
+                int capacity = Math.max(candidateCount + accepted, 2 * candidateAreas.length);
+                candidateBoxes = Arrays.copyOf(candidateBoxes, 4 * capacity);
+                candidateAreas = Arrays.copyOf(candidateAreas, capacity);
+            }
+            for (int j = 0; j < accepted; j++, candidateCount++) {
+                filter.acceptedBox(j, box);
+                System.arraycopy(box, 0, candidateBoxes, 4 * candidateCount, 4);
+                candidateAreas[candidateCount] = filter.acceptedArea(j);
+            }
+        }
+    }
+
+    private void record(long start) {
+        if (metrics != null) {
+            metrics.record(VisionMetrics.Stage.COARSE, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Searches each full-resolution frame only around the blobs of a reduced copy, when it is not
+     * already searched in a window around the last target. The reduced copy is thresholded with
+     * the same parameters.
+     *
+     * @param levels how many times the frame is halved, 0 to always search the whole frame.
+     */
+    public void setPyramidLevels(int levels) {
+        pyramidLevels = levels;
+    }
+
+    /**
+     * Reuses the last result instead of processing a frame whose scene has not changed.
+     *
+     * @param sceneChange this pipeline's own detector, or null to process every frame.
+     */
+    public void setSceneChangeDetector(SceneChangeDetector sceneChange) {
+        this.sceneChange = sceneChange;
+    }
+
+    /**
+     * @return whether the last frame was not processed because its scene had not changed, so
+     * the candidates, mask and window are still those of an earlier frame.
+     */
+    public boolean cached() {
+        return cached;
+    }
+
+    /**
+     * Corrects lens distortion, either by undistorting each frame before processing it or by
+     * leaving it to {@link RooProcessor} to undistort the target's corners.
+     *
+     * @param lensCorrection this pipeline's own correction, or null to process frames as they are.
+     */
+    public void setLensCorrection(LensCorrection lensCorrection) {
+        this.lensCorrection = lensCorrection;
+    }
+
+    /**
+     * @return the lens correction, or null.
+     */
+    public LensCorrection lensCorrection() {
+        return lensCorrection;
+    }
+
+    /**
+     * @return the binary image the last frame's contours were found in, covering only the window
+     * when {@link #windowed}, or the reduced mask when the frame was searched coarse to fine.
+     */
+    public Mat mask() {
+        return coarse ? coarseMask : pipeline.mask();
+    }
+
+    /**
+     * @return the number of contours of the last frame that passed the filter.
+     */
+    public int candidateCount() {
+        return coarse ? candidateCount : pipeline.contourFilter().acceptedCount();
+    }
+
+    /**
+     * Copies the bounding box of a candidate, in full-frame coordinates, as x, y, width, height.
+     */
+    public void candidateBox(int index, int[] out) {
+        if (coarse) {
+            System.arraycopy(candidateBoxes, 4 * index, out, 0, 4);
+        } else {
+            pipeline.contourFilter().acceptedBox(index, out);
+        }
+    }
+
+    /**
+     * @return the area of a candidate, in px^2.
+     */
+    public double candidateArea(int index) {
+        return coarse ? candidateAreas[index] : pipeline.contourFilter().acceptedArea(index);
+    }
+
+    /**
+     * @see TargetPipeline#setMetrics
+     */
+    public void setMetrics(VisionMetrics metrics) {
+        this.metrics = metrics;
+        pipeline.setMetrics(metrics);
+    }
+
+    /**
+     * @see TargetPipeline#setParameters
+     */
+    public void setParameters(Supplier<PipelineParameters> parameters) {
+        this.parameters = parameters;
+        pipeline.setParameters(parameters);
+    }
+
+    /**
+     * @see TargetPipeline#setDetection
+     */
+    public void setDetection(ContourFilter.Detection detection) {
+        pipeline.setDetection(detection);
+    }
+
+    /**
+     * @see TargetPipeline#setLutThreshold
+     */
+    public void setLutThreshold(LutHsvThreshold lutThreshold) {
+        pipeline.setLutThreshold(lutThreshold);
+    }
+
+    /**
+     * Searches only a window around the last target while the tracker has one.
+     *
+     * @param roiTracker the camera's tracker, or null to always search the full frame.
+     */
+    public void setRoiTracker(RoiTracker roiTracker) {
+        this.roiTracker = roiTracker;
+    }
+
+    /**
+     * @return whether the last frame was only searched in a window around the last target.
+     */
+    public boolean windowed() {
+        return windowed;
+    }
+
+    /**
+     * Copies the window the last frame was searched in, if {@link #windowed}.
+     */
+    public void window(Rect out) {
+        out.x = window.x;
+        out.y = window.y;
+        out.width = window.width;
+        out.height = window.height;
+    }
+
+    /**
+     * @return the width of the last full frame, in px. The blur output is narrower when windowed.
+     */
+    public int frameWidth() {
+        return frameWidth;
+    }
+
+    /**
+     * @return the height of the last full frame, in px.
+     */
+    public int frameHeight() {
+        return frameHeight;
     }
 }
@@ -1,14 +1,18 @@
-import edu.wpi.cscore.VideoSource;
+import edu.wpi.cscore.VideoMode;
+import edu.wpi.first.networktables.EntryListenerFlags;
 import edu.wpi.first.networktables.NetworkTable;
-import edu.wpi.first.vision.VisionThread;
-import org.opencv.core.Rect;
-import org.opencv.imgproc.Imgproc;
+import edu.wpi.first.networktables.NetworkTableEntry;
+import org.opencv.core.Mat;
 
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.text.DecimalFormat;
 import java.text.DecimalFormatSymbols;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class RooProcessor {
     private static final double TARGET_WIDTH_INCHES = 39.25;
@@ -16,59 +20,424 @@ public class RooProcessor {
     private static final String FOCAL_LENGTH_CONFIG_PATH = "/home/pi/focal_length.txt";
     private static final String NT_CALIB_DIST_FIELD = "fl_calibration_distance";
     private static final String NT_CALIB_ENABLE_FIELD = "fl_calibration_enable";
+    private static final String NT_CALIB_SAMPLES_FIELD = "fl_calibration_samples";
+    /** Frames whose target heights are averaged into one focal length calibration. */
+    private static final int CALIBRATION_SAMPLES = 30;
+    /** Generated frames the first pipeline processes before any camera frame. */
+    private static final int WARMUP_FRAMES = 30;
+    private static final int WARMUP_DEFAULT_WIDTH = 640;
+    private static final int WARMUP_DEFAULT_HEIGHT = 480;
+    /** Thresholds timed with each method when choosing between the lookup table and cvtColor. */
+    private static final int LUT_TRIAL_RUNS = 10;
+    /** The rate unpaced recordings are assumed to have been captured at, for the tracker. */
+    private static final double REPLAY_NOMINAL_FPS = 30;
 
-    private double focalLength = -1;
+    private volatile double focalLength = -1;
+    /** The frame width the focal length is relative to, or 0 until the first frame. */
+    private volatile int focalLengthWidth;
 
-    private VideoSource camera;
+    private FrameSource frameSource;
     private NetworkTable visionTable;
+    private Main.CameraConfig config;
+    private VisionMetrics metrics;
+    private RoiTracker roiTracker;
+    private TargetTracker targetTracker;
+    private ParameterStore parameterStore;
+    /** Whether pipelines threshold with a lookup table, if one is configured and it is faster. */
+    private boolean lutThreshold;
+    private PersistenceService persistence;
+    private CalibrationStore calibrationStore;
+    private GripProject gripProject;
+    private LensCorrection.Intrinsics lensIntrinsics;
+    private LatencyGovernor governor;
+    private DebugStream debugStream;
+    private ResultCsvWriter csvWriter;
+    private TargetPublisher publisher;
+    private NetworkTableEntry calibDistEntry;
+    private NetworkTableEntry calibEnableEntry;
+    private NetworkTableEntry calibSamplesEntry;
+    private NetworkTableEntry readyEntry;
+    private NetworkTableEntry startupEntry;
+    private NetworkTableEntry firstTargetEntry;
+    /** A pipeline already run by {@link #warmUp}, handed to the first worker. */
+    private RooPipeline warmPipeline;
+    // Publish only
+    private boolean published;
+    private boolean targetFound;
+    private final AtomicBoolean calibrationRequested = new AtomicBoolean();
+    /** Target heights seen while calibrating, scaled to {@link #focalLengthWidth}; publish only. */
+    private final double[] calibrationHeights = new double[CALIBRATION_SAMPLES];
+    private int calibrationSampleCount;
+    private final CountDownLatch finished = new CountDownLatch(1);
 
-    public RooProcessor(VideoSource camera, NetworkTable visionTable) {
-        this.camera = camera;
+    /**
+     * @param persistence the service that saves files, shared by every camera.
+     */
+    public RooProcessor(FrameSource frameSource, NetworkTable visionTable, Main.CameraConfig config,
+                        PersistenceService persistence) {
+        this.frameSource = frameSource;
         this.visionTable = visionTable;
+        this.config = config;
+        this.persistence = persistence;
+        this.metrics = new VisionMetrics(visionTable);
+        if (!"roo".equals(config.pipeline)) {
+            try {
+                this.gripProject = GripProject.load(Paths.get(config.pipeline));
+            } catch (IOException | IllegalArgumentException e) {
+                System.err.println("Failed to load GRIP project " + config.pipeline
+                        + ", using the generated pipeline instead.");
+                e.printStackTrace();
+            }
+        }
+        if (config.lensIntrinsics != null) {
+            try {
+                lensIntrinsics = LensCorrection.Intrinsics.load(Paths.get(config.lensIntrinsics));
+            } catch (IOException e) {
+                System.err.println("Failed to load lens calibration " + config.lensIntrinsics
+                        + ". Frames will not be undistorted.");
+                e.printStackTrace();
+            }
+        }
+        PipelineParameters defaults = gripProject != null ? gripProject.defaultParameters()
+                : PipelineParameters.DEFAULTS;
+        this.parameterStore = new ParameterStore(Paths.get(config.parametersPath), visionTable,
+                defaults, persistence);
+        this.lutThreshold = config.lutThresholdBits > 0;
+        this.calibrationStore = new CalibrationStore(Paths.get(config.calibrationPath), persistence);
+        this.targetTracker = new TargetTracker(config.trackMaxMisses);
+        if (config.replay != null) {
+            // Replayed frames are stamped when grabbed, i.e. as fast as they are processed
+            double fps = config.replayFps > 0 ? config.replayFps : REPLAY_NOMINAL_FPS;
+            targetTracker.setFramePeriod(Math.round(1e6 / fps));
+        }
+        this.publisher = new TargetPublisher(visionTable, config.publishedTracks);
+        if (config.tracking) {
+            this.roiTracker = new RoiTracker(config.trackingMargin, config.trackingVelocityScale,
+                    config.trackingMaxMisses);
+        }
+        VideoMode mode = frameSource.getVideoMode();
+        if (mode != null) {
+            focalLengthWidth = mode.width;
+        }
         readFocalLength();
         initNetworkTablesFields();
     }
 
-    public void process() {
-        VisionThread visionThread = new VisionThread(camera,
-                new RooPipeline(), pipeline -> {
-            if (!pipeline.filterContoursOutput().isEmpty()) {
-                Rect contourRect = Imgproc.boundingRect(pipeline.filterContoursOutput().get(0));
-                double centerX = contourRect.x + (contourRect.width / 2d);
-                double imgWidth = pipeline.blurOutput().width();
-                double pixelOffset = imgWidth / 2d - centerX;
-
-                double degreeOffset = (pixelOffset / imgWidth) * 60d;
-                visionTable.getEntry("degree_offset").setDouble(degreeOffset);
-
-                double pixelWidth = contourRect.width;
-                double pixelToInchesRatioWidth = TARGET_WIDTH_INCHES / pixelWidth;
-                double inchOffset = pixelOffset * pixelToInchesRatioWidth;
-                visionTable.getEntry("inch_offset").setDouble(inchOffset);
-
-                double pixelHeight = contourRect.height;
-                double pixelToInchesRatioHeight = TARGET_HEIGHT_INCHES / pixelHeight;
-                double currentDistance = focalLength * pixelToInchesRatioHeight;
-                visionTable.getEntry("current_distance").setDouble(currentDistance);
-
-                if (visionTable.getEntry(NT_CALIB_ENABLE_FIELD).getBoolean(false)) {
-                    visionTable.getEntry(NT_CALIB_ENABLE_FIELD).setBoolean(false);
-                    computeFocalLength(pixelHeight);
-                }
+    /**
+     * Starts grabbing frames and registers the camera with the shared processing threads.
+     *
+     * @param scheduler the processing threads shared by all cameras.
+     */
+    public void process(ProcessorScheduler scheduler) {
+        if (config.replayOutput != null) {
+            try {
+                csvWriter = new ResultCsvWriter(Paths.get(config.replayOutput));
+            } catch (IOException e) {
+                System.err.println("Failed to open " + config.replayOutput + " for results.");
+                e.printStackTrace();
+            }
+        }
+        if (config.debugStream) {
+            debugStream = new DebugStream(frameSource.getName() + " debug", config.debugWidth,
+                    config.debugHeight, config.debugFps);
+        }
+        FrameExecutor executor = new FrameExecutor(frameSource, config.workers, config.queueDepth,
+                config.queuePolicy, metrics, this::createPipeline, this::analyze, this::publish);
+        executor.setOnFinished(this::finish);
+        if (config.recorder) {
+            executor.setRecorder(new FrameRecorder(frameSource.getName(),
+                    frameSource.getVideoMode(), config.recorderSeconds, config.recorderEvery,
+                    config.recorderQuality, Paths.get(config.recorderDirectory), persistence,
+                    visionTable));
+        }
+        if (config.latencyBudgetMs > 0) {
+            governor = new LatencyGovernor(config.latencyBudgetMs, executor, frameSource, visionTable);
+        }
+        scheduler.register(executor, config.priority, config.maxFps);
+        executor.start();
+        metrics.start();
+    }
+
+    /**
+     * Waits until a replayed recording has been fully processed. Never returns for a live camera.
+     */
+    public void awaitFinished() throws InterruptedException {
+        finished.await();
+    }
+
+    private void finish() {
+        if (csvWriter != null) {
+            try {
+                csvWriter.close();
+                System.out.println("Wrote " + csvWriter.rows() + " results from "
+                        + frameSource.getName() + " to " + config.replayOutput);
+            } catch (IOException e) {
+                System.err.println("Failed to finish writing " + config.replayOutput);
+                e.printStackTrace();
+            }
+        }
+        finished.countDown();
+    }
+
+    /**
+     * Runs the first pipeline on {@value #WARMUP_FRAMES} generated frames of the camera's size,
+     * so that the JIT has compiled the per-frame code and the pipeline's buffers are allocated by
+     * the time the first camera frame arrives. The pipeline then goes to the first worker. Must be
+     * called before {@link #process}.
+     */
+    public void warmUp() {
+        long start = System.nanoTime();
+        VideoMode mode = frameSource.getVideoMode();
+        boolean known = mode != null && mode.width > 0 && mode.height > 0;
+        int width = known ? mode.width : WARMUP_DEFAULT_WIDTH;
+        int height = known ? mode.height : WARMUP_DEFAULT_HEIGHT;
+        SyntheticFrameSource frames = new SyntheticFrameSource(frameSource.getName() + " warm-up",
+                width, height, 0);
+        Mat frame = new Mat();
+        if (lutThreshold) {
+            // Before the pipeline is created, so that it only gets the lookup table if it won
+            frames.grabFrame(frame);
+            chooseThreshold(frame);
+        }
+        RooPipeline pipeline = createPipeline();
+        TargetResult result = new TargetResult();
+        for (int i = 0; i < WARMUP_FRAMES; i++) {
+            frames.grabFrame(frame);
+            pipeline.process(frame);
+            computeTarget(pipeline, scaledFocalLength(pipeline.frameWidth()), result);
+        }
+        frame.release();
+        frames.release();
+        warmPipeline = pipeline;
+        System.out.println("Warmed up " + frameSource.getName() + " in "
+                + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Keeps the configured lookup-table threshold only if it beats cvtColor and inRange on a
+     * frame of the camera's size on this machine.
+     */
+    private void chooseThreshold(Mat frame) {
+        PipelineParameters params = parameterStore.get();
+        long[] times = new LutHsvThreshold(config.lutThresholdBits).compareWithCvtColor(frame,
+                params.hue, params.saturation, params.value, LUT_TRIAL_RUNS);
+        lutThreshold = times[0] < times[1];
+        System.out.println(String.format("%s threshold: lookup table %.2f ms, cvtColor %.2f ms;"
+                        + " using %s", frameSource.getName(), times[0] / 1e6, times[1] / 1e6,
+                lutThreshold ? "the lookup table" : "cvtColor"));
+    }
+
+    private RooPipeline createPipeline() {
+        if (warmPipeline != null) {
+            RooPipeline pipeline = warmPipeline;
+            warmPipeline = null;
+            return pipeline;
+        }
+        RooPipeline pipeline = gripProject != null ? new RooPipeline(gripProject.compile())
+                : new RooPipeline();
+        pipeline.setRoiTracker(roiTracker);
+        pipeline.setParameters(parameterStore);
+        if (lensIntrinsics != null) {
+            pipeline.setLensCorrection(new LensCorrection(lensIntrinsics, config.lensMode));
+        }
+        if (lutThreshold) {
+            pipeline.setLutThreshold(new LutHsvThreshold(config.lutThresholdBits));
+        }
+        pipeline.setDetection(config.detection);
+        pipeline.setPyramidLevels(config.pyramidLevels);
+        if (config.sceneCache) {
+            pipeline.setSceneChangeDetector(new SceneChangeDetector(config.sceneCacheTolerance,
+                    config.sceneCacheMaxFrames));
+        }
+        return pipeline;
+    }
+
+    /**
+     * Finds the target of a processed frame. Called by the {@link FrameExecutor} on workers.
+     */
+    private void analyze(RooPipeline pipeline, TargetResult result) {
+        computeTarget(pipeline, scaledFocalLength(pipeline.frameWidth()), result);
+        result.cached = pipeline.cached();
+        if (debugStream != null) {
+            debugStream.offer(pipeline, result);
+        }
+    }
+
+    /**
+     * Publishes a result to NetworkTables. Called by the {@link FrameExecutor} in frame order.
+     */
+    private void publish(TargetResult result) {
+        targetTracker.update(result);
+        if (result.valid) {
+            computeOffsets(scaledFocalLength(result.frameWidth), result);
+        }
+        if (roiTracker != null) {
+            // Follows frameBox, which the tracker has set to the target's box as found in the frame
+            roiTracker.update(result);
+        }
+        if (csvWriter != null) {
+            csvWriter.write(result);
+        }
+        publisher.publish(result, targetTracker);
+        if (governor != null) {
+            governor.update(result);
+        }
+
+        if (!published || (result.valid && !targetFound)) {
+            reportStartup(result.valid);
+        }
+
+        if (result.valid && calibrationRequested.get()) {
+            addCalibrationSample(result.pixelHeight, result.frameWidth);
+        }
+    }
+
+    /**
+     * Signals readiness on the first published result, and reports how long after the JVM started
+     * that result and the first valid target were published.
+     */
+    private void reportStartup(boolean valid) {
+        long uptimeMs = ManagementFactory.getRuntimeMXBean().getUptime();
+        if (!published) {
+            published = true;
+            startupEntry.setDouble(uptimeMs);
+            readyEntry.setBoolean(true);
+            System.out.println(frameSource.getName() + " ready " + uptimeMs + " ms after start");
+        }
+        if (valid && !targetFound) {
+            targetFound = true;
+            firstTargetEntry.setDouble(uptimeMs);
+            System.out.println(frameSource.getName() + " found its first target " + uptimeMs
+                    + " ms after start");
+        }
+    }
+
+    /**
+     * Collects the target height of one frame for the focal length calibration, which is computed
+     * once {@value #CALIBRATION_SAMPLES} frames have been seen. Costs nothing more per frame than
+     * storing the height.
+     */
+    private void addCalibrationSample(double pixelHeight, int frameWidth) {
+        if (focalLengthWidth <= 0) {
+            focalLengthWidth = frameWidth;
+        }
+        // Scaled to the configured video mode, in case the governor switches modes meanwhile
+        calibrationHeights[calibrationSampleCount++] = pixelHeight * focalLengthWidth / frameWidth;
+        calibSamplesEntry.setDouble(calibrationSampleCount);
+        if (calibrationSampleCount < CALIBRATION_SAMPLES) {
+            return;
+        }
+        calibrationSampleCount = 0;
+        calibrationRequested.set(false);
+        calibEnableEntry.setBoolean(false);
+        computeFocalLength(averageHeight(calibrationHeights));
+    }
+
+    /**
+     * Averages the middle half of the heights, ignoring frames where the target was partly hidden
+     * or merged with a reflection. Sorts the heights in place.
+     */
+    static double averageHeight(double[] heights) {
+        Arrays.sort(heights);
+        int from = heights.length / 4;
+        int to = heights.length - from;
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += heights[i];
+        }
+        return sum / (to - from);
+    }
+
+    /**
+     * Scales the focal length to the width of a frame, which changes when the camera's video mode
+     * is switched.
+     */
+    private double scaledFocalLength(int frameWidth) {
+        int width = focalLengthWidth;
+        if (width <= 0) {
+            focalLengthWidth = width = frameWidth;
+        }
+        return focalLength * frameWidth / width;
+    }
+
+    /**
+     * Scores every filtered contour of a processed frame as a target candidate and computes the
+     * offsets and distance of the best one.
+     *
+     * @param pipeline the pipeline that just processed the frame.
+     * @param focalLength the calibrated focal length, in px.
+     * @param result the result to overwrite; left invalid if no contour passed the filter.
+     */
+    static void computeTarget(RooPipeline pipeline, double focalLength, TargetResult result) {
+        int count = pipeline.candidateCount();
+        result.frameWidth = pipeline.frameWidth();
+        result.ensureCandidateCapacity(count);
+        result.candidateCount = count;
+        int[] box = result.box;
+        for (int i = 0; i < count; i++) {
+            pipeline.candidateBox(i, box);
+            System.arraycopy(box, 0, result.candidateBoxes, 4 * i, 4);
+        }
+        System.arraycopy(result.candidateBoxes, 0, result.frameCandidateBoxes, 0, 4 * count);
+        LensCorrection lens = pipeline.lensCorrection();
+        if (lens != null && lens.mode() == LensCorrection.Mode.POINTS) {
+            lens.undistortBoxes(result.candidateBoxes, count, pipeline.frameWidth(),
+                    pipeline.frameHeight());
+        }
+        int best = -1;
+        double bestScore = -1;
+        for (int i = 0; i < count; i++) {
+            double score = TargetTracker.score(result.candidateBoxes[4 * i + 2],
+                    result.candidateBoxes[4 * i + 3], pipeline.candidateArea(i));
+            result.candidateScores[i] = score;
+            if (score > bestScore) {
+                bestScore = score;
+                best = i;
             }
-        });
-        visionThread.start();
+        }
+        result.valid = best >= 0;
+        if (!result.valid) {
+            return;
+        }
+        System.arraycopy(result.candidateBoxes, 4 * best, box, 0, 4);
+        System.arraycopy(result.frameCandidateBoxes, 4 * best, result.frameBox, 0, 4);
+        computeOffsets(focalLength, result);
+    }
+
+    /**
+     * Computes the offsets and distance of the target box of a result.
+     *
+     * @param focalLength the calibrated focal length, in px.
+     * @param result the result holding the box and frame width.
+     */
+    static void computeOffsets(double focalLength, TargetResult result) {
+        int[] box = result.box;
+        double centerX = box[0] + (box[2] / 2d);
+        double imgWidth = result.frameWidth;
+        double pixelOffset = imgWidth / 2d - centerX;
+
+        result.degreeOffset = (pixelOffset / imgWidth) * 60d;
+
+        double pixelWidth = box[2];
+        double pixelToInchesRatioWidth = TARGET_WIDTH_INCHES / pixelWidth;
+        result.inchOffset = pixelOffset * pixelToInchesRatioWidth;
+
+        double pixelHeight = box[3];
+        double pixelToInchesRatioHeight = TARGET_HEIGHT_INCHES / pixelHeight;
+        result.currentDistance = focalLength * pixelToInchesRatioHeight;
+        result.pixelHeight = pixelHeight;
     }
 
     /**
      * Computes the focal length based on the perceived contour height at a known distance specified
      * in NetworkTables in the <code>fl_calibration_distance</code> field. Saves in
-     * {@link #focalLength} and writes to disk.
+     * {@link #focalLength} and in the calibration store.
      *
-     * @param perceivedHeightPx the height of the contour at the calibration distance, in px.
+     * @param perceivedHeightPx the average height of the contour at the calibration distance, in px
+     *                          at {@link #focalLengthWidth}.
      */
     private void computeFocalLength(double perceivedHeightPx) {
-        double knownDist = visionTable.getEntry(NT_CALIB_DIST_FIELD).getDouble(-1);
+        double knownDist = calibDistEntry.getDouble(-1);
         if (knownDist <= 0) {
             System.out.println("Invalid or missing " + NT_CALIB_DIST_FIELD + ". Computation aborted.");
             return;
@@ -77,14 +446,23 @@ public class RooProcessor {
                 "known_height = " + TARGET_HEIGHT_INCHES + " in; " +
                 "perceived_height = " + perceivedHeightPx + " px;" +
                 "known_dist = " + knownDist);
-        this.focalLength = knownDist * perceivedHeightPx / TARGET_HEIGHT_INCHES;
-        writeFocalLength();
+        focalLength = knownDist * perceivedHeightPx / TARGET_HEIGHT_INCHES;
+        calibrationStore.set(
+                new String[]{CalibrationStore.FOCAL_LENGTH, CalibrationStore.FOCAL_LENGTH_WIDTH},
+                new double[]{focalLength, focalLengthWidth});
     }
 
     /**
-     * Reads the saved focal length from disk and stores in the {@link #focalLength} variable.
+     * Reads the saved focal length and stores in the {@link #focalLength} variable. Falls back to
+     * the file written before the calibration store existed.
      */
     private void readFocalLength() {
+        if (calibrationStore.has(CalibrationStore.FOCAL_LENGTH)) {
+            focalLength = calibrationStore.get(CalibrationStore.FOCAL_LENGTH, -1);
+            focalLengthWidth = (int) calibrationStore.get(CalibrationStore.FOCAL_LENGTH_WIDTH,
+                    focalLengthWidth);
+            return;
+        }
         try {
             String rawSave = Files.readString(Paths.get(FOCAL_LENGTH_CONFIG_PATH));
             // We should be able to use Double.parseDouble(), but that doesn't work for some reason
@@ -101,48 +479,32 @@ public class RooProcessor {
         }
     }
 
-    /**
-     * Writes the currently computed focal length to disk.
-     */
-    private void writeFocalLength() {
-        final double valueToSave = this.focalLength;
-        Runnable runnable = () -> {
-            try {
-                Runtime.getRuntime().exec(new String[]{"/usr/bin/sudo", "/bin/sh", "-c",
-                        "/bin/mount -o remount,rw / && /bin/mount -o remount,rw /boot"});
-                Thread.sleep(1000);
-            } catch (IOException | InterruptedException e) {
-                System.err.println("Failed to make system writable.");
-                e.printStackTrace();
-            }
-            try {
-                Files.writeString(Paths.get(FOCAL_LENGTH_CONFIG_PATH), Double.toString(valueToSave));
-            } catch (IOException e) {
-                System.err.println("Failed to write focal length to disk.");
-                e.printStackTrace();
-            }
-            try {
-                Runtime.getRuntime().exec(new String[]{"/usr/bin/sudo", "/bin/sh", "-c",
-                        "/bin/mount -o remount,ro / && /bin/mount -o remount,ro /boot"});
-            } catch (IOException e) {
-                System.err.println("Failed to make system readonly. WARNING: this could render the " +
-                        "filesystem corrupt and should be manually corrected immediately.");
-                e.printStackTrace();
-            }
-        };
-        new Thread(runnable).start();
-    }
-
     /**
      * Initializes fields on the vision table to prepare for later input in Shuffleboard.
      */
     private void initNetworkTablesFields() {
-        if (!visionTable.getEntry(NT_CALIB_DIST_FIELD).exists()) {
-            visionTable.getEntry(NT_CALIB_DIST_FIELD).setDouble(-1);
+        calibDistEntry = visionTable.getEntry(NT_CALIB_DIST_FIELD);
+        calibEnableEntry = visionTable.getEntry(NT_CALIB_ENABLE_FIELD);
+        calibSamplesEntry = visionTable.getEntry(NT_CALIB_SAMPLES_FIELD);
+        calibSamplesEntry.setDouble(0);
+        readyEntry = visionTable.getEntry("ready");
+        startupEntry = visionTable.getEntry("startup_ms");
+        firstTargetEntry = visionTable.getEntry("first_target_ms");
+        readyEntry.setBoolean(false);
+        startupEntry.setDouble(-1);
+        firstTargetEntry.setDouble(-1);
+        if (!calibDistEntry.exists()) {
+            calibDistEntry.setDouble(-1);
         }
-        if (!visionTable.getEntry(NT_CALIB_ENABLE_FIELD).exists()) {
-            visionTable.getEntry(NT_CALIB_ENABLE_FIELD).setBoolean(false);
+        if (!calibEnableEntry.exists()) {
+            calibEnableEntry.setBoolean(false);
         }
+        // Remote changes only; clearing the flag locally must not re-arm it
+        calibEnableEntry.addListener(event -> {
+            if (event.value.isBoolean() && event.value.getBoolean()) {
+                calibrationRequested.set(true);
+            }
+        }, EntryListenerFlags.kImmediate | EntryListenerFlags.kNew | EntryListenerFlags.kUpdate);
 
     }
 }
\ No newline at end of file
@@ -0,0 +1,87 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+/**
+ * Tells whether a frame shows the same scene as the last frame a pipeline fully processed, so its
+ * result can be reused instead of running the pipeline again, e.g. while the robot sits still
+ * lining up a shot.
+ *
+ * <p>Each frame is shrunk to {@value #SAMPLE_WIDTH}x{@value #SAMPLE_HEIGHT} by area averaging,
+ * which averages sensor noise away but still moves when anything in a cell moves, and compared
+ * channel by channel with the same thumbnail of the reference frame. The reference is only
+ * replaced when a frame is processed, so a slow drift adds up until it is detected. A result is
+ * reused at most a configured number of times in a row, so the published values are refreshed
+ * regularly even in a perfectly still scene.
+ *
+ * <p>Each pipeline has its own detector; it is not thread-safe.
+ */
+public class SceneChangeDetector {
+    private static final int SAMPLE_WIDTH = 32;
+    private static final int SAMPLE_HEIGHT = 24;
+    private static final Size SAMPLE_SIZE = new Size(SAMPLE_WIDTH, SAMPLE_HEIGHT);
+
+    private final double tolerance;
+    private final int maxReuses;
+    private final Mat sample = new Mat();
+    private byte[] current = new byte[0];
+    private byte[] reference = new byte[0];
+    private boolean hasReference;
+    private int reuses;
+
+    /**
+     * @param tolerance the largest difference of any thumbnail value, out of 255, for a scene to
+     *                  count as unchanged.
+     * @param maxReuses how many frames in a row may reuse a result.
+     */
+    public SceneChangeDetector(double tolerance, int maxReuses) {
+        this.tolerance = tolerance;
+        this.maxReuses = maxReuses;
+    }
+
+    /**
+     * Compares a frame with the reference. If it changed, it becomes the new reference.
+     *
+     * @param frame the BGR frame about to be processed.
+     * @return whether the last result can be reused for this frame.
+     */
+    public boolean unchanged(Mat frame) {
+        Imgproc.resize(frame, sample, SAMPLE_SIZE, 0, 0, Imgproc.INTER_AREA);
+        int length = (int) (sample.total() * sample.channels());
+        if (current.length != length) {
+            current = new byte[length];
+            reference = new byte[length];
+            hasReference = false;
+        }
+        sample.get(0, 0, current);
+        if (hasReference && reuses < maxReuses && maxDifference() <= tolerance) {
+            reuses++;
+            return true;
+        }
+        byte[] old = reference;
+        reference = current;
+        current = old;
+        hasReference = true;
+        reuses = 0;
+        return false;
+    }
+
+    /**
+     * Forgets the reference, e.g. because the pipeline's parameters changed, so the next frame is
+     * processed.
+     */
+    public void reset() {
+        hasReference = false;
+    }
+
+    private int maxDifference() {
+        int max = 0;
+        for (int i = 0; i < current.length; i++) {
+            int difference = Math.abs((current[i] & 0xFF) - (reference[i] & 0xFF));
+            if (difference > max) {
+                max = difference;
+            }
+        }
+        return max;
+    }
+}
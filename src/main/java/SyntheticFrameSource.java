@@ -0,0 +1,123 @@
+import edu.wpi.cscore.CvSource;
+import edu.wpi.cscore.VideoMode;
+import edu.wpi.first.networktables.NetworkTablesJNI;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Generated frames instead of a camera, for measuring the vision loop without any hardware: a
+ * green, target-shaped outline sweeping back and forth over a fixed noisy background.
+ *
+ * <p>Frames are delivered at a steady frame rate like a camera's and stamped with the time they
+ * were drawn. The outline is within the GRIP default thresholds and filter bounds, so every frame
+ * normally has a target.
+ */
+public class SyntheticFrameSource implements FrameSource {
+    /** Frames for one sweep across the frame and back. */
+    private static final int SWEEP_FRAMES = 120;
+    private static final Scalar TARGET_COLOR = new Scalar(60, 255, 60);
+
+    private final String name;
+    private final double fps;
+    private final VideoMode videoMode;
+    private final Mat background;
+    private final Point corner1 = new Point();
+    private final Point corner2 = new Point();
+    private final int thickness;
+
+    private CvSource output;
+    private long frameCount;
+    private long startNanos;
+
+    /**
+     * @param name the name of the generated camera.
+     * @param width the frame width, in px.
+     * @param height the frame height, in px.
+     * @param fps the rate to deliver frames at, or 0 to deliver them as fast as they are grabbed.
+     */
+    public SyntheticFrameSource(String name, int width, int height, double fps) {
+        this.name = name;
+        this.fps = fps;
+        this.videoMode = new VideoMode(VideoMode.PixelFormat.kBGR, width, height,
+                (int) Math.round(fps));
+        this.thickness = Math.max(2, height / 60);
+        background = new Mat(height, width, CvType.CV_8UC3);
+        Core.setRNGSeed(4373);
+        Core.randn(background, 40, 25);
+    }
+
+    /**
+     * Also shows every generated frame on a cscore source, e.g. to stream it like a camera.
+     */
+    public void setOutput(CvSource output) {
+        this.output = output;
+    }
+
+    /**
+     * @return the cscore source generated frames are shown on, or null.
+     */
+    public CvSource getOutput() {
+        return output;
+    }
+
+    /**
+     * Frees the background image. The source must not be used afterwards.
+     */
+    public void release() {
+        background.release();
+    }
+
+    @Override
+    public long grabFrame(Mat frame) {
+        if (fps > 0) {
+            if (startNanos == 0) {
+                startNanos = System.nanoTime();
+            }
+            long due = startNanos + (long) (frameCount / fps * 1e9);
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        draw(frameCount++, frame);
+        if (output != null) {
+            output.putFrame(frame);
+        }
+        return NetworkTablesJNI.now();
+    }
+
+    @Override
+    public String getError() {
+        return "";
+    }
+
+    @Override
+    public VideoMode getVideoMode() {
+        return videoMode;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    private void draw(long index, Mat frame) {
+        background.copyTo(frame);
+        double w = videoMode.width;
+        double h = videoMode.height;
+        // Triangle wave from 0 to 1 and back, so the target keeps moving like a real one
+        double phase = (index % SWEEP_FRAMES) / (double) (SWEEP_FRAMES / 2);
+        double position = phase <= 1 ? phase : 2 - phase;
+        corner1.x = w * (0.1 + 0.6 * position);
+        corner1.y = h * 0.4;
+        corner2.x = corner1.x + w * 0.2;
+        corner2.y = h * 0.5;
+        Imgproc.rectangle(frame, corner1, corner2, TARGET_COLOR, thickness);
+    }
+}
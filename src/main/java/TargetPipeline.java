@@ -0,0 +1,59 @@
+import edu.wpi.first.vision.VisionPipeline;
+import org.opencv.core.Mat;
+
+import java.util.function.Supplier;
+
+/**
+ * A pipeline that finds target contours, as run by {@link RooPipeline}: either the code
+ * generated by GRIP ({@link GripPipeline}) or a GRIP project compiled at startup
+ * ({@link GripProject}).
+ */
+public interface TargetPipeline extends VisionPipeline {
+    /**
+     * @return the filter that produced the final contours, holding their boxes and areas.
+     */
+    ContourFilter contourFilter();
+
+    /**
+     * @return the binary image the contours of the last frame were found in; valid until the
+     * next frame is processed.
+     */
+    Mat mask();
+
+    /**
+     * Runs only the threshold of the pipeline on an image, for a coarse search of a reduced frame.
+     *
+     * @param input the BGR image to threshold.
+     * @param params the parameters to threshold with.
+     * @param out the image to store the binary mask in.
+     */
+    void threshold(Mat input, PipelineParameters params, Mat out);
+
+    /**
+     * Sets the offset added to every contour point, so that contours found in a window of a
+     * larger frame come out in that frame's coordinates.
+     */
+    void setContourOffset(int x, int y);
+
+    /**
+     * Sets where the duration of every step is recorded; null to not time them.
+     */
+    void setMetrics(VisionMetrics metrics);
+
+    /**
+     * Sets where every frame reads its thresholds and filter bounds from.
+     */
+    void setParameters(Supplier<PipelineParameters> parameters);
+
+    /**
+     * Selects how blobs are found in the mask.
+     */
+    void setDetection(ContourFilter.Detection detection);
+
+    /**
+     * Selects the implementation of the HSV threshold.
+     *
+     * @param lutThreshold the lookup-table threshold to use, or null for cvtColor and inRange.
+     */
+    void setLutThreshold(LutHsvThreshold lutThreshold);
+}
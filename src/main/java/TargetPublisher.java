@@ -0,0 +1,103 @@
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+import edu.wpi.first.networktables.NetworkTableInstance;
+import edu.wpi.first.networktables.NetworkTablesJNI;
+
+/**
+ * Publishes target results to a vision table.
+ *
+ * <p>Entry handles are resolved once. Every frame, the whole result goes out as a single
+ * <code>target_packet</code> double array, so the robot can never read the offsets of one frame
+ * with the distance of another, and is flushed immediately instead of waiting for the next
+ * periodic NetworkTables update. The packet is:
+ * <pre>
+ *   [0] frame sequence number
+ *   [1] capture timestamp, in the NetworkTables time base (us)
+ *   [2] 1 if a target was found, 0 if not (the rest is then 0)
+ *   [3] degree_offset
+ *   [4] inch_offset
+ *   [5] current_distance
+ *   [6] id of the target's track (0 if no target)
+ *   [7] 1 if the frame's scene was unchanged and the previous result was reused, 0 if not
+ * </pre>
+ * The best tracks, the target's included, go out in the same flush as a <code>tracks</code> double
+ * array of {@value TargetTracker#TRACK_STRIDE} values per track, best first (see
+ * {@link TargetTracker#writeTracks}), so the robot can follow several targets by id or
+ * extrapolate with their velocities.
+ * The individual <code>degree_offset</code>, <code>inch_offset</code> and
+ * <code>current_distance</code> entries are still updated whenever a target is found.
+ */
+public class TargetPublisher {
+    public static final int PACKET_SEQUENCE = 0;
+    public static final int PACKET_CAPTURE_TIME = 1;
+    public static final int PACKET_VALID = 2;
+    public static final int PACKET_DEGREE_OFFSET = 3;
+    public static final int PACKET_INCH_OFFSET = 4;
+    public static final int PACKET_CURRENT_DISTANCE = 5;
+    public static final int PACKET_TRACK_ID = 6;
+    public static final int PACKET_CACHED = 7;
+    public static final int PACKET_LENGTH = 8;
+
+    private final NetworkTableInstance instance;
+    private final NetworkTableEntry packetEntry;
+    private final NetworkTableEntry degreeOffsetEntry;
+    private final NetworkTableEntry inchOffsetEntry;
+    private final NetworkTableEntry currentDistanceEntry;
+    private final NetworkTableEntry captureTimestampEntry;
+    private final NetworkTableEntry latencyEntry;
+    private final NetworkTableEntry tracksEntry;
+    private final double[] packet = new double[PACKET_LENGTH];
+    private final double[] tracks;
+    private double[] trackPacket = new double[0];
+
+    /**
+     * @param visionTable the table to publish to.
+     * @param trackCount how many tracks to publish, best first.
+     */
+    public TargetPublisher(NetworkTable visionTable, int trackCount) {
+        instance = visionTable.getInstance();
+        packetEntry = visionTable.getEntry("target_packet");
+        tracksEntry = visionTable.getEntry("tracks");
+        tracks = new double[Math.max(0, trackCount) * TargetTracker.TRACK_STRIDE];
+        degreeOffsetEntry = visionTable.getEntry("degree_offset");
+        inchOffsetEntry = visionTable.getEntry("inch_offset");
+        currentDistanceEntry = visionTable.getEntry("current_distance");
+        captureTimestampEntry = visionTable.getEntry("capture_timestamp");
+        latencyEntry = visionTable.getEntry("latency_ms");
+    }
+
+    /**
+     * Publishes a result and flushes it to the network.
+     *
+     * @param result the result of the newest processed frame, found or not.
+     * @param tracker the tracker the result was just fed to.
+     */
+    public void publish(TargetResult result, TargetTracker tracker) {
+        packet[PACKET_SEQUENCE] = result.sequence;
+        packet[PACKET_CAPTURE_TIME] = result.captureTime;
+        packet[PACKET_VALID] = result.valid ? 1 : 0;
+        packet[PACKET_DEGREE_OFFSET] = result.valid ? result.degreeOffset : 0;
+        packet[PACKET_INCH_OFFSET] = result.valid ? result.inchOffset : 0;
+        packet[PACKET_CURRENT_DISTANCE] = result.valid ? result.currentDistance : 0;
+        packet[PACKET_TRACK_ID] = result.trackId;
+        packet[PACKET_CACHED] = result.cached ? 1 : 0;
+        packetEntry.setDoubleArray(packet);
+
+        int length = tracker.writeTracks(tracks) * TargetTracker.TRACK_STRIDE;
+        if (trackPacket.length != length) {
+            trackPacket = new double[length];
+        }
+        System.arraycopy(tracks, 0, trackPacket, 0, length);
+        tracksEntry.setDoubleArray(trackPacket);
+
+        if (result.valid) {
+            degreeOffsetEntry.setDouble(result.degreeOffset);
+            inchOffsetEntry.setDouble(result.inchOffset);
+            currentDistanceEntry.setDouble(result.currentDistance);
+            captureTimestampEntry.setDouble(result.captureTime);
+            // NetworkTables and cscore share a microsecond time base
+            latencyEntry.setDouble((NetworkTablesJNI.now() - result.captureTime) / 1000d);
+        }
+        instance.flush();
+    }
+}
@@ -0,0 +1,49 @@
+/**
+ * The values RooProcessor derives from a single processed frame.
+ */
+public class TargetResult {
+    /** Position of the frame in its camera's capture order, starting at 1. */
+    public long sequence;
+    /** Capture time of the frame in the NetworkTables/cscore time base, in us. */
+    public long captureTime;
+    /** How long the pipeline took to process the frame, in ns. */
+    public long pipelineNanos;
+    /** Whether the frame was not processed, its scene being unchanged, and the result reused. */
+    public boolean cached;
+    /** Width of the processed frame, in px. */
+    public int frameWidth;
+    public boolean valid;
+    public double degreeOffset;
+    public double inchOffset;
+    public double currentDistance;
+    public double pixelHeight;
+    /** Bounding box of the target as x, y, width, height in px. */
+    public final int[] box = new int[4];
+    /**
+     * Bounding box of the target in the frame as it was processed, i.e. before lens correction in
+     * points mode. This is what a search window in the next frames has to cover.
+     */
+    public final int[] frameBox = new int[4];
+    /** Id of the track the target belongs to, or 0. */
+    public int trackId;
+    /** Number of contours that passed the filter. */
+    public int candidateCount;
+    /** Bounding boxes of the candidates, 4 values each like {@link #box}. */
+    public int[] candidateBoxes = new int[4 * 8];
+    /** The candidates' boxes in the frame as it was processed, like {@link #frameBox}. */
+    public int[] frameCandidateBoxes = new int[4 * 8];
+    /** How much each candidate looks like the target, from 0 to 1. */
+    public double[] candidateScores = new double[8];
+
+    /**
+     * Grows the candidate arrays to hold at least <code>count</code> candidates.
+     */
+    public void ensureCandidateCapacity(int count) {
+        if (candidateScores.length < count) {
+            int capacity = Math.max(count, 2 * candidateScores.length);
+            candidateBoxes = new int[4 * capacity];
+            frameCandidateBoxes = new int[4 * capacity];
+            candidateScores = new double[capacity];
+        }
+    }
+}
@@ -0,0 +1,293 @@
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Follows every target candidate of one camera from frame to frame, so the published target does
+ * not jump to whichever contour OpenCV happened to return first.
+ *
+ * <p>Each track holds a constant-velocity (alpha-beta) estimate of a candidate's center and size.
+ * Every frame, the tracks are predicted to the new capture time and each one, established tracks
+ * first, claims the nearest unclaimed candidate inside a gate around its prediction. Candidates
+ * nobody claimed start new tracks, and tracks without a candidate coast on their velocity until
+ * they have been missed too often. With a fixed number of tracks, a frame costs time linear in
+ * its candidate count.
+ *
+ * <p>The target is the best track seen in the frame, ranked by its smoothed candidate score and
+ * how long it has been seen. The current target is only replaced by a clearly better one, so two
+ * similar reflections do not take turns. Track ids are stable for as long as a track lives.
+ *
+ * <p>Not thread-safe; results must be fed in frame order, which the publisher does.
+ */
+public class TargetTracker {
+    /** Number of values per track written by {@link #writeTracks}. */
+    public static final int TRACK_STRIDE = 9;
+
+    private static final int MAX_TRACKS = 8;
+    private static final double POSITION_GAIN = 0.6;
+    private static final double VELOCITY_GAIN = 0.2;
+    private static final double SIZE_GAIN = 0.5;
+    private static final double SCORE_GAIN = 0.3;
+    private static final double GATE_FRACTION = 1.0;
+    private static final int CONFIRM_HITS = 3;
+    private static final double SWITCH_MARGIN = 1.25;
+    private static final double TARGET_RATIO = 39.25 / 17;
+
+    private static final Comparator<Track> BY_RANK =
+            Comparator.comparingDouble((Track track) -> track.active ? track.rank() : -1).reversed();
+
+    /**
+     * One followed candidate. Positions are in px, velocities in px/s.
+     */
+    private static final class Track {
+        boolean active;
+        boolean matched;
+        /** The candidate matched in the current frame, if {@link #matched}. */
+        int candidate;
+        int id;
+        int hits;
+        int misses;
+        double x;
+        double y;
+        double width;
+        double height;
+        double velocityX;
+        double velocityY;
+        double score;
+
+        double rank() {
+            return score * Math.min(1, hits / (double) CONFIRM_HITS);
+        }
+    }
+
+    private final int maxMisses;
+    private final Track[] tracks = new Track[MAX_TRACKS];
+    private final Track[] ranked = new Track[MAX_TRACKS];
+    private boolean[] claimed = new boolean[16];
+    private Track target;
+    private int nextId = 1;
+    private long lastCaptureTime;
+    private long framePeriodMicros;
+    private long lastSequence;
+
+    /**
+     * @param maxMisses how many frames in a row a track may go without a candidate before it is
+     *                  dropped.
+     */
+    public TargetTracker(int maxMisses) {
+        this.maxMisses = maxMisses;
+        for (int i = 0; i < MAX_TRACKS; i++) {
+            tracks[i] = new Track();
+        }
+    }
+
+    /**
+     * Advances the tracks by a fixed time per frame instead of by the time between captures, so
+     * that a recording gives the same tracks however fast it is processed.
+     *
+     * @param micros the time between two frames of the recording, or 0 to use capture times.
+     */
+    public void setFramePeriod(long micros) {
+        this.framePeriodMicros = micros;
+    }
+
+    /**
+     * Scores how much a candidate looks like the target, from 0 to 1: its width-to-height ratio
+     * against the target's, and its size, since small blobs are more often noise.
+     *
+     * @param width the width of the candidate's bounding box, in px.
+     * @param height the height of the candidate's bounding box, in px.
+     * @param area the area of the candidate's contour, in px^2.
+     */
+    public static double score(int width, int height, double area) {
+        double ratioError = Math.abs(Math.log(width / (double) height / TARGET_RATIO));
+        return 1 / (1 + 2 * ratioError) * (area / (area + 400));
+    }
+
+    /**
+     * Associates a frame's candidates with the tracks and replaces the result's box with the
+     * smoothed box of the target track. The result is invalid if the target was not seen.
+     *
+     * @param result a result with its candidates filled in, in frame order.
+     */
+    public void update(TargetResult result) {
+        double dt;
+        if (framePeriodMicros > 0) {
+            dt = lastSequence == 0 ? 0
+                    : Math.max(0, (result.sequence - lastSequence) * framePeriodMicros / 1e6);
+        } else {
+            dt = lastCaptureTime == 0 ? 0
+                    : Math.max(0, (result.captureTime - lastCaptureTime) / 1e6);
+        }
+        lastCaptureTime = result.captureTime;
+        lastSequence = result.sequence;
+
+        int count = result.candidateCount;
+        if (claimed.length < count) {
+            claimed = new boolean[Math.max(count, 2 * claimed.length)];
+        }
+        Arrays.fill(claimed, 0, count, false);
+
+        System.arraycopy(tracks, 0, ranked, 0, MAX_TRACKS);
+        Arrays.sort(ranked, BY_RANK);
+        for (Track track : ranked) {
+            if (!track.active) {
+                continue;
+            }
+            track.x += track.velocityX * dt;
+            track.y += track.velocityY * dt;
+            track.matched = false;
+
+            double gate = GATE_FRACTION * Math.max(track.width, track.height)
+                    + Math.hypot(track.velocityX, track.velocityY) * dt;
+            double nearest = gate * gate;
+            int match = -1;
+            for (int i = 0; i < count; i++) {
+                if (claimed[i]) {
+                    continue;
+                }
+                double dx = centerX(result, i) - track.x;
+                double dy = centerY(result, i) - track.y;
+                double distance = dx * dx + dy * dy;
+                if (distance <= nearest) {
+                    nearest = distance;
+                    match = i;
+                }
+            }
+            if (match >= 0) {
+                claimed[match] = true;
+                correct(track, result, match, dt);
+            } else if (++track.misses > maxMisses) {
+                track.active = false;
+            }
+        }
+
+        for (int i = 0; i < count; i++) {
+            if (!claimed[i]) {
+                start(result, i);
+            }
+        }
+
+        selectTarget();
+        result.valid = target != null && target.matched;
+        result.trackId = result.valid ? target.id : 0;
+        if (result.valid) {
+            int[] box = result.box;
+            box[0] = (int) Math.round(target.x - target.width / 2);
+            box[1] = (int) Math.round(target.y - target.height / 2);
+            box[2] = Math.max(1, (int) Math.round(target.width));
+            box[3] = Math.max(1, (int) Math.round(target.height));
+            System.arraycopy(result.frameCandidateBoxes, 4 * target.candidate, result.frameBox, 0,
+                    4);
+        }
+    }
+
+    /**
+     * Writes the best tracks, best first, as {@value #TRACK_STRIDE} values each: id, center x,
+     * center y, width, height, velocity x, velocity y (px/s), score and frames since last seen.
+     *
+     * @param out the array to fill; at most <code>out.length / TRACK_STRIDE</code> tracks are written.
+     * @return the number of tracks written.
+     */
+    public int writeTracks(double[] out) {
+        System.arraycopy(tracks, 0, ranked, 0, MAX_TRACKS);
+        Arrays.sort(ranked, BY_RANK);
+        int written = 0;
+        for (Track track : ranked) {
+            if (!track.active || (written + 1) * TRACK_STRIDE > out.length) {
+                break;
+            }
+            int base = written * TRACK_STRIDE;
+            out[base] = track.id;
+            out[base + 1] = track.x;
+            out[base + 2] = track.y;
+            out[base + 3] = track.width;
+            out[base + 4] = track.height;
+            out[base + 5] = track.velocityX;
+            out[base + 6] = track.velocityY;
+            out[base + 7] = track.score;
+            out[base + 8] = track.misses;
+            written++;
+        }
+        return written;
+    }
+
+    private void correct(Track track, TargetResult result, int candidate, double dt) {
+        double residualX = centerX(result, candidate) - track.x;
+        double residualY = centerY(result, candidate) - track.y;
+        track.x += POSITION_GAIN * residualX;
+        track.y += POSITION_GAIN * residualY;
+        if (dt > 0) {
+            track.velocityX += VELOCITY_GAIN * residualX / dt;
+            track.velocityY += VELOCITY_GAIN * residualY / dt;
+        }
+        int base = 4 * candidate;
+        track.width += SIZE_GAIN * (result.candidateBoxes[base + 2] - track.width);
+        track.height += SIZE_GAIN * (result.candidateBoxes[base + 3] - track.height);
+        track.score += SCORE_GAIN * (result.candidateScores[candidate] - track.score);
+        track.hits++;
+        track.misses = 0;
+        track.matched = true;
+        track.candidate = candidate;
+    }
+
+    /**
+     * Starts a track for a candidate in a free slot, or in place of the weakest track if the
+     * candidate scores better than it.
+     */
+    private void start(TargetResult result, int candidate) {
+        double score = result.candidateScores[candidate];
+        Track slot = null;
+        for (Track track : tracks) {
+            if (!track.active) {
+                slot = track;
+                break;
+            }
+            if (track != target && (slot == null || track.rank() < slot.rank())) {
+                slot = track;
+            }
+        }
+        if (slot == null || (slot.active && slot.rank() >= score)) {
+            return;
+        }
+        int base = 4 * candidate;
+        slot.active = true;
+        slot.matched = true;
+        slot.candidate = candidate;
+        slot.id = nextId++;
+        slot.hits = 1;
+        slot.misses = 0;
+        slot.x = centerX(result, candidate);
+        slot.y = centerY(result, candidate);
+        slot.width = result.candidateBoxes[base + 2];
+        slot.height = result.candidateBoxes[base + 3];
+        slot.velocityX = 0;
+        slot.velocityY = 0;
+        slot.score = score;
+    }
+
+    private void selectTarget() {
+        if (target != null && !target.active) {
+            target = null;
+        }
+        Track best = null;
+        for (Track track : tracks) {
+            if (track.active && track.matched && (best == null || track.rank() > best.rank())) {
+                best = track;
+            }
+        }
+        if (best == null) {
+            return;
+        }
+        if (target == null || !target.matched || best.rank() > target.rank() * SWITCH_MARGIN) {
+            target = best;
+        }
+    }
+
+    private static double centerX(TargetResult result, int candidate) {
+        return result.candidateBoxes[4 * candidate] + result.candidateBoxes[4 * candidate + 2] / 2d;
+    }
+
+    private static double centerY(TargetResult result, int candidate) {
+        return result.candidateBoxes[4 * candidate + 1] + result.candidateBoxes[4 * candidate + 3] / 2d;
+    }
+}
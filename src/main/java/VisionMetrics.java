@@ -0,0 +1,196 @@
+import edu.wpi.first.networktables.NetworkTable;
+import edu.wpi.first.networktables.NetworkTableEntry;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-stage latency histograms and frame counters for one camera's vision loop.
+ *
+ * <p>Recording is allocation-free and cheap enough to call several times per frame. A daemon
+ * thread summarizes each window and publishes p50/p95/p99/max per stage, frame rate and dropped
+ * frames to a <code>metrics</code> subtable of the vision table, so the vision loop itself never
+ * touches NetworkTables for metrics. The {@link MatPool} counters are published alongside; they
+ * cover every camera. Frames whose result was reused by a {@link SceneChangeDetector} are counted,
+ * with an estimate of the pipeline time they saved.
+ */
+public class VisionMetrics {
+    private static final long PUBLISH_PERIOD_MS = 1000;
+
+    /**
+     * The timed parts of a frame. {@link #LATENCY} is end-to-end, from capture to publish.
+     */
+    public enum Stage {
+        GRAB("grab"), CHANGE_DETECT("change_detect"), COARSE("coarse"), BLUR("blur"), HSV_THRESHOLD("hsv_threshold"),
+        FIND_CONTOURS("find_contours"), FILTER_CONTOURS("filter_contours"), PIPELINE("pipeline"),
+        PUBLISH("publish"), LATENCY("latency");
+
+        private final String key;
+
+        Stage(String key) {
+            this.key = key;
+        }
+    }
+
+    private static final Stage[] STAGES = Stage.values();
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+    private final NetworkTableEntry[][] stageEntries = new NetworkTableEntry[STAGES.length][];
+    private final NetworkTableEntry fpsEntry;
+    private final NetworkTableEntry framesEntry;
+    private final NetworkTableEntry droppedEntry;
+    private final NetworkTableEntry failedEntry;
+    private final NetworkTableEntry filterAllocEntry;
+    private final NetworkTableEntry nativeBytesEntry;
+    private final NetworkTableEntry poolHitsEntry;
+    private final NetworkTableEntry poolMissesEntry;
+    private final NetworkTableEntry matLeaksEntry;
+    private final NetworkTableEntry cacheHitsEntry;
+    private final NetworkTableEntry cacheHitRateEntry;
+    private final NetworkTableEntry cacheSavedEntry;
+
+    private final AtomicLong frames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong failedFrames = new AtomicLong();
+    private volatile long filterAllocatedBytes;
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong cacheSavedNanos = new AtomicLong();
+
+    private long lastPublishNanos = System.nanoTime();
+    private long lastPublishFrames;
+    private long lastPublishCacheHits;
+    private long lastPublishCacheMisses;
+
+    public VisionMetrics(NetworkTable visionTable) {
+        NetworkTable metricsTable = visionTable.getSubTable("metrics");
+        for (int i = 0; i < STAGES.length; i++) {
+            histograms[i] = new LatencyHistogram();
+            NetworkTable stageTable = metricsTable.getSubTable(STAGES[i].key);
+            stageEntries[i] = new NetworkTableEntry[]{
+                    stageTable.getEntry("p50_ms"), stageTable.getEntry("p95_ms"),
+                    stageTable.getEntry("p99_ms"), stageTable.getEntry("max_ms")
+            };
+        }
+        fpsEntry = metricsTable.getEntry("fps");
+        framesEntry = metricsTable.getEntry("frames");
+        droppedEntry = metricsTable.getEntry("dropped_frames");
+        failedEntry = metricsTable.getEntry("failed_frames");
+        filterAllocEntry = metricsTable.getEntry("filter_alloc_bytes");
+        nativeBytesEntry = metricsTable.getEntry("native_live_bytes");
+        poolHitsEntry = metricsTable.getEntry("mat_pool_hits");
+        poolMissesEntry = metricsTable.getEntry("mat_pool_misses");
+        matLeaksEntry = metricsTable.getEntry("mat_leaks");
+        cacheHitsEntry = metricsTable.getEntry("cache_hits");
+        cacheHitRateEntry = metricsTable.getEntry("cache_hit_rate");
+        cacheSavedEntry = metricsTable.getEntry("cache_saved_ms");
+    }
+
+    /**
+     * Starts publishing to NetworkTables once per {@value #PUBLISH_PERIOD_MS} ms.
+     */
+    public void start() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "VisionMetrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleAtFixedRate(this::publish, PUBLISH_PERIOD_MS, PUBLISH_PERIOD_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records how long a stage took for one frame.
+     *
+     * @param stage the stage that was timed.
+     * @param nanos the duration, in ns.
+     */
+    public void record(Stage stage, long nanos) {
+        histograms[stage.ordinal()].record(nanos);
+    }
+
+    /**
+     * Counts a frame that made it all the way through processing.
+     */
+    public void frameProcessed() {
+        frames.incrementAndGet();
+    }
+
+    /**
+     * Counts frames that were captured or expected but never processed.
+     *
+     * @param count the number of frames lost.
+     */
+    public void framesDropped(long count) {
+        droppedFrames.addAndGet(count);
+    }
+
+    /**
+     * Counts a frame whose processing threw an exception.
+     */
+    public void frameFailed() {
+        failedFrames.incrementAndGet();
+    }
+
+    /**
+     * Reports how many bytes the contour filter allocated on its last frame.
+     */
+    public void filterAllocatedBytes(long bytes) {
+        filterAllocatedBytes = bytes;
+    }
+
+    /**
+     * Counts a frame checked by a {@link SceneChangeDetector}.
+     *
+     * @param hit whether the last result was reused instead of processing the frame.
+     * @param savedNanos how long the pipeline took the last time it did process a frame, in ns.
+     */
+    public void sceneCacheResult(boolean hit, long savedNanos) {
+        if (hit) {
+            cacheHits.incrementAndGet();
+            cacheSavedNanos.addAndGet(savedNanos);
+        } else {
+            cacheMisses.incrementAndGet();
+        }
+    }
+
+    private void publish() {
+        long now = System.nanoTime();
+        long frameCount = frames.get();
+        double seconds = (now - lastPublishNanos) / 1e9;
+        fpsEntry.setDouble((frameCount - lastPublishFrames) / seconds);
+        framesEntry.setDouble(frameCount);
+        droppedEntry.setDouble(droppedFrames.get());
+        failedEntry.setDouble(failedFrames.get());
+        filterAllocEntry.setDouble(filterAllocatedBytes);
+        nativeBytesEntry.setDouble(MatPool.liveBytes());
+        poolHitsEntry.setDouble(MatPool.hits());
+        poolMissesEntry.setDouble(MatPool.misses());
+        matLeaksEntry.setDouble(MatPool.leaks());
+        long hits = cacheHits.get();
+        long misses = cacheMisses.get();
+        long checked = hits - lastPublishCacheHits + misses - lastPublishCacheMisses;
+        cacheHitsEntry.setDouble(hits);
+        double hitRate = checked > 0 ? (hits - lastPublishCacheHits) / (double) checked : 0;
+        cacheHitRateEntry.setDouble(hitRate);
+        cacheSavedEntry.setDouble(cacheSavedNanos.get() / 1e6);
+        lastPublishNanos = now;
+        lastPublishFrames = frameCount;
+        lastPublishCacheHits = hits;
+        lastPublishCacheMisses = misses;
+
+        for (int i = 0; i < STAGES.length; i++) {
+            LatencyHistogram histogram = histograms[i];
+            if (histogram.takeSnapshot() == 0) {
+                continue;
+            }
+            NetworkTableEntry[] entries = stageEntries[i];
+            entries[0].setDouble(histogram.percentileMillis(50));
+            entries[1].setDouble(histogram.percentileMillis(95));
+            entries[2].setDouble(histogram.percentileMillis(99));
+            entries[3].setDouble(histogram.maxMillis());
+        }
+    }
+}